@@ -0,0 +1,85 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.bench;
+
+import java.util.concurrent.TimeUnit;
+import nl.vumc.trait.oc.odm.ClinicalODM;
+import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cleaning of clinical ODM: the XSLT based clean() and the attribute
+ * stripping extraClean() done before every upload. Both modify the document
+ * so every invocation gets a freshly parsed copy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ClinicalODMBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int subjects;
+    @Param({"4"})
+    public int events;
+    @Param({"20"})
+    public int items;
+    private String clinicalData;
+    private InMemoryWebServices connector;
+    private ClinicalODMResolver raw;
+    private ClinicalODMResolver cleaned;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, subjects, events, items);
+        clinicalData = synthetic.clinicalData();
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        connector = new InMemoryWebServices(model);
+    }
+
+    @Setup(Level.Invocation)
+    public void parse() throws Exception {
+        raw = new ClinicalODMResolver(clinicalData, connector, false);
+        cleaned = new ClinicalODMResolver(clinicalData, connector, true);
+    }
+
+    @Benchmark
+    public ClinicalODM clean() throws Exception {
+        return raw.clean();
+    }
+
+    @Benchmark
+    public ClinicalODM extraClean() throws Exception {
+        return cleaned.extraClean();
+    }
+}
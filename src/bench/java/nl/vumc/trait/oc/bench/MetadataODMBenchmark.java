@@ -0,0 +1,76 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.bench;
+
+import java.util.concurrent.TimeUnit;
+import nl.vumc.trait.oc.odm.ClinicalODM;
+import nl.vumc.trait.oc.odm.MetadataIndex;
+import nl.vumc.trait.oc.odm.MetadataODM;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation of the data loading template from study metadata
+ * (MetaODMToTemplate.xslt): generated from scratch and served from the
+ * template cache. Also the creation of the metadata index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class MetadataODMBenchmark {
+
+    @Param({"5", "20", "50"})
+    public int events;
+    @Param({"50"})
+    public int items;
+    private MetadataODM metadata;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        metadata = new MetadataODM(new SyntheticODM(1, 0, events, items).metadata(0));
+    }
+
+    @Benchmark
+    public ClinicalODM generate() throws Exception {
+        MetadataODM.flushTemplates();
+        return metadata.getClinicalTemplate();
+    }
+
+    @Benchmark
+    public ClinicalODM cached() throws Exception {
+        return metadata.getClinicalTemplate();
+    }
+
+    @Benchmark
+    public MetadataIndex index() {
+        metadata.setOdm(metadata.getOdm()); // drops the index
+        return metadata.getIndex();
+    }
+}
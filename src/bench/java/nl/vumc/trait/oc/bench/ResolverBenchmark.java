@@ -0,0 +1,92 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.bench;
+
+import java.util.concurrent.TimeUnit;
+import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolving (subject creation, event scheduling, OID rewriting) and the
+ * ClinicalData-per-call upload loop of ImportODM, against the in-memory
+ * simulator. Since resolving creates subjects, the simulator is reset and the
+ * document re-parsed before every invocation; what is measured is therefore
+ * the client side cost plus the (cheap) simulator calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ResolverBenchmark {
+
+    @Param({"1", "4"})
+    public int studies;
+    @Param({"10", "100"})
+    public int subjects;
+    @Param({"4"})
+    public int events;
+    @Param({"20"})
+    public int items;
+    private String clinicalData;
+    private SimulatedOpenClinica model;
+    private InMemoryWebServices connector;
+    private ClinicalODMResolver resolver;
+    private ClinicalODMResolver resolved;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(studies, subjects, events, items);
+        clinicalData = synthetic.clinicalData();
+        model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        connector = new InMemoryWebServices(model);
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        model.reset();
+        resolved = new ClinicalODMResolver(clinicalData, connector, false);
+        resolved.resolveOdmDocument();
+        model.reset();
+        resolver = new ClinicalODMResolver(clinicalData, connector, false);
+    }
+
+    @Benchmark
+    public int resolveOdmDocument() throws Exception {
+        return resolver.resolveOdmDocument();
+    }
+
+    @Benchmark
+    public int importClinicalData() throws Exception {
+        return resolved.importClinicalData();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.bench;
+
+import java.util.concurrent.TimeUnit;
+import nl.vumc.trait.oc.connect.ConnectInfo;
+import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import nl.vumc.trait.oc.sim.SimulatedConditions;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinicaServer;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end resolve and upload over SOAP against the simulated OpenClinica
+ * server, with a configurable per-call server latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SoapResolverBenchmark {
+
+    @Param({"20"})
+    public int subjects;
+    @Param({"2"})
+    public int events;
+    @Param({"20"})
+    public int items;
+    @Param({"0", "5"})
+    public long latencyMillis;
+    private String clinicalData;
+    private SimulatedOpenClinica model;
+    private SimulatedOpenClinicaServer server;
+    private OCWebServices connector;
+    private ClinicalODMResolver resolver;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, subjects, events, items);
+        clinicalData = synthetic.clinicalData();
+        model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        server = new SimulatedOpenClinicaServer(model, new SimulatedConditions().setLatencyMillis(latencyMillis));
+        connector = OCWebServices.getInstance(new ConnectInfo(server.start(), "simulated", "simulated"), false, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.stop();
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        model.reset();
+        resolver = new ClinicalODMResolver(clinicalData, connector, false);
+    }
+
+    @Benchmark
+    public int resolveAndImport() throws Exception {
+        resolver.resolveOdmDocument();
+        return resolver.importClinicalData();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.bench;
+
+import java.util.concurrent.TimeUnit;
+import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of a cleaned clinical ODM document as uploaded: the indented
+ * toString() used before and the compact toWireString(). The payload size of
+ * both is printed once per trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class WireSerializationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int subjects;
+    @Param({"4"})
+    public int events;
+    @Param({"20"})
+    public int items;
+    private ClinicalODMResolver cleaned;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, subjects, events, items);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        cleaned = new ClinicalODMResolver(synthetic.clinicalData(), new InMemoryWebServices(model), true);
+        cleaned.extraClean();
+        int indented = cleaned.toString().getBytes("UTF-8").length;
+        int compact = cleaned.toWireString().getBytes("UTF-8").length;
+        System.out.println("payload bytes: indented " + indented + ", compact " + compact + " ("
+                + (100 * (indented - compact) / indented) + "% smaller)");
+    }
+
+    @Benchmark
+    public String indented() {
+        return cleaned.toString();
+    }
+
+    @Benchmark
+    public String compact() throws Exception {
+        return cleaned.toWireString();
+    }
+}
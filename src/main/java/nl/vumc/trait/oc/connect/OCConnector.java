@@ -20,17 +20,30 @@ package nl.vumc.trait.oc.connect;
 
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
 
+import nl.vumc.trait.oc.metrics.Metrics;
+import nl.vumc.trait.oc.metrics.OperationTimer;
 import nl.vumc.trait.oc.soap.EventDefListAllHandler;
 import nl.vumc.trait.oc.soap.ImportRequestHandler;
 import nl.vumc.trait.oc.soap.LoggingHandler;
+import nl.vumc.trait.oc.soap.PayloadSizeHandler;
 import nl.vumc.trait.oc.soap.StudyListAllHandler;
 import nl.vumc.trait.oc.soap.StudySubjectHandler;
+import nl.vumc.trait.oc.soap.TimedHandler;
 import nl.vumc.trait.oc.soap.Util;
 import nl.vumc.trait.oc.soap.WsseSecurityHandler;
 import nl.vumc.trait.oc.ws.DataWsService;
@@ -39,6 +52,9 @@ import nl.vumc.trait.oc.ws.StudyEventDefinitionWsService;
 import nl.vumc.trait.oc.ws.StudySubjectWsService;
 import nl.vumc.trait.oc.ws.StudyWsService;
 
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
 
 /**
  * Supports "low-level" interaction with OpenClinica web services such
@@ -48,6 +64,18 @@ import nl.vumc.trait.oc.ws.StudyWsService;
  */
 public class OCConnector {
 
+	private static final Logger logger = LogManager.getLogger(OCConnector.class);
+
+	/** Compression of web service traffic */
+	public enum Compression {
+		/** no compression */
+		OFF,
+		/** ask for compressed responses */
+		RESPONSES,
+		/** ask for compressed responses and compress requests, if the server accepts those */
+		ON
+	}
+
 	/** Status message for failure (should correspond to OpenClinica "result" value */
 	public static final String STATUS_FAIL = "Fail";
 	/** Status message for success (should correspond to OpenClinica "result" value */
@@ -86,6 +114,13 @@ public class OCConnector {
 	private WsseSecurityHandler wsseHandler;
 	/** Data type factory for XML */
 	protected DatatypeFactory dataTypeFactory;
+	/** compression asked for */
+	private Compression compression = Compression.OFF;
+	/** whether requests are compressed, as negotiated with the server */
+	private boolean requestCompression;
+	/** whether servers accept compressed requests, by base URL, as found out before */
+	private static final ConcurrentMap<String, Boolean> compressedRequestsAccepted =
+		new ConcurrentHashMap<String, Boolean>();
 
 	/**
 	 * get current instance or create new if not yes instantiated.
@@ -187,6 +222,14 @@ public class OCConnector {
 		return baseURL;
 	}
 
+	/**
+	 * get user name
+	 * @return user name
+	 */
+	public String getUserName() {
+		return wsseHandler.getUsername();
+	}
+
 	/**
 	 * get current status
 	 * @return status
@@ -237,6 +280,81 @@ public class OCConnector {
 		}
 	}
 
+	/**
+	 * process status of last action and throw exception if appropriate,
+	 * counting a failed status as an error of the operation being timed. Such
+	 * an error is the server rejecting the request, not failing to handle it,
+	 * so the limits of the server (see RequestGovernor) are not lowered for it.
+	 * @param timer timer of the operation
+	 * @param status status
+	 * @param errors list of error messages
+	 * @throws OCConnectorException 
+	 */
+	protected void checkResponseExceptions(OperationTimer timer, String status, List<String> errors)
+			throws OCConnectorException {
+		if (STATUS_FAIL.equals(status)) {
+			timer.failed();
+			if (timer instanceof GovernedTimer) {
+				((GovernedTimer) timer).rejected();
+			}
+		}
+		timer.stop();
+		checkResponseExceptions(status, errors);
+	}
+
+	/**
+	 * Start timing a web service operation against this connector's server,
+	 * first waiting for the limits of the server (see RequestGovernor). The
+	 * call counts against the limits until the timer is stopped.
+	 * @param operation operation name, &lt;service&gt;.&lt;wsdl operation&gt;
+	 * @return a running timer
+	 * @throws OCConnectorException if interrupted while waiting
+	 */
+	protected OperationTimer startOperation(String operation) throws OCConnectorException {
+		final RequestGovernor.Permit permit;
+		try {
+			permit = RequestGovernor.forServer(baseURL).acquire(operation);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OCConnectorException("Interrupted while waiting to call " + operation, e);
+		}
+		if (permit == null) {
+			return Metrics.start(Metrics.COMPONENT_WS, operation, baseURL);
+		}
+		return new GovernedTimer(operation, baseURL, permit);
+	}
+
+	/**
+	 * Timer of a call holding a permit of the governor, released when stopped
+	 */
+	private static class GovernedTimer extends OperationTimer {
+
+		private final RequestGovernor.Permit permit;
+		/** failed with a status returned by the server */
+		private boolean rejected;
+
+		GovernedTimer(String operation, String baseURL, RequestGovernor.Permit permit) {
+			super(Metrics.getRegistry(), Metrics.COMPONENT_WS, operation, baseURL);
+			this.permit = permit;
+		}
+
+		void rejected() {
+			rejected = true;
+		}
+
+		@Override
+		protected void stopped(long nanos, boolean failed) {
+			permit.release(nanos, failed && !rejected);
+		}
+	}
+
+	/**
+	 * @return the governor limiting the calls to this connector's server
+	 */
+	public RequestGovernor getGovernor() {
+		return RequestGovernor.forServer(baseURL);
+	}
+
 	/**
 	 * Configure all WS bindings
 	 * @throws MalformedURLException 
@@ -256,13 +374,28 @@ public class OCConnector {
 		setupDefaultHandlers(dataBinding);
 		setupDefaultHandlers(studyEventDefinitionBinding);
 		ImportRequestHandler importRequestHandler = new ImportRequestHandler(messages, true);
-		Util.addMessageHandler(dataBinding, 0, importRequestHandler);
+		Util.addMessageHandler(dataBinding, 0, timed(importRequestHandler));
 		StudyListAllHandler studyListAllHandler = new StudyListAllHandler(messages);
-		Util.addMessageHandler(studyBinding, 0, studyListAllHandler);
+		Util.addMessageHandler(studyBinding, 0, timed(studyListAllHandler));
 		StudySubjectHandler studySubjectHandler = new StudySubjectHandler(messages);
-		Util.addMessageHandler(studySubjectBinding, 0, studySubjectHandler);
+		Util.addMessageHandler(studySubjectBinding, 0, timed(studySubjectHandler));
 		EventDefListAllHandler eventDefListAllHandler = new EventDefListAllHandler(messages);
-		Util.addMessageHandler(studyEventDefinitionBinding, 0, eventDefListAllHandler);
+		Util.addMessageHandler(studyEventDefinitionBinding, 0, timed(eventDefListAllHandler));
+		// message sizes last, so they are measured as sent and received
+		Util.addMessageHandler(studyBinding, new PayloadSizeHandler("study", baseURL));
+		Util.addMessageHandler(studySubjectBinding, new PayloadSizeHandler("studySubject", baseURL));
+		Util.addMessageHandler(eventBinding, new PayloadSizeHandler("event", baseURL));
+		Util.addMessageHandler(dataBinding, new PayloadSizeHandler("data", baseURL));
+		Util.addMessageHandler(studyEventDefinitionBinding, new PayloadSizeHandler("studyEventDefinition", baseURL));
+	}
+
+	/**
+	 * Wrap a handler in a TimedHandler
+	 * @param handler handler to be timed
+	 * @return the timed handler
+	 */
+	private SOAPHandler<SOAPMessageContext> timed(SOAPHandler<SOAPMessageContext> handler) {
+		return new TimedHandler(handler, baseURL);
 	}
 
 	/**
@@ -271,9 +404,115 @@ public class OCConnector {
 	 */
 	private void setupDefaultHandlers(Object binding) {
 		if (logging) {
-			Util.addMessageHandler(binding, new LoggingHandler());
+			Util.addMessageHandler(binding, timed(new LoggingHandler()));
+		}
+		Util.addMessageHandler(binding, 0, timed(wsseHandler.newInstance()));
+	}
+
+	/**
+	 * get compression asked for
+	 * @return compression
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * check whether requests are compressed; only if Compression.ON was asked
+	 * for and the server accepts compressed requests
+	 * @return true if requests are sent gzipped
+	 */
+	public boolean isRequestCompression() {
+		return requestCompression;
+	}
+
+	/**
+	 * Set compression of web service traffic (gzip, HTTP Content-Encoding).
+	 * Responses are only compressed by servers that support it. Before
+	 * requests are compressed, a (read-only) study listAll is sent compressed
+	 * to find out whether the server accepts that; if it does not, only
+	 * responses are compressed.
+	 * @param compression compression to use
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+		requestCompression = compression == Compression.ON && acceptsCompressedRequests();
+		if (compression == Compression.ON && !requestCompression) {
+			logger.info("Requests to " + baseURL + " are sent uncompressed");
+		}
+		Map<String, List<String>> headers = compression == Compression.OFF ? null
+				: compressionHeaders(requestCompression);
+		for (Object binding : new Object[] { studyBinding, studySubjectBinding, eventBinding, dataBinding,
+				studyEventDefinitionBinding }) {
+			setRequestHeaders(binding, headers);
+		}
+	}
+
+	/**
+	 * Find out whether the server accepts compressed requests by sending it
+	 * a compressed study listAll. The outcome is kept per server, so the call
+	 * is only made once.
+	 * @return true if the call succeeded
+	 */
+	protected boolean acceptsCompressedRequests() {
+		if (studyBinding == null) {
+			return false;
+		}
+		Boolean accepted = compressedRequestsAccepted.get(baseURL);
+		if (accepted != null) {
+			return accepted;
+		}
+		setRequestHeaders(studyBinding, compressionHeaders(true));
+		OperationTimer timer;
+		try {
+			timer = startOperation("study.listAll");
+		} catch (OCConnectorException e) { // interrupted
+			return false;
+		}
+		try {
+			studyBinding.listAll(null);
+			timer.stop();
+			compressedRequestsAccepted.put(baseURL, Boolean.TRUE);
+			return true;
+		} catch (Exception e) {
+			timer.failed();
+			timer.stop();
+			logger.info("Compressed request rejected by " + baseURL + ": " + e.getMessage());
+			compressedRequestsAccepted.put(baseURL, Boolean.FALSE);
+			return false;
+		}
+	}
+
+	/**
+	 * HTTP headers asking for compressed responses and, optionally, announcing
+	 * a compressed request
+	 * @param compressRequest whether or not the request is compressed
+	 * @return the headers
+	 */
+	private static Map<String, List<String>> compressionHeaders(boolean compressRequest) {
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("Accept-Encoding", Collections.singletonList("gzip"));
+		if (compressRequest) {
+			headers.put("Content-Encoding", Collections.singletonList("gzip"));
+		}
+		return headers;
+	}
+
+	/**
+	 * Set (or with null, remove) the extra HTTP headers of a binding
+	 * @param binding WS binding, ignored if null
+	 * @param headers the headers
+	 */
+	private static void setRequestHeaders(Object binding, Map<String, List<String>> headers) {
+		if (binding == null) {
+			return;
+		}
+		Map<String, Object> context = ((BindingProvider) binding).getRequestContext();
+		if (headers == null) {
+			context.remove(MessageContext.HTTP_REQUEST_HEADERS);
+		} else {
+			context.put(MessageContext.HTTP_REQUEST_HEADERS, headers);
 		}
-		Util.addMessageHandler(binding, 0, wsseHandler.newInstance());
 	}
 
 	/**
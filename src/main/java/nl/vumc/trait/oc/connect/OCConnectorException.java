@@ -18,6 +18,9 @@
 
 package nl.vumc.trait.oc.connect;
 
+import java.net.SocketTimeoutException;
+import javax.xml.ws.WebServiceException;
+
 /**
  * General connector exception.
  * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
@@ -56,6 +59,22 @@ public class OCConnectorException extends Exception {
 		super(arg0);
 	}
 
+	/**
+	 * Whether the exception was caused by getting the call to or from the
+	 * server (a web service or connection failure, a time-out) rather than by
+	 * OpenClinica rejecting the request. Only the former may succeed when the
+	 * call is made again.
+	 * @return true if caused by a transport failure
+	 */
+	public boolean isTransportFailure() {
+		for (Throwable cause = getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof WebServiceException || cause instanceof SocketTimeoutException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * auto generated serialVersionUID
 	 */
@@ -21,9 +21,14 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
+import nl.vumc.trait.oc.metrics.OperationTimer;
 import nl.vumc.trait.oc.odm.MetadataODM;
 import nl.vumc.trait.oc.odm.ODMException;
 import nl.vumc.trait.oc.types.Event;
@@ -74,6 +79,72 @@ public class OCWebServices extends OCConnector {
      * static OCWebServices instance. We are a singleton.
      */
     private static OCWebServices instance;
+    /**
+     * Default time to live of the study directory: 10 minutes
+     */
+    public static final long DEFAULT_STUDY_DIRECTORY_TTL = 10 * 60 * 1000L;
+    /**
+     * studies and sites as last listed, null if not listed yet
+     */
+    private StudyDirectory studyDirectory;
+    /**
+     * cache scope (see cacheScope()) the study directory was listed in
+     */
+    private String studyDirectoryScope;
+    /**
+     * time to live of the study directory in milliseconds
+     */
+    private volatile long studyDirectoryTTL = DEFAULT_STUDY_DIRECTORY_TTL;
+    /**
+     * guards studyDirectory
+     */
+    private final Object studyDirectoryLock = new Object();
+    /**
+     * Default time to live of cached event definitions: 10 minutes
+     */
+    public static final long DEFAULT_EVENT_DEFINITION_TTL = 10 * 60 * 1000L;
+    /**
+     * event definitions as last fetched, by cache scope and study identifier
+     */
+    private final Map<String, EventDefinitions> eventDefinitions = new HashMap<String, EventDefinitions>();
+    /**
+     * time to live of cached event definitions in milliseconds
+     */
+    private long eventDefinitionTTL = DEFAULT_EVENT_DEFINITION_TTL;
+    /**
+     * listAllStudies() calls in flight
+     */
+    private final SingleFlight<ListAllResponse> studyLists = new SingleFlight<ListAllResponse>();
+    /**
+     * fetchEventDefinitions() calls in flight, by study
+     */
+    private final SingleFlight<ArrayList<Event>> eventDefinitionLists = new SingleFlight<ArrayList<Event>>();
+    /**
+     * listAllByStudy() calls in flight, by study and site
+     */
+    private final SingleFlight<ListAllByStudyResponse> subjectLists = new SingleFlight<ListAllByStudyResponse>();
+    /**
+     * Default time to live of isStudySubject() results: 1 minute
+     */
+    public static final long DEFAULT_SUBJECT_LOOKUP_TTL = 60 * 1000L;
+    /**
+     * Maximum number of isStudySubject() results kept
+     */
+    public static final int MAX_SUBJECT_LOOKUPS = 100000;
+    /**
+     * isStudySubject() results by cache scope, study, site and label, oldest
+     * first
+     */
+    private final Map<String, SubjectLookup> subjectLookups = new SubjectLookups();
+    /**
+     * number of times isStudySubject() results were forgotten, guarded by
+     * subjectLookups
+     */
+    private long subjectLookupGeneration;
+    /**
+     * time to live of isStudySubject() results in milliseconds
+     */
+    private long subjectLookupTTL = DEFAULT_SUBJECT_LOOKUP_TTL;
 
     /**
      * Disables public access to default constructor.
@@ -149,32 +220,57 @@ public class OCWebServices extends OCConnector {
     // ...end connector stuff.
     // ================================================================================================================
     /**
-     * List all accessible studies
+     * List all accessible studies. Concurrent calls share a single web service
+     * call, and its response.
      *
      * @return all accessible studies
      * (org.openclinica.ws.study.v1.ListAllResponse)
      * @throws OCConnectorException
      */
     public ListAllResponse listAllStudies() throws OCConnectorException {
+        return studyLists.execute(cacheScope() + "study.listAll", new Callable<ListAllResponse>() {
+            @Override
+            public ListAllResponse call() throws OCConnectorException {
+                return callListAllStudies();
+            }
+        });
+    }
+
+    private ListAllResponse callListAllStudies() throws OCConnectorException {
         ListAllResponse response;
+        OperationTimer timer = startOperation("study.listAll");
         try {
             response = studyBinding.listAll(null);
         } catch (Exception e) {
+            timer.failed();
+            timer.stop();
             throw new OCConnectorException("Exception while calling OpenClinica web service." + e.getMessage(), e);
         }
-        checkResponseExceptions(response.getResult(), response.getError());
+        checkResponseExceptions(timer, response.getResult(), response.getError());
         return response;
     }
 
     /**
-     * List all study subjects for a given study.
+     * List all study subjects for a given study. Concurrent calls for the same
+     * study (and site) share a single web service call, and its response.
      *
      * @param study OpenClinica study
      * @return list of study subjects
      * (org.openclinica.ws.studysubject.v1.ListAllByStudyResponse)
      * @throws OCConnectorException
      */
-    public ListAllByStudyResponse listAllByStudy(Study study) throws OCConnectorException {
+    public ListAllByStudyResponse listAllByStudy(final Study study) throws OCConnectorException {
+        String key = cacheScope() + "studySubject.listAllByStudy " + study.getStudyName()
+                + (study.hasSiteName() ? "/" + study.getSiteName() : "");
+        return subjectLists.execute(key, new Callable<ListAllByStudyResponse>() {
+            @Override
+            public ListAllByStudyResponse call() throws OCConnectorException {
+                return callListAllByStudy(study);
+            }
+        });
+    }
+
+    private ListAllByStudyResponse callListAllByStudy(Study study) throws OCConnectorException {
         // TODO: copy this type of error handling to all ws calling methods...
         ListStudySubjectsInStudyType request = new ListStudySubjectsInStudyType();
         StudyRefType studyRef = new StudyRefType();
@@ -186,12 +282,15 @@ public class OCWebServices extends OCConnector {
             studyRef.setSiteRef(siteref);
         }
         ListAllByStudyResponse response;
+        OperationTimer timer = startOperation("studySubject.listAllByStudy");
         try {
             response = studySubjectBinding.listAllByStudy(request);
         } catch (Exception e) {
+            timer.failed();
+            timer.stop();
             throw new OCConnectorException("Exception while calling OpenClinica web service." + e.getMessage(), e);
         }
-        checkResponseExceptions(response.getResult(), response.getError());
+        checkResponseExceptions(timer, response.getResult(), response.getError());
         return response;
     }
 
@@ -205,6 +304,14 @@ public class OCWebServices extends OCConnector {
      * @throws OCConnectorException
      */
     public IsStudySubjectResponse isStudySubject(StudySubject studySubject, boolean submitDate) throws OCConnectorException {
+        OperationTimer timer = startOperation("studySubject.isStudySubject");
+        IsStudySubjectResponse response = callIsStudySubject(timer, studySubject, submitDate);
+        checkResponseExceptions(timer, response.getResult(), response.getError());
+        return response;
+    }
+
+    private IsStudySubjectResponse callIsStudySubject(OperationTimer timer, StudySubject studySubject,
+            boolean submitDate) throws OCConnectorException {
         Study study = studySubject.getStudy();
         IsStudySubjectRequest request = new IsStudySubjectRequest();
         StudyRefType studyRef = new StudyRefType();
@@ -221,14 +328,13 @@ public class OCWebServices extends OCConnector {
         ocSubject.setLabel(studySubject.getStudySubjectLabel());
         ocSubject.setStudyRef(studyRef);
         request.setStudySubject(ocSubject);
-        IsStudySubjectResponse response;
         try {
-            response = studySubjectBinding.isStudySubject(request);
+            return studySubjectBinding.isStudySubject(request);
         } catch (Exception e) {
+            timer.failed();
+            timer.stop();
             throw new OCConnectorException("Exception while calling OpenClinica web service. " + e.getMessage(), e);
         }
-        checkResponseExceptions(response.getResult(), response.getError());
-        return response;
     }
 
     /**
@@ -274,12 +380,15 @@ public class OCWebServices extends OCConnector {
             studyRef.setSiteRef(siteref);
         }
         ScheduleResponse scheduleResponse;
+        OperationTimer timer = startOperation("event.schedule");
         try {
             scheduleResponse = eventBinding.schedule(scheduleRequest);
         } catch (Exception e) {
+            timer.failed();
+            timer.stop();
             throw new OCConnectorException("Exception while calling OpenClinica web service. " + e.getMessage(), e);
         }
-        checkResponseExceptions(scheduleResponse.getResult(), scheduleResponse.getError());
+        checkResponseExceptions(timer, scheduleResponse.getResult(), scheduleResponse.getError());
         logger.info("Scheduled event " + scheduleResponse.getEventDefinitionOID()
                 + " for subject " + scheduleResponse.getStudySubjectOID()
                 + " with ordinal + " + scheduleResponse.getStudyEventOrdinal());
@@ -324,13 +433,18 @@ public class OCWebServices extends OCConnector {
         CreateRequest request = new CreateRequest();
         request.getStudySubject().add(newStudySubject);
         CreateResponse createResponse;
+        OperationTimer timer = startOperation("studySubject.create");
         try {
             createResponse = studySubjectBinding.create(request);
         } catch (Exception e) {
+            timer.failed();
+            timer.stop();
             throw new OCConnectorException("Exception while calling OpenClinica web service. " + e.getMessage(), e);
         }
-        checkResponseExceptions(createResponse.getResult(), createResponse.getError());
+        checkResponseExceptions(timer, createResponse.getResult(), createResponse.getError());
+        forgetSubjectLookup(studySubject); // no longer absent
         studySubject.setStudySubjectLabel(createResponse.getLabel());
+        forgetSubjectLookup(studySubject);
         return createResponse;
     }
 
@@ -350,12 +464,15 @@ public class OCWebServices extends OCConnector {
         // TODO: See OC manual on limitations which are the main motivation
         // for this code in the first place
         ImportResponse response;
+        OperationTimer timer = startOperation("data.import");
         try {
             response = dataBinding.dataImport(odm);
         } catch (Exception e) {
+            timer.failed();
+            timer.stop();
             throw new OCConnectorException("Exception while calling OpenClinica web service." + e.getMessage(), e);
         }
-        checkResponseExceptions(response.getResult(), response.getError());
+        checkResponseExceptions(timer, response.getResult(), response.getError());
         return response;
     }
 
@@ -421,25 +538,40 @@ public class OCWebServices extends OCConnector {
         request.setStudyMetadata(siteRef);
         GetMetadataResponse response;
         MetadataODM ret;
+        OperationTimer timer = startOperation("study.getMetadata");
         try {
             response = studyBinding.getMetadata(request);
             ret = new MetadataODM(response.getOdm());
         } catch (Exception e) {
+            timer.failed();
+            timer.stop();
             throw new OCConnectorException("Exception while calling OpenClinica web service. " + e.getMessage(), e);
         }
-        checkResponseExceptions(response.getResult(), response.getError());
+        checkResponseExceptions(timer, response.getResult(), response.getError());
         return ret;
     }
 
     /**
-     * Retrieve event definitions for a given study.
+     * Retrieve event definitions for a given study. Concurrent calls for the
+     * same study share a single web service call; each gets a list of its
+     * own. See getEventDefinitions() for cached definitions.
      *
      * @param study the study to query for.
      * @return a list of Event objects based on the study provided.
      * @throws OCConnectorException
      * @throws DatatypeConfigurationException
      */
-    public ArrayList<Event> fetchEventDefinitions(Study study) throws OCConnectorException {
+    public ArrayList<Event> fetchEventDefinitions(final Study study) throws OCConnectorException {
+        return new ArrayList<Event>(eventDefinitionLists.execute(cacheScope() + "studyEventDefinition.listAll "
+                + study.getStudyName(), new Callable<ArrayList<Event>>() {
+            @Override
+            public ArrayList<Event> call() throws OCConnectorException {
+                return callFetchEventDefinitions(study);
+            }
+        }));
+    }
+
+    private ArrayList<Event> callFetchEventDefinitions(Study study) throws OCConnectorException {
         ArrayList<Event> result = new ArrayList<Event>();
         StudyEventDefinitionListAllType studyEventDefinitionListAllType = new StudyEventDefinitionListAllType();
         StudyRefType studyRef = new StudyRefType();
@@ -449,13 +581,16 @@ public class OCWebServices extends OCConnector {
         listAllRequest.setStudyEventDefinitionListAll(studyEventDefinitionListAllType);
         org.openclinica.ws.studyeventdefinition.v1.ListAllResponse listAllResponse;
 
+        OperationTimer timer = startOperation("studyEventDefinition.listAll");
         try {
             listAllResponse = studyEventDefinitionBinding.listAll(listAllRequest);
         } catch (Exception e) {
+            timer.failed();
+            timer.stop();
             throw new OCConnectorException("Exception while calling OpenClinica web service. " + e.getMessage(), e);
         }
 
-        checkResponseExceptions(listAllResponse.getResult(), listAllResponse.getError());
+        checkResponseExceptions(timer, listAllResponse.getResult(), listAllResponse.getError());
         if (listAllResponse.getStudyEventDefinitions().getStudyEventDefinition() == null) {
             throw new OCConnectorException("Cannot retreive event data or no events defined.");
         }
@@ -468,6 +603,107 @@ public class OCWebServices extends OCConnector {
         return result;
     }
 
+    /**
+     * Get the event definitions of a study, as fetched by
+     * fetchEventDefinitions() no longer than the event definition TTL ago.
+     * Definitions are cached per study identifier, so the sites of a study
+     * share those of the study, and shared by all calls made with the same
+     * credentials.
+     *
+     * @param study the study
+     * @return a new list of the (shared) events defined in the study
+     * @throws OCConnectorException
+     */
+    public ArrayList<Event> getEventDefinitions(Study study) throws OCConnectorException {
+        String key = cacheScope() + study.getStudyName();
+        EventDefinitions cached;
+        synchronized (eventDefinitions) {
+            cached = eventDefinitions.get(key);
+        }
+        if (cached == null || cached.isExpired(eventDefinitionTTL)) {
+            cached = new EventDefinitions(fetchEventDefinitions(study));
+            synchronized (eventDefinitions) {
+                eventDefinitions.put(key, cached);
+            }
+        }
+        return new ArrayList<Event>(cached.events);
+    }
+
+    /**
+     * Fetch the event definitions of a study again, e.g. when an event is not
+     * found among those cached as it may have been defined since. As
+     * getEventDefinitions(), but never taken from the cache.
+     *
+     * @param study the study
+     * @return a new list of the events defined in the study
+     * @throws OCConnectorException
+     */
+    public ArrayList<Event> refreshEventDefinitions(Study study) throws OCConnectorException {
+        synchronized (eventDefinitions) {
+            eventDefinitions.remove(cacheScope() + study.getStudyName());
+        }
+        return getEventDefinitions(study);
+    }
+
+    /**
+     * Check whether the event definitions of a study are cached and current,
+     * in which case getEventDefinitions() makes no web service call
+     *
+     * @param study the study
+     * @return true if cached definitions have not expired
+     */
+    public boolean hasEventDefinitions(Study study) {
+        synchronized (eventDefinitions) {
+            EventDefinitions cached = eventDefinitions.get(cacheScope() + study.getStudyName());
+            return cached != null && !cached.isExpired(eventDefinitionTTL);
+        }
+    }
+
+    /**
+     * Forget all event definitions fetched
+     */
+    public void clearEventDefinitions() {
+        synchronized (eventDefinitions) {
+            eventDefinitions.clear();
+        }
+    }
+
+    /**
+     * @return time to live of cached event definitions in milliseconds
+     */
+    public long getEventDefinitionTTL() {
+        return eventDefinitionTTL;
+    }
+
+    /**
+     * Set the time to live of cached event definitions. Events defined since
+     * are found anyway by resolvers, which refresh the definitions of a study
+     * before rejecting an event as undefined.
+     *
+     * @param eventDefinitionTTL time to live in milliseconds, 0 to fetch the
+     * definitions every time
+     */
+    public void setEventDefinitionTTL(long eventDefinitionTTL) {
+        this.eventDefinitionTTL = eventDefinitionTTL;
+    }
+
+    /**
+     * The event definitions of a study and the time they were fetched
+     */
+    private static class EventDefinitions {
+
+        private final List<Event> events;
+        private final long created = System.currentTimeMillis();
+
+        EventDefinitions(List<Event> events) {
+            this.events = events;
+        }
+
+        boolean isExpired(long ttl) {
+            return System.currentTimeMillis() - created >= ttl;
+        }
+    }
+
     /**
      * Verifies a a subject with an identifier is enrolled in a study. Aborts
      * with an exception if this is not the case
@@ -483,10 +719,12 @@ public class OCWebServices extends OCConnector {
     }
 
     /**
-     * Find a study based on either a OID or a study name by calling the
-     * OpenClinica listAllStudies() method. (so, this method performs a WS call.
-     * Used the overloaded findStudy() to use an existing ListAllResponse object
-     * to search in.
+     * Find a study based on either a OID or a study name in the study
+     * directory (see getStudyDirectory()). The OpenClinica listAllStudies()
+     * method is only called if the directory has expired, or if the study is
+     * not in it and the directory has not just been fetched, as the study may
+     * have been added since. Used the overloaded findStudy() to use an
+     * existing ListAllResponse object to search in.
      *
      * @param studyIdentifier the string to look for
      * @param byOID set to true if studyIdentifier is an OID
@@ -495,8 +733,112 @@ public class OCWebServices extends OCConnector {
      * @throws OCConnectorException
      */
     public Study findStudy(String studyIdentifier, boolean byOID) throws OCConnectorException {
-        ListAllResponse allStudies = listAllStudies();
-        return findStudy(allStudies, studyIdentifier, byOID);
+        long start = System.currentTimeMillis();
+        StudyDirectory directory = getStudyDirectory();
+        Study result = directory.find(studyIdentifier, byOID);
+        if (result == null && directory.getCreated() <= start) { // not (just) fetched for this lookup
+            directory = refreshStudyDirectory(directory);
+            result = directory.find(studyIdentifier, byOID);
+        }
+        if (result == null) {
+            throw new OCConnectorException("Study '" + studyIdentifier + "' does not exist or user not associated with study");
+        }
+        return result;
+    }
+
+    /**
+     * Get the studies and sites accessible, as listed by listAllStudies() no
+     * longer than the study directory TTL ago. The directory is shared by all
+     * calls made with the same credentials. The studies are listed without
+     * holding the lock on the directory; concurrent callers share the call,
+     * see listAllStudies().
+     *
+     * @return the study directory
+     * @throws OCConnectorException
+     */
+    public StudyDirectory getStudyDirectory() throws OCConnectorException {
+        String scope = cacheScope();
+        synchronized (studyDirectoryLock) {
+            if (isStudyDirectoryCurrent(scope)) {
+                return studyDirectory;
+            }
+        }
+        StudyDirectory listed = new StudyDirectory(listAllStudies());
+        synchronized (studyDirectoryLock) {
+            if (!isStudyDirectoryCurrent(scope)) { // not published by another thread meanwhile
+                studyDirectory = listed;
+                studyDirectoryScope = scope;
+                logger.info("Listed " + studyDirectory + " at " + getBaseURL());
+            }
+            return studyDirectory;
+        }
+    }
+
+    /**
+     * List the studies again, unless another thread did so since the given
+     * directory was handed out
+     *
+     * @param stale the directory found wanting
+     * @return the current directory
+     * @throws OCConnectorException
+     */
+    private StudyDirectory refreshStudyDirectory(StudyDirectory stale) throws OCConnectorException {
+        synchronized (studyDirectoryLock) {
+            if (studyDirectory == stale) {
+                studyDirectory = null;
+            }
+        }
+        return getStudyDirectory();
+    }
+
+    /**
+     * Check whether the study directory is cached and current, in which case
+     * findStudy(String, boolean) makes no web service call for studies in it
+     *
+     * @return true if the study directory has not expired
+     */
+    public boolean hasStudyDirectory() {
+        String scope = cacheScope();
+        synchronized (studyDirectoryLock) {
+            return isStudyDirectoryCurrent(scope);
+        }
+    }
+
+    /**
+     * Call holding studyDirectoryLock
+     */
+    private boolean isStudyDirectoryCurrent(String scope) {
+        return studyDirectory != null && scope.equals(studyDirectoryScope)
+                && !studyDirectory.isExpired(studyDirectoryTTL);
+    }
+
+    /**
+     * Forget the studies listed, so they are listed again when needed
+     */
+    public void clearStudyDirectory() {
+        synchronized (studyDirectoryLock) {
+            studyDirectory = null;
+        }
+    }
+
+    /**
+     * @return time to live of the study directory in milliseconds
+     */
+    public long getStudyDirectoryTTL() {
+        return studyDirectoryTTL;
+    }
+
+    /**
+     * Set the time to live of the study directory. Studies (and sites) added
+     * to OpenClinica are found anyway, as a study not in the directory makes
+     * it be listed again; the TTL bounds how long studies removed, or access
+     * revoked, go unnoticed.
+     *
+     * @param studyDirectoryTTL time to live in milliseconds, 0 to list the
+     * studies for every lookup
+     */
+    public void setStudyDirectoryTTL(long studyDirectoryTTL) {
+        this.studyDirectoryTTL = studyDirectoryTTL;
     }
 
     /**
@@ -607,7 +949,7 @@ public class OCWebServices extends OCConnector {
                 subjectLabels.put(s.getStudySubjectLabel(), s);
             }
         }
-        study.setEvents(fetchEventDefinitions(study)); // get events
+        study.setEvents(getEventDefinitions(study)); // get events
         ListAllByStudyResponse subjectsByStudy = listAllByStudy(study); // get all subjects
         if (subjectsByStudy.getStudySubjects() != null) {
             if (subjectsByStudy.getStudySubjects().getStudySubject() != null) {
@@ -644,15 +986,178 @@ public class OCWebServices extends OCConnector {
     }
 
     /**
-     * Call the isStudySubject() OpenClinica method in order to fetch and update
-     * the OID of a given StudySubject.
+     * Call the isStudySubject() OpenClinica method in order to fetch the OID
+     * of a given StudySubject. The result is taken from the cache kept by
+     * findSubjectOID().
      *
      * @param subject The study subject to be updated
+     * @return the OID of the subject
      * @throws DatatypeConfigurationException
-     * @throws OCConnectorException
+     * @throws OCConnectorException if the subject does not exist
      */
     public String getSubjectOID(StudySubject subject) throws OCConnectorException {
-        IsStudySubjectResponse response = isStudySubject(subject);
-        return response.getStudySubjectOID();
+        SubjectLookup lookup = lookUpSubject(subject);
+        if (lookup.oid == null) {
+            throw new OCConnectorException(lookup.error);
+        }
+        return lookup.oid;
+    }
+
+    /**
+     * Find the OID of a given StudySubject with the isStudySubject()
+     * OpenClinica method. Results, both the OIDs found and the subjects found
+     * not to exist, are cached per study (and site) and label for the subject
+     * lookup TTL; creating a subject with createStudySubject() invalidates its
+     * cached result. Other errors are not cached.
+     *
+     * @param subject the study subject to look for
+     * @return the OID of the subject, null if it does not exist
+     * @throws OCConnectorException if OpenClinica cannot be reached, or
+     * returns an error other than that the subject does not exist
+     */
+    public String findSubjectOID(StudySubject subject) throws OCConnectorException {
+        return lookUpSubject(subject).oid;
+    }
+
+    private SubjectLookup lookUpSubject(StudySubject subject) throws OCConnectorException {
+        String key = subjectLookupKey(subject);
+        SubjectLookup lookup;
+        long generation;
+        synchronized (subjectLookups) {
+            lookup = subjectLookups.get(key);
+            generation = subjectLookupGeneration;
+        }
+        if (lookup == null || lookup.isExpired(subjectLookupTTL)) {
+            OperationTimer timer = startOperation("studySubject.isStudySubject");
+            IsStudySubjectResponse response = callIsStudySubject(timer, subject, true);
+            if (STATUS_FAIL.equals(response.getResult()) && !isSubjectNotFound(response.getError())) {
+                // e.g. an unknown study or no access to it: reported, not cached
+                checkResponseExceptions(timer, response.getResult(), response.getError());
+            }
+            timer.stop();
+            if (STATUS_FAIL.equals(response.getResult())) {
+                StringBuffer msg = new StringBuffer();
+                for (String error : response.getError()) {
+                    msg.append(error + "\n");
+                }
+                lookup = new SubjectLookup(null, "An error was returned by OpenClinica web services:\n" + msg);
+            } else {
+                lookup = new SubjectLookup(response.getStudySubjectOID(), null);
+            }
+            synchronized (subjectLookups) {
+                subjectLookups.remove(key); // re-insert as the newest
+                if (generation == subjectLookupGeneration) { // not possibly stale, e.g. created meanwhile
+                    subjectLookups.put(key, lookup);
+                }
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * Check whether the errors of a failed isStudySubject() call say the
+     * subject does not exist, rather than e.g. that the study does not
+     */
+    private static boolean isSubjectNotFound(List<String> errors) {
+        for (String error : errors) {
+            String message = error == null ? "" : error.toLowerCase(Locale.ENGLISH);
+            if (message.contains("subject") && message.contains("not exist")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void forgetSubjectLookup(StudySubject subject) {
+        synchronized (subjectLookups) {
+            subjectLookups.remove(subjectLookupKey(subject));
+            subjectLookupGeneration++;
+        }
+    }
+
+    private String subjectLookupKey(StudySubject subject) {
+        Study study = subject.getStudy();
+        return cacheScope() + study.getStudyName() + "\n" + (study.hasSiteName() ? study.getSiteName() : "") + "\n"
+                + subject.getStudySubjectLabel();
+    }
+
+    /**
+     * Forget the studies, event definitions and isStudySubject() results
+     * cached, e.g. at the end of a batch
+     */
+    public void clearCaches() {
+        clearStudyDirectory();
+        clearEventDefinitions();
+        clearSubjectLookups();
+    }
+
+    /**
+     * Prefix of the keys of cached (and in flight) results, so they are only
+     * shared by calls made as the same user to the same server, also when the
+     * credentials of this connector are changed
+     */
+    private String cacheScope() {
+        return getUserName() + "@" + getBaseURL() + "\n";
+    }
+
+    /**
+     * Forget all isStudySubject() results
+     */
+    public void clearSubjectLookups() {
+        synchronized (subjectLookups) {
+            subjectLookups.clear();
+            subjectLookupGeneration++;
+        }
+    }
+
+    /**
+     * @return time to live of isStudySubject() results in milliseconds
+     */
+    public long getSubjectLookupTTL() {
+        return subjectLookupTTL;
+    }
+
+    /**
+     * Set the time to live of isStudySubject() results. Subjects created or
+     * removed by others go unnoticed for at most this long.
+     *
+     * @param subjectLookupTTL time to live in milliseconds, 0 to call
+     * isStudySubject() for every lookup
+     */
+    public void setSubjectLookupTTL(long subjectLookupTTL) {
+        this.subjectLookupTTL = subjectLookupTTL;
+    }
+
+    /**
+     * isStudySubject() results, dropping the oldest beyond MAX_SUBJECT_LOOKUPS
+     */
+    private static class SubjectLookups extends LinkedHashMap<String, SubjectLookup> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SubjectLookup> eldest) {
+            return size() > MAX_SUBJECT_LOOKUPS;
+        }
+    }
+
+    /**
+     * The OID of a study subject, or the error returned if it does not exist,
+     * and the time it was looked up
+     */
+    private static class SubjectLookup {
+
+        private final String oid;
+        private final String error;
+        private final long created = System.currentTimeMillis();
+
+        SubjectLookup(String oid, String error) {
+            this.oid = oid;
+            this.error = error;
+        }
+
+        boolean isExpired(long ttl) {
+            return System.currentTimeMillis() - created >= ttl;
+        }
     }
 }
@@ -0,0 +1,302 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.connect;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Limits on one operation (or all operations) against one server: a maximum
+ * number of calls in flight and a token bucket of calls per second, holding
+ * at most one second's worth of tokens. Either limit may be 0, for none.
+ *
+ * When adaptive, the limits in use are halved (at most once per second)
+ * while calls fail or take much longer than they used to: more than half of
+ * the recent calls failed, or the recent latency is over twice the long-term
+ * latency. They grow back to the configured limits by a step for every
+ * window of successful calls. Only calls that did not get through count as
+ * failed, not those the server answered with an error; the latency of
+ * data.import is not taken into account, as it grows with the chunk size.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class OperationLimiter implements OperationLimiterMBean {
+
+    private static final Logger logger = LogManager.getLogger(OperationLimiter.class);
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+    /**
+     * recent latency over long-term latency considered overload
+     */
+    private static final double LATENCY_FACTOR = 2.0;
+    /**
+     * recent error rate considered overload
+     */
+    private static final double ERROR_RATE = 0.5;
+    /**
+     * calls to measure before latency is taken into account
+     */
+    private static final int MIN_SAMPLES = 20;
+    /**
+     * minimum time between reductions
+     */
+    private static final long REDUCTION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * lowest rate, as a fraction of the configured rate
+     */
+    private static final double MIN_RATE_FRACTION = 0.1;
+    private final String server;
+    private final String operation;
+    private final int configuredMaxInFlight;
+    private final double configuredPermitsPerSecond;
+    private final boolean adaptive;
+    private int maxInFlight;
+    private double permitsPerSecond;
+    private double tokens;
+    private long refilled = System.nanoTime();
+    private int inFlight;
+    private int waiting;
+    private long acquired;
+    private long throttled;
+    private long reductions;
+    private long reduced = System.nanoTime() - REDUCTION_INTERVAL_NANOS;
+    private int successes;
+    private long samples;
+    private double recentLatency;
+    private double latency;
+    private double errorRate;
+    /**
+     * replaced or removed: calls are no longer held back
+     */
+    private boolean closed;
+
+    /**
+     * Create a limiter
+     *
+     * @param server server base URL
+     * @param operation operation name, RequestGovernor.ALL_OPERATIONS for all
+     * @param maxInFlight maximum number of calls in flight, 0 for no maximum
+     * @param permitsPerSecond maximum number of calls per second, 0 for no
+     * maximum
+     * @param adaptive lower the limits when calls fail or slow down
+     */
+    public OperationLimiter(String server, String operation, int maxInFlight, double permitsPerSecond,
+            boolean adaptive) {
+        this.server = server;
+        this.operation = operation;
+        this.configuredMaxInFlight = Math.max(0, maxInFlight);
+        this.configuredPermitsPerSecond = Math.max(0, permitsPerSecond);
+        this.adaptive = adaptive;
+        reset();
+    }
+
+    /**
+     * Wait until a call may be made
+     *
+     * @throws InterruptedException
+     */
+    synchronized void acquire() throws InterruptedException {
+        boolean queued = false;
+        waiting++;
+        try {
+            while (!closed) {
+                if (maxInFlight > 0 && inFlight >= maxInFlight) {
+                    wait();
+                } else {
+                    long nanos = takeToken();
+                    if (nanos == 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                }
+                queued = true;
+            }
+        } finally {
+            waiting--;
+        }
+        inFlight++;
+        acquired++;
+        if (queued) {
+            throttled++;
+        }
+    }
+
+    /**
+     * Take a token from the bucket
+     *
+     * @return 0 if taken, otherwise the time until the next token
+     */
+    private long takeToken() {
+        if (permitsPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, permitsPerSecond), tokens + (now - refilled) * permitsPerSecond
+                / NANOS_PER_SECOND);
+        refilled = now;
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        return (long) ((1 - tokens) * NANOS_PER_SECOND / permitsPerSecond) + 1;
+    }
+
+    /**
+     * Report a call made after acquire() as done
+     *
+     * @param nanos duration of the call, negative if it is no sign of load
+     * @param failed whether the call failed to get through
+     */
+    synchronized void release(long nanos, boolean failed) {
+        inFlight--;
+        if (adaptive) {
+            adapt(nanos, failed);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Give back an acquire() not followed by a call
+     */
+    synchronized void cancel() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Stop limiting, letting the calls waiting through
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void adapt(long nanos, boolean failed) {
+        errorRate = errorRate * 0.9 + (failed ? 0.1 : 0);
+        if (!failed && nanos >= 0) {
+            samples++;
+            recentLatency = samples == 1 ? nanos : recentLatency * 0.8 + nanos * 0.2;
+            latency = samples == 1 ? nanos : latency * 0.98 + nanos * 0.02;
+        }
+        boolean overloaded = errorRate > ERROR_RATE
+                || (samples >= MIN_SAMPLES && recentLatency > LATENCY_FACTOR * latency);
+        long now = System.nanoTime();
+        if (overloaded) {
+            successes = 0;
+            if (now - reduced >= REDUCTION_INTERVAL_NANOS) {
+                reduced = now;
+                reductions++;
+                maxInFlight = configuredMaxInFlight > 0 ? Math.max(1, maxInFlight / 2) : 0;
+                permitsPerSecond = configuredPermitsPerSecond > 0
+                        ? Math.max(configuredPermitsPerSecond * MIN_RATE_FRACTION, permitsPerSecond / 2) : 0;
+                logger.info("Lowered limits of " + operation + " @ " + server + " to " + maxInFlight
+                        + " in flight, " + String.format("%.2f", permitsPerSecond) + " per second");
+            }
+        } else if (++successes >= Math.max(1, maxInFlight)) {
+            successes = 0;
+            maxInFlight = Math.min(configuredMaxInFlight, maxInFlight + 1);
+            permitsPerSecond = Math.min(configuredPermitsPerSecond,
+                    permitsPerSecond + configuredPermitsPerSecond * MIN_RATE_FRACTION);
+        }
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public String getServer() {
+        return server;
+    }
+
+    @Override
+    public int getConfiguredMaxInFlight() {
+        return configuredMaxInFlight;
+    }
+
+    @Override
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public double getConfiguredPermitsPerSecond() {
+        return configuredPermitsPerSecond;
+    }
+
+    @Override
+    public synchronized double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized int getQueueDepth() {
+        return waiting;
+    }
+
+    @Override
+    public synchronized long getAcquired() {
+        return acquired;
+    }
+
+    @Override
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public synchronized long getReductions() {
+        return reductions;
+    }
+
+    /**
+     * @return whether the limits are lowered when calls fail or slow down
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Restore the configured limits and forget the calls seen
+     */
+    @Override
+    public synchronized void reset() {
+        maxInFlight = configuredMaxInFlight;
+        permitsPerSecond = configuredPermitsPerSecond;
+        tokens = Math.max(1, permitsPerSecond);
+        successes = 0;
+        samples = 0;
+        recentLatency = 0;
+        latency = 0;
+        errorRate = 0;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return operation + " @ " + server + ": " + inFlight + "/" + maxInFlight + " in flight, "
+                + String.format("%.2f", permitsPerSecond) + " per second, " + waiting + " waiting, " + throttled
+                + " of " + acquired + " throttled, " + reductions + " reductions";
+    }
+}
@@ -0,0 +1,48 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.connect;
+
+/**
+ * JMX view of the limits on one operation against one server.
+ */
+public interface OperationLimiterMBean {
+
+    String getOperation();
+
+    String getServer();
+
+    int getConfiguredMaxInFlight();
+
+    int getMaxInFlight();
+
+    double getConfiguredPermitsPerSecond();
+
+    double getPermitsPerSecond();
+
+    int getInFlight();
+
+    int getQueueDepth();
+
+    long getAcquired();
+
+    long getThrottled();
+
+    long getReductions();
+
+    void reset();
+}
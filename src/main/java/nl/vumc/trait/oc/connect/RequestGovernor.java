@@ -0,0 +1,231 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.connect;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import nl.vumc.trait.oc.metrics.JmxMetricsRegistry;
+import nl.vumc.trait.oc.metrics.Metrics;
+
+/**
+ * Keeps the web service calls to one server within limits, so parallel
+ * resolving and uploading does not overwhelm a small OpenClinica instance.
+ * Limits (see OperationLimiter) are set per operation, e.g. fewer concurrent
+ * data.import than studySubject.isStudySubject calls, and for all operations
+ * together (ALL_OPERATIONS). A call waits for the limits of its operation
+ * first, then for those of all operations. Without limits, calls are made
+ * straight away.
+ *
+ * There is one governor per base URL, shared by all connectors to that
+ * server; OCConnector.startOperation() waits for it. The limiters are
+ * registered with JMX as
+ * <code>nl.vumc.trait.oc:type=governor,server="&lt;url&gt;",name=&lt;operation&gt;</code>
+ * and the time spent waiting is recorded as the latency of the "governor"
+ * component.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class RequestGovernor {
+
+    /**
+     * operation name of the limits on all operations together
+     */
+    public static final String ALL_OPERATIONS = "*";
+    /**
+     * operations taking as long as what is sent takes to process, e.g. the
+     * chunk of items imported, whose latency is no sign of load
+     */
+    private static final Set<String> SIZED_OPERATIONS = Collections.singleton("data.import");
+    /**
+     * governors by base URL
+     */
+    private static final ConcurrentMap<String, RequestGovernor> governors =
+            new ConcurrentHashMap<String, RequestGovernor>();
+    private final String server;
+    /**
+     * limiters by operation name
+     */
+    private final ConcurrentMap<String, OperationLimiter> limiters = new ConcurrentHashMap<String, OperationLimiter>();
+
+    private RequestGovernor(String server) {
+        this.server = server;
+    }
+
+    /**
+     * Get (or create) the governor of a server
+     *
+     * @param baseURL server base URL
+     * @return the governor
+     */
+    public static RequestGovernor forServer(String baseURL) {
+        String key = String.valueOf(baseURL);
+        RequestGovernor governor = governors.get(key);
+        if (governor == null) {
+            RequestGovernor created = new RequestGovernor(key);
+            governor = governors.putIfAbsent(key, created);
+            if (governor == null) {
+                governor = created;
+            }
+        }
+        return governor;
+    }
+
+    /**
+     * Limit the calls of an operation, adapting the limits to the server
+     *
+     * @param operation operation name, e.g. data.import, or ALL_OPERATIONS
+     * @param maxInFlight maximum number of calls in flight, 0 for no maximum
+     * @param permitsPerSecond maximum number of calls per second, 0 for no
+     * maximum
+     */
+    public void setLimit(String operation, int maxInFlight, double permitsPerSecond) {
+        setLimit(operation, maxInFlight, permitsPerSecond, true);
+    }
+
+    /**
+     * Limit the calls of an operation. Calls waiting for the previous limits
+     * of the operation are let through.
+     *
+     * @param operation operation name, e.g. data.import, or ALL_OPERATIONS
+     * @param maxInFlight maximum number of calls in flight, 0 for no maximum
+     * @param permitsPerSecond maximum number of calls per second, 0 for no
+     * maximum
+     * @param adaptive lower the limits when calls fail or slow down
+     */
+    public void setLimit(String operation, int maxInFlight, double permitsPerSecond, boolean adaptive) {
+        OperationLimiter previous;
+        if (maxInFlight > 0 || permitsPerSecond > 0) {
+            previous = limiters.put(operation,
+                    new OperationLimiter(server, operation, maxInFlight, permitsPerSecond, adaptive));
+        } else {
+            previous = limiters.remove(operation);
+        }
+        if (previous != null) {
+            JmxMetricsRegistry.unregisterMBean(Metrics.COMPONENT_GOVERNOR, server, operation);
+            previous.close();
+        }
+        OperationLimiter limiter = limiters.get(operation);
+        if (limiter != null) {
+            JmxMetricsRegistry.registerMBean(limiter, Metrics.COMPONENT_GOVERNOR, server, operation);
+        }
+    }
+
+    /**
+     * @param operation operation name, or ALL_OPERATIONS
+     * @return the limiter of the operation, null if not limited
+     */
+    public OperationLimiter getLimiter(String operation) {
+        return limiters.get(operation);
+    }
+
+    /**
+     * @return the limiters
+     */
+    public Collection<OperationLimiter> getLimiters() {
+        return new ArrayList<OperationLimiter>(limiters.values());
+    }
+
+    /**
+     * Remove all limits
+     */
+    public void clear() {
+        for (String operation : new ArrayList<String>(limiters.keySet())) {
+            setLimit(operation, 0, 0);
+        }
+    }
+
+    /**
+     * Wait until an operation may be called
+     *
+     * @param operation operation name
+     * @return the permit to release when the call is done, null if the
+     * operation is not limited
+     * @throws InterruptedException
+     */
+    Permit acquire(String operation) throws InterruptedException {
+        if (limiters.isEmpty()) {
+            return null;
+        }
+        OperationLimiter limiter = limiters.get(operation);
+        OperationLimiter all = limiters.get(ALL_OPERATIONS);
+        if (limiter == null && all == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        if (limiter != null) {
+            limiter.acquire();
+        }
+        if (all != null) {
+            try {
+                all.acquire();
+            } catch (InterruptedException e) {
+                if (limiter != null) {
+                    limiter.cancel();
+                }
+                throw e;
+            }
+        }
+        Metrics.getRegistry().recordLatency(Metrics.COMPONENT_GOVERNOR, operation, server, System.nanoTime() - start);
+        return new Permit(limiter, all, !SIZED_OPERATIONS.contains(operation));
+    }
+
+    /**
+     * @return server base URL
+     */
+    public String getServer() {
+        return server;
+    }
+
+    @Override
+    public String toString() {
+        return "governor @ " + server + ": " + limiters.values();
+    }
+
+    /**
+     * The right to make a call, held until the call is done
+     */
+    static class Permit {
+
+        private final OperationLimiter limiter;
+        private final OperationLimiter all;
+        /**
+         * whether the duration of the call is a sign of load
+         */
+        private final boolean timed;
+
+        Permit(OperationLimiter limiter, OperationLimiter all, boolean timed) {
+            this.limiter = limiter;
+            this.all = all;
+            this.timed = timed;
+        }
+
+        void release(long nanos, boolean failed) {
+            long latency = timed ? nanos : -1;
+            if (all != null) {
+                all.release(latency, failed);
+            }
+            if (limiter != null) {
+                limiter.release(latency, failed);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.connect;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical calls: while a call for a key is in flight,
+ * callers asking for the same key wait for it and share its result (or its
+ * exception) instead of making a call of their own. Nothing is cached; a call
+ * for a key made after the previous one has returned is made again.
+ *
+ * @param <V> result type
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class SingleFlight<V> {
+
+    /**
+     * calls in flight by key
+     */
+    private final Map<String, FutureTask<V>> inFlight = new HashMap<String, FutureTask<V>>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Make a call, or join the identical call in flight
+     *
+     * @param key identifies the call, e.g. operation and study
+     * @param call the call to make if none is in flight for key
+     * @return the result of the call
+     * @throws OCConnectorException as thrown by the call, or if interrupted
+     * while waiting for it
+     */
+    public V execute(String key, Callable<V> call) throws OCConnectorException {
+        FutureTask<V> task;
+        boolean leader = false;
+        synchronized (inFlight) {
+            task = inFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<V>(call);
+                inFlight.put(key, task);
+                leader = true;
+            }
+        }
+        if (leader) {
+            calls.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                synchronized (inFlight) {
+                    inFlight.remove(key);
+                }
+            }
+        } else {
+            shared.incrementAndGet();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OCConnectorException("Interrupted while waiting for " + key, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OCConnectorException) {
+                throw (OCConnectorException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new OCConnectorException(e.getCause());
+        }
+    }
+
+    /**
+     * @return number of calls made
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return number of times a caller joined a call in flight instead
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    @Override
+    public String toString() {
+        return "calls: " + calls + ", shared: " + shared;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.connect;
+
+import java.util.HashMap;
+import java.util.Map;
+import nl.vumc.trait.oc.types.Study;
+import org.openclinica.ws.beans.SiteType;
+import org.openclinica.ws.beans.StudyType;
+import org.openclinica.ws.study.v1.ListAllResponse;
+
+/**
+ * The studies and sites of a listAllStudies() response, indexed by
+ * identifier and by OID. A directory is built once and not changed
+ * afterwards, so it can be shared by any number of threads. Lookups give the
+ * same study as OCWebServices.findStudy(ListAllResponse, ...) would: when an
+ * identifier is used more than once the study or site listed first wins, a
+ * study before its own sites.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class StudyDirectory {
+
+    /**
+     * studies and sites by identifier
+     */
+    private final Map<String, Entry> byIdentifier = new HashMap<String, Entry>();
+    /**
+     * studies and sites by OID
+     */
+    private final Map<String, Entry> byOID = new HashMap<String, Entry>();
+    /**
+     * time the directory was built, System.currentTimeMillis()
+     */
+    private final long created;
+    private int studies;
+    private int sites;
+
+    /**
+     * Index a listAllStudies() response
+     *
+     * @param allStudies the response
+     */
+    public StudyDirectory(ListAllResponse allStudies) {
+        created = System.currentTimeMillis();
+        if (allStudies.getStudies() == null || allStudies.getStudies().getStudy() == null) {
+            return;
+        }
+        for (StudyType s : allStudies.getStudies().getStudy()) {
+            add(new Entry(s.getIdentifier(), null, s.getOid()), s.getIdentifier(), s.getOid());
+            studies++;
+            if (s.getSites() != null && s.getSites().getSite() != null) {
+                for (SiteType site : s.getSites().getSite()) {
+                    add(new Entry(s.getIdentifier(), site.getIdentifier(), site.getOid()), site.getIdentifier(),
+                            site.getOid());
+                    sites++;
+                }
+            }
+        }
+    }
+
+    private void add(Entry entry, String identifier, String oid) {
+        if (identifier != null && !byIdentifier.containsKey(identifier)) {
+            byIdentifier.put(identifier, entry);
+        }
+        if (oid != null && !byOID.containsKey(oid)) {
+            byOID.put(oid, entry);
+        }
+    }
+
+    /**
+     * Find a study or site
+     *
+     * @param studyIdentifier identifier or OID of the study or site
+     * @param byOID set to true if studyIdentifier is an OID
+     * @return a new Study object for the study or site, null if not found
+     */
+    public Study find(String studyIdentifier, boolean byOID) {
+        Entry entry = (byOID ? this.byOID : byIdentifier).get(studyIdentifier);
+        if (entry == null) {
+            return null;
+        }
+        Study study = new Study();
+        study.setStudyName(entry.studyName);
+        if (entry.siteName != null) {
+            study.setSiteName(entry.siteName);
+        }
+        study.setStudyOID(entry.oid);
+        return study;
+    }
+
+    /**
+     * @return time the directory was built, in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @param ttl time to live in milliseconds
+     * @return true if the directory is older than ttl
+     */
+    public boolean isExpired(long ttl) {
+        return System.currentTimeMillis() - created >= ttl;
+    }
+
+    @Override
+    public String toString() {
+        return "studies: " + studies + ", sites: " + sites;
+    }
+
+    /**
+     * A study or site, as a Study object would describe it
+     */
+    private static class Entry {
+
+        private final String studyName;
+        private final String siteName;
+        private final String oid;
+
+        Entry(String studyName, String siteName, String oid) {
+            this.studyName = studyName;
+            this.siteName = siteName;
+            this.oid = oid;
+        }
+    }
+}
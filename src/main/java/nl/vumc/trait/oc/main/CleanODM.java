@@ -18,17 +18,19 @@
 
 package nl.vumc.trait.oc.main;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
 
 import nl.vumc.trait.oc.connect.OCConnectorException;
 import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.odm.ClinicalODM;
 import nl.vumc.trait.oc.odm.ClinicalODMResolver;
 import nl.vumc.trait.oc.odm.ODMException;
+import nl.vumc.trait.oc.odm.ResolutionPlan;
 
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.ParseException;
@@ -43,8 +45,12 @@ public class CleanODM extends Main {
 
 	/** whether or not to resolve the ODM */
 	private boolean resolve;
+	/** whether or not to only report what resolving would do */
+	private boolean plan;
 	/** input file */
 	private String file;
+	/** output file, null for stdout */
+	private String output;
 
 	/**
 	 * Constructor from Main. Setup processing command line arguments.
@@ -79,8 +85,13 @@ public class CleanODM extends Main {
 		options.addOption(OptionBuilder.withLongOpt("file")
 				.withDescription("XML file containing the ClinicalData. A hyphen (-) means stdin.").hasArg()
 				.withArgName("file").isRequired(true).create("f"));
+		options.addOption(OptionBuilder.withLongOpt("output")
+				.withDescription("File to write the cleaned ODM to. Default stdout.").hasArg()
+				.withArgName("file").create("o"));
 		options.addOption("r", "resolve", false,
 				"Resolve ODM. This includes potentially creating subjects and scheduling events.");
+		options.addOption(null, "plan", false,
+				"Report what resolving and importing would do, without writing anything to OpenClinica.");
 		options.addOption("h", "help", false, "this help screen");
 		options.addOption("v", "verbose", false, "be (very) verbose");
 	}
@@ -96,7 +107,9 @@ public class CleanODM extends Main {
 				setDebug(true);
 			}
 			file = line.getOptionValue('f');
+			output = line.getOptionValue('o');
 			resolve = line.hasOption("resolve");
+			plan = line.hasOption("plan");
 			setConnectInfo(line.getOptionValue('b'), line.getOptionValue('u'), line.getOptionValue('p'));
 		}
 	}
@@ -105,18 +118,42 @@ public class CleanODM extends Main {
 	public void runCmd() throws ParserConfigurationException, DatatypeConfigurationException, ODMException,
 			OCConnectorException, SAXException, IOException {
 		OCWebServices connector = OCWebServices.getInstance(connectInfo, debug, false);
-		InputStream reader;
-		if (file.equals("-")) {
-			reader = System.in;
-		} else {
-			reader = new FileInputStream(file);
+		InputStream reader = openInput(file);
+		ClinicalODMResolver odm;
+		try {
+			odm = new ClinicalODMResolver(documentBuilder.parse(reader), connector, true);
+		} finally {
+			reader.close();
 		}
-		ClinicalODMResolver odm = new ClinicalODMResolver(documentBuilder.parse(reader), connector, true);
-		if (resolve) {
+		if (plan) {
+			ResolutionPlan resolutionPlan = odm.plan();
+			odm.estimateImport(resolutionPlan);
+			System.out.println(resolutionPlan.getSummary());
+		} else if (resolve) {
 			odm.resolveOdmDocument();
-			System.out.println(odm.extraClean());
+			write(odm.extraClean());
 		} else {
-			System.out.println(odm.clean());
+			write(odm);
+		}
+	}
+
+	/**
+	 * Stream ODM to the output file (or stdout)
+	 * @param odm ODM to write
+	 * @throws IOException 
+	 * @throws OCConnectorException 
+	 */
+	private void write(ClinicalODM odm) throws IOException, OCConnectorException {
+		OutputStream out = openOutput(output);
+		try {
+			odm.write(out);
+			out.write('\n');
+		} finally {
+			if (output == null || output.equals("-")) {
+				out.flush();
+			} else {
+				out.close();
+			}
 		}
 	}
 
@@ -17,25 +17,37 @@
  */
 package nl.vumc.trait.oc.main;
 
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
 
+import nl.vumc.trait.oc.connect.OCConnector.Compression;
 import nl.vumc.trait.oc.connect.OCConnectorException;
 import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.odm.AdaptiveChunkSizer;
+import nl.vumc.trait.oc.odm.ClinicalODM;
 import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import nl.vumc.trait.oc.odm.ImportJournal;
+import nl.vumc.trait.oc.odm.ItemValidator;
 import nl.vumc.trait.oc.odm.ODMException;
+import nl.vumc.trait.oc.odm.ResolutionPlan;
+import nl.vumc.trait.oc.odm.ResolverService;
+import nl.vumc.trait.oc.odm.SubjectLanes;
+import nl.vumc.trait.oc.odm.XMLUtils;
 
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.ParseException;
-import org.apache.log4j.LogManager;
-import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /**
@@ -45,11 +57,42 @@ import org.xml.sax.SAXException;
  */
 public class ImportODM extends Main {
 
-    private static final Logger logger = LogManager.getLogger(ImportODM.class);
     /**
      * input file
      */
     private String file;
+    /**
+     * whether or not to only report what importing would do
+     */
+    private boolean plan;
+    /**
+     * compression of web service traffic
+     */
+    private Compression compression;
+    /**
+     * journal directory, null for none
+     */
+    private String journal;
+    /**
+     * items to put in the first upload
+     */
+    private int chunkItems;
+    /**
+     * time an upload should take
+     */
+    private long chunkMillis;
+    /**
+     * whether or not to check the data against the study metadata first
+     */
+    private boolean validate;
+    /**
+     * file to write the subjects failing the checks to, null for none
+     */
+    private String quarantine;
+    /**
+     * number of subjects imported concurrently, 1 for one after the other
+     */
+    private int lanes;
 
     /**
      * Constructor from Main. Setup processing command line arguments.
@@ -86,6 +129,40 @@ public class ImportODM extends Main {
         options.addOption(OptionBuilder.withLongOpt("file")
                 .withDescription("XML file containing the ClinicalData. A hyphen (-) means stdin.").hasArg()
                 .withArgName("file").isRequired(true).create("f"));
+        options.addOption(null, "plan", false,
+                "Report what importing would do, without writing anything to OpenClinica.");
+        options.addOption(OptionBuilder.withLongOpt("journal")
+                .withDescription("Keep a journal of the import in this directory. Rerunning a failed import of "
+                + "the same file skips the work done already.").hasArg()
+                .withArgName("directory").create("j"));
+        options.addOption(OptionBuilder.withLongOpt("chunk-items")
+                .withDescription("Number of items to put in the first upload; later uploads are sized to take "
+                + "--chunk-millis. Default " + AdaptiveChunkSizer.DEFAULT_INITIAL_ITEMS + ".").hasArg()
+                .withArgName("items").create());
+        options.addOption(OptionBuilder.withLongOpt("chunk-millis")
+                .withDescription("Time an upload should take in milliseconds. Default "
+                + AdaptiveChunkSizer.DEFAULT_TARGET_MILLIS + ".").hasArg()
+                .withArgName("millis").create());
+        options.addOption(null, "validate", false,
+                "Check the data against the study metadata before uploading. Subjects failing the checks are "
+                + "not uploaded.");
+        options.addOption(OptionBuilder.withLongOpt("quarantine")
+                .withDescription("Write the subjects failing the --validate checks to this file.").hasArg()
+                .withArgName("file").create());
+        options.addOption(OptionBuilder.withLongOpt("lanes")
+                .withDescription("Import this many subjects concurrently. The data of a subject is still imported "
+                + "in document order. Cannot be combined with --journal. Default 1.").hasArg()
+                .withArgName("lanes").create());
+        options.addOption(OptionBuilder.withLongOpt("limit")
+                .withDescription("Limit the calls of a web service operation (e.g. data.import, or * for all "
+                + "operations together) to a number in flight and, optionally, a number per second, as "
+                + "operation=maxInFlight[/perSecond]. Limits are lowered while the server slows down or fails. "
+                + "May be repeated.").hasArg()
+                .withArgName("limit").create());
+        options.addOption(OptionBuilder.withLongOpt("compression")
+                .withDescription("Compress web service traffic: off (default), responses, or on (responses, and "
+                + "requests if the server accepts them).").hasArg()
+                .withArgName("mode").create());
         options.addOption("h", "help", false, "this help screen");
         options.addOption("v", "verbose", false, "be (very) verbose");
     }
@@ -101,7 +178,29 @@ public class ImportODM extends Main {
                 setDebug(true);
             }
             file = line.getOptionValue('f');
+            compression = parseCompression(line.getOptionValue("compression"));
+            plan = line.hasOption("plan");
+            journal = line.getOptionValue('j');
+            quarantine = line.getOptionValue("quarantine");
+            validate = line.hasOption("validate") || quarantine != null;
+            try {
+                chunkItems = Integer.parseInt(line.getOptionValue("chunk-items",
+                        String.valueOf(AdaptiveChunkSizer.DEFAULT_INITIAL_ITEMS)));
+                chunkMillis = Long.parseLong(line.getOptionValue("chunk-millis",
+                        String.valueOf(AdaptiveChunkSizer.DEFAULT_TARGET_MILLIS)));
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid chunk size: " + e.getMessage());
+            }
+            try {
+                lanes = Math.max(1, Integer.parseInt(line.getOptionValue("lanes", "1")));
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid number of lanes: " + e.getMessage());
+            }
+            if (lanes > 1 && journal != null) {
+                throw new ParseException("--lanes cannot be combined with --journal");
+            }
             setConnectInfo(line.getOptionValue('b'), line.getOptionValue('u'), line.getOptionValue('p'));
+            applyLimits(connectInfo.getBaseURL(), line.getOptionValues("limit"));
         }
     }
 
@@ -109,33 +208,142 @@ public class ImportODM extends Main {
     public void runCmd() throws ParserConfigurationException, DatatypeConfigurationException, ODMException,
             OCConnectorException, SAXException, IOException {
         OCWebServices connector = OCWebServices.getInstance(connectInfo, debug, false);
-        InputStream reader;
-        if (file.equals("-")) {
-            reader = System.in;
+        connector.setCompression(compression);
+        // the journal is keyed by the raw input, otherwise the input is parsed as it is read
+        byte[] input = null;
+        Document document;
+        if (journal != null && !plan) {
+            input = readFile(file);
+            document = documentBuilder.parse(new ByteArrayInputStream(input));
+        } else {
+            InputStream reader = openInput(file);
+            try {
+                document = documentBuilder.parse(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        if (lanes > 1 && !plan) {
+            importInLanes(document, connector);
+            return;
+        }
+        ClinicalODMResolver resolver = new ClinicalODMResolver(document, connector, true);
+        resolver.setChunkSizer(new AdaptiveChunkSizer(chunkItems, AdaptiveChunkSizer.DEFAULT_MIN_ITEMS,
+                AdaptiveChunkSizer.DEFAULT_MAX_ITEMS, chunkMillis));
+        if (validate) {
+            resolver.setValidator(new ItemValidator(connector));
+        }
+        if (plan) {
+            ResolutionPlan resolutionPlan = resolver.plan();
+            resolver.estimateImport(resolutionPlan);
+            System.out.println(resolutionPlan.getSummary());
+        } else if (journal != null) {
+            ImportJournal importJournal = ImportJournal.open(new File(journal), connectInfo.getBaseURL(), input);
+            resolver.setJournal(importJournal);
+            try {
+                resolver.resolveOdmDocument();
+                resolver.importClinicalData();
+            } finally {
+                importJournal.close();
+            }
         } else {
-            reader = new FileInputStream(file);
+            resolver.resolveOdmDocument();
+            resolver.importClinicalData();
         }
-        ClinicalODMResolver resolver = new ClinicalODMResolver(documentBuilder.parse(reader), connector, true);
-        resolver.resolveOdmDocument();
-        Document odmDoc = resolver.getOdm();
-        resolver.removeEventsOnlyToSchedule(odmDoc);
-        Node odmNode = resolver.getOdm().getFirstChild();
-        // bulk load -- chop up into ClinicaDatas...
-        NodeList clinicalDatas = resolver.xPath(odmNode, "//ClinicalData");
-        for (int i = 0; i < clinicalDatas.getLength(); ++i) {
-            odmNode.removeChild(clinicalDatas.item(i));
+        if (resolver.getQuarantinedCount() > 0) {
+            reportQuarantine(resolver.getQuarantinedCount(), resolver.getQuarantine().getOdm());
         }
-        for (int i = 0; i < clinicalDatas.getLength(); ++i) {
-            if (resolver.hasEventToUpload(clinicalDatas.item(i))) {
-                odmNode.appendChild(clinicalDatas.item(i));
-                resolver.setOdm(odmDoc); // important!
-                String dataToUpload = resolver.extraClean().toString();
-                resolver.getConnector().importODM(dataToUpload);
-                odmNode.removeChild(clinicalDatas.item(i));
-                logger.info("Uploaded data to " + resolver.getConnector().getBaseURL());
-                logger.info("Data " + dataToUpload);
-            } else {
-                logger.info("No events to upload found in node.");
+    }
+
+    /**
+     * Import a document in parallel lanes (see SubjectLanes): the subjects are
+     * partitioned by lane, and each lane resolves its share and imports it in
+     * chunks. All lanes are attempted; the first failure (in lane order) is
+     * rethrown afterwards.
+     *
+     * @param document the document
+     * @param connector OpenClinica web services
+     * @throws ODMException
+     * @throws OCConnectorException
+     * @throws IOException
+     */
+    private void importInLanes(Document document, OCWebServices connector) throws ODMException,
+            OCConnectorException, IOException {
+        final ResolverService service = new ResolverService(connector);
+        service.setChunkSizer(new AdaptiveChunkSizer(chunkItems, AdaptiveChunkSizer.DEFAULT_MIN_ITEMS,
+                AdaptiveChunkSizer.DEFAULT_MAX_ITEMS, chunkMillis));
+        if (validate) {
+            service.setValidator(new ItemValidator(connector));
+        }
+        SubjectLanes subjectLanes = new SubjectLanes(lanes);
+        List<Future<ClinicalODMResolver>> results = new ArrayList<Future<ClinicalODMResolver>>();
+        try {
+            for (final Document share : subjectLanes.partition(document)) {
+                results.add(subjectLanes.submit(SubjectLanes.key(share), new Callable<ClinicalODMResolver>() {
+                    @Override
+                    public ClinicalODMResolver call() throws Exception {
+                        ClinicalODMResolver resolver = service.newContext(share);
+                        resolver.resolveOdmDocument();
+                        resolver.importClinicalData();
+                        return resolver;
+                    }
+                }));
+            }
+        } finally {
+            subjectLanes.shutdown();
+        }
+        int quarantined = 0;
+        Document quarantinedData = null;
+        Exception failure = null;
+        for (Future<ClinicalODMResolver> result : results) {
+            try {
+                ClinicalODMResolver resolver = SubjectLanes.await(result);
+                if (resolver.getQuarantinedCount() > 0) {
+                    quarantined += resolver.getQuarantinedCount();
+                    Document odm = resolver.getQuarantine().getOdm();
+                    if (quarantinedData == null) {
+                        quarantinedData = odm;
+                    } else {
+                        Node root = quarantinedData.getDocumentElement();
+                        for (Node clinicalData : XMLUtils.children(odm.getDocumentElement(), "ClinicalData")) {
+                            root.appendChild(quarantinedData.importNode(clinicalData, true));
+                        }
+                    }
+                }
+            } catch (ODMException e) {
+                failure = failure == null ? e : failure;
+            } catch (OCConnectorException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (quarantined > 0) {
+            reportQuarantine(quarantined, quarantinedData);
+        }
+        if (failure instanceof ODMException) {
+            throw (ODMException) failure;
+        } else if (failure != null) {
+            throw (OCConnectorException) failure;
+        }
+    }
+
+    /**
+     * Report the subjects that failed validation and write them to the
+     * quarantine file, if any
+     *
+     * @param count number of subjects
+     * @param quarantinedData the subjects
+     * @throws OCConnectorException
+     * @throws IOException
+     */
+    private void reportQuarantine(int count, Document quarantinedData) throws OCConnectorException, IOException {
+        System.err.println(count + " subject(s) failed validation and were not "
+                + "uploaded" + (quarantine != null ? ", see " + quarantine : ""));
+        if (quarantine != null) {
+            OutputStream out = openOutput(quarantine);
+            try {
+                new ClinicalODM(quarantinedData, false).write(out);
+            } finally {
+                out.close();
             }
         }
     }
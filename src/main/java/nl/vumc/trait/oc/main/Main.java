@@ -17,7 +17,14 @@
  */
 package nl.vumc.trait.oc.main;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Properties;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -35,7 +42,9 @@ import org.apache.commons.cli.PosixParser;
 import org.apache.log4j.BasicConfigurator;
 
 import nl.vumc.trait.oc.connect.ConnectInfo;
+import nl.vumc.trait.oc.connect.OCConnector.Compression;
 import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.connect.RequestGovernor;
 import nl.vumc.trait.oc.odm.NSContext;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
@@ -50,6 +59,10 @@ import org.apache.log4j.Logger;
 public abstract class Main {
 
     private static final Logger logger = LogManager.getLogger(Main.class);
+    /**
+     * buffer size for reading and writing files
+     */
+    protected static final int BUFFER_SIZE = 65536;
     /**
      * Document Builder Factory, used as a namespace aware document builder
      * factory.
@@ -209,6 +222,127 @@ public abstract class Main {
         connectInfo.setPassword(password);
     }
 
+    /**
+     * Read a stream up to its end and close it
+     *
+     * @param in the stream
+     * @return the bytes read
+     * @throws IOException
+     */
+    protected static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Read a file into an array of its exact size, without the copies
+     * readFully() makes. A hyphen (-) means stdin.
+     *
+     * @param file file name
+     * @return the bytes read
+     * @throws IOException
+     */
+    protected static byte[] readFile(String file) throws IOException {
+        if (file.equals("-")) {
+            return readFully(System.in);
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long size = in.getChannel().size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            byte[] result = new byte[(int) size];
+            int offset = 0;
+            int n;
+            while (offset < result.length && (n = in.read(result, offset, result.length - offset)) != -1) {
+                offset += n;
+            }
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Open a file for buffered reading. A hyphen (-) means stdin.
+     *
+     * @param file file name
+     * @return input stream
+     * @throws IOException
+     */
+    protected static InputStream openInput(String file) throws IOException {
+        return new BufferedInputStream(file.equals("-") ? System.in : new FileInputStream(file), BUFFER_SIZE);
+    }
+
+    /**
+     * Open a file for buffered writing. A hyphen (-) or null means stdout.
+     *
+     * @param file file name
+     * @return output stream, to be closed by the caller unless it is stdout
+     * @throws IOException
+     */
+    protected static OutputStream openOutput(String file) throws IOException {
+        return new BufferedOutputStream(file == null || file.equals("-") ? System.out : new FileOutputStream(file),
+                BUFFER_SIZE);
+    }
+
+    /**
+     * Parse the value of a --compression option
+     *
+     * @param value off, responses or on; null for off
+     * @return the compression
+     * @throws ParseException on any other value
+     */
+    protected static Compression parseCompression(String value) throws ParseException {
+        if (value == null) {
+            return Compression.OFF;
+        }
+        try {
+            return Compression.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Invalid compression: " + value);
+        }
+    }
+
+    /**
+     * Apply the values of --limit options to the calls to a server, see
+     * RequestGovernor
+     *
+     * @param baseURL server base URL
+     * @param values operation=maxInFlight[/perSecond] each, operation * for
+     * all operations together; null for none
+     * @throws ParseException on a malformed value
+     */
+    protected static void applyLimits(String baseURL, String[] values) throws ParseException {
+        if (values == null) {
+            return;
+        }
+        RequestGovernor governor = RequestGovernor.forServer(baseURL);
+        for (String value : values) {
+            int equals = value.indexOf('=');
+            if (equals <= 0) {
+                throw new ParseException("Invalid limit: " + value);
+            }
+            String[] limits = value.substring(equals + 1).split("/", 2);
+            try {
+                governor.setLimit(value.substring(0, equals), Integer.parseInt(limits[0]),
+                        limits.length > 1 ? Double.parseDouble(limits[1]) : 0);
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid limit: " + value);
+            }
+        }
+    }
+
     /**
      * Setup CLI options (series of options.addOption(....) and such)
      */
@@ -0,0 +1,184 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.ParserConfigurationException;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.odm.ClinicalODM;
+import nl.vumc.trait.oc.odm.SchemaValidator;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.ParseException;
+import org.xml.sax.SAXException;
+
+/**
+ * Validate ODM files against the OpenClinica ODM schema. Files are validated
+ * in parallel, each as it is read; directories are searched for .xml files.
+ * With --chunks every ClinicalData element is validated on its own, which
+ * tells the ClinicalData elements OpenClinica would reject.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class ValidateODM extends Main {
+
+    private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * files (and directories) to validate
+     */
+    private List<File> files;
+    /**
+     * number of files validated at the same time
+     */
+    private int threads;
+    /**
+     * whether or not to validate each ClinicalData on its own
+     */
+    private boolean chunks;
+
+    /**
+     * Constructor from Main. Setup processing command line arguments.
+     *
+     * @param command command string (see command attribute)
+     * @param args command line (i.e. as passed to main())
+     * @throws Exception
+     */
+    public ValidateODM(String command, String[] args) throws Exception {
+        super(command, args);
+    }
+
+    /**
+     * Constructor based on Main.
+     *
+     * @throws ParserConfigurationException
+     */
+    public ValidateODM() throws ParserConfigurationException {
+        super();
+    }
+
+    @SuppressWarnings("static-access")
+    @Override
+    protected void setupOptions() {
+        // create the Options; the connection options are accepted (the wrapper script passes them) but not used
+        options.addOption(OptionBuilder.withLongOpt("base-url").withDescription("ignored").hasArg()
+                .withArgName("URL").create("b"));
+        options.addOption(OptionBuilder.withLongOpt("user").withDescription("ignored").hasArg()
+                .withArgName("username").create("u"));
+        options.addOption(OptionBuilder.withLongOpt("password").withDescription("ignored").hasArg()
+                .withArgName("password").create("p"));
+        options.addOption(OptionBuilder.withLongOpt("threads")
+                .withDescription("Number of files validated at the same time. Default the number of processors.")
+                .hasArg().withArgName("threads").create("t"));
+        options.addOption(null, "chunks", false, "Validate each ClinicalData on its own.");
+        options.addOption("h", "help", false, "this help screen");
+        options.addOption("v", "verbose", false, "be (very) verbose");
+    }
+
+    @Override
+    protected void help() {
+        super.help();
+        System.out.println("Arguments: ODM files or directories holding them.");
+    }
+
+    @Override
+    protected void processArgs(String[] args) throws ParseException, OCConnectorException {
+        // parse the command line arguments
+        line = parser.parse(options, args);
+        if (line.hasOption("help")) {
+            help();
+        } else {
+            if (line.hasOption("verbose")) {
+                setDebug(true);
+            }
+            try {
+                threads = Math.max(1, Integer.parseInt(line.getOptionValue('t', String.valueOf(DEFAULT_THREADS))));
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid number: " + e.getMessage());
+            }
+            chunks = line.hasOption("chunks");
+            files = new ArrayList<File>();
+            for (String arg : line.getArgs()) {
+                if (arg.length() > 0) {
+                    files.add(new File(arg));
+                }
+            }
+            if (files.isEmpty()) {
+                throw new ParseException("No files given");
+            }
+        }
+    }
+
+    @Override
+    public void runCmd() throws OCConnectorException, SAXException, IOException {
+        if (line.hasOption("help")) {
+            return;
+        }
+        List<File> odmFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isFile() && child.getName().toLowerCase().endsWith(".xml")) {
+                        odmFiles.add(child);
+                    }
+                }
+            } else {
+                odmFiles.add(file);
+            }
+        }
+        SchemaValidator validator = new SchemaValidator();
+        int valid = 0;
+        if (chunks) {
+            for (File file : odmFiles) {
+                List<List<String>> results = validator.validateClinicalData(
+                        new ClinicalODM(documentBuilder.parse(file), false), threads);
+                boolean fileValid = true;
+                for (int i = 0; i < results.size(); ++i) {
+                    for (String problem : results.get(i)) {
+                        System.out.println(file + ": ClinicalData " + (i + 1) + ": " + problem);
+                        fileValid = false;
+                    }
+                }
+                valid += fileValid ? 1 : 0;
+            }
+        } else {
+            for (Map.Entry<File, List<String>> result : validator.validate(odmFiles, threads).entrySet()) {
+                for (String problem : result.getValue()) {
+                    System.out.println(problem);
+                }
+                valid += result.getValue().isEmpty() ? 1 : 0;
+            }
+        }
+        System.out.println(valid + " of " + odmFiles.size() + " files valid");
+    }
+
+    /**
+     * main()
+     *
+     * @param args command line arguments
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        new ValidateODM("validate", args);
+    }
+}
@@ -0,0 +1,448 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+
+import nl.vumc.trait.oc.connect.OCConnector.Compression;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.odm.AdaptiveChunkSizer;
+import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import nl.vumc.trait.oc.odm.ImportJournal;
+import nl.vumc.trait.oc.odm.ItemValidator;
+import nl.vumc.trait.oc.odm.ODMException;
+import nl.vumc.trait.oc.odm.ResolverService;
+
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Import the ODM files dropped in a spool directory. The directory is polled
+ * for *.xml files; a file is imported once it has not been modified for a
+ * polling interval, after which it is moved to the done or the failed
+ * directory (the latter along with a .error file holding the cause). All
+ * imports share a single connector and ResolverService, so the studies looked
+ * up for one file are reused for the next, until the cache expires. Every file
+ * gets a resolver of its own.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class WatchODM extends Main {
+
+    private static final Logger logger = LogManager.getLogger(WatchODM.class);
+    private static final int DEFAULT_THREADS = 1;
+    private static final long DEFAULT_INTERVAL = 2000;
+    private static final int DEFAULT_EXPIRE = 60;
+    /**
+     * files picked up by the spool scan
+     */
+    private static final FileFilter ODM_FILES = new FileFilter() {
+
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().toLowerCase().endsWith(".xml");
+        }
+    };
+    /**
+     * spool directory
+     */
+    private File spool;
+    /**
+     * directory to move imported files to
+     */
+    private File done;
+    /**
+     * directory to move failed files to
+     */
+    private File failed;
+    /**
+     * compression of web service traffic
+     */
+    private Compression compression;
+    /**
+     * whether or not to check the data against the study metadata first
+     */
+    private boolean validate;
+    /**
+     * journal directory, null for none
+     */
+    private File journal;
+    /**
+     * number of files imported at the same time
+     */
+    private int threads;
+    /**
+     * polling interval (ms)
+     */
+    private long interval;
+    /**
+     * time to keep the studies looked up (s)
+     */
+    private int expire;
+    /**
+     * files submitted, but not moved yet
+     */
+    private final Set<File> inProgress = new HashSet<File>();
+    /**
+     * per thread document builder, as those are not thread safe
+     */
+    private final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+    /**
+     * resolver service shared by the import threads
+     */
+    private ResolverService service;
+    /**
+     * time the study cache of the service was filled
+     */
+    private long timestamp;
+    private volatile boolean running;
+
+    /**
+     * Constructor from Main. Setup processing command line arguments.
+     *
+     * @param command command string (see command attribute)
+     * @param args command line (i.e. as passed to main())
+     * @throws Exception
+     */
+    public WatchODM(String command, String[] args) throws Exception {
+        super(command, args);
+    }
+
+    /**
+     * Constructor based on Main.
+     *
+     * @throws ParserConfigurationException
+     */
+    public WatchODM() throws ParserConfigurationException {
+        super();
+    }
+
+    @SuppressWarnings("static-access")
+    @Override
+    protected void setupOptions() {
+        // create the Options
+        options.addOption(OptionBuilder.withLongOpt("base-url")
+                .withDescription("OpenClinica base URL (i.e. https://www.example.org/OpenClinica-ws/)").hasArg()
+                .withArgName("URL").isRequired(true).create("b"));
+        options.addOption(OptionBuilder.withLongOpt("user").withDescription("OpenClinica username").hasArg()
+                .withArgName("username").isRequired(true).create("u"));
+        options.addOption(OptionBuilder.withLongOpt("password").withDescription("OpenClinica password").hasArg()
+                .withArgName("password").isRequired(true).create("p"));
+        options.addOption(OptionBuilder.withLongOpt("directory")
+                .withDescription("Spool directory to import *.xml files from. Write files under another name "
+                + "and rename them when complete.").hasArg()
+                .withArgName("directory").isRequired(true).create("d"));
+        options.addOption(OptionBuilder.withLongOpt("done")
+                .withDescription("Directory to move imported files to. Default <spool directory>/done.").hasArg()
+                .withArgName("directory").create());
+        options.addOption(OptionBuilder.withLongOpt("failed")
+                .withDescription("Directory to move failed files to. Default <spool directory>/failed.").hasArg()
+                .withArgName("directory").create());
+        options.addOption(OptionBuilder.withLongOpt("journal")
+                .withDescription("Keep a journal of each import in this directory. Putting a failed file back "
+                + "in the spool directory skips the work done already.").hasArg()
+                .withArgName("directory").create("j"));
+        options.addOption(OptionBuilder.withLongOpt("threads")
+                .withDescription("Number of files imported at the same time. Default " + DEFAULT_THREADS + ".")
+                .hasArg().withArgName("threads").create("t"));
+        options.addOption(OptionBuilder.withLongOpt("interval")
+                .withDescription("Polling interval in milliseconds. Default " + DEFAULT_INTERVAL + ".").hasArg()
+                .withArgName("millis").create());
+        options.addOption(OptionBuilder.withLongOpt("cache-seconds")
+                .withDescription("Time to keep the studies looked up in seconds. Default " + DEFAULT_EXPIRE + ".")
+                .hasArg().withArgName("seconds").create());
+        options.addOption(null, "validate", false,
+                "Check the data against the study metadata before uploading. Subjects failing the checks are "
+                + "not uploaded but written to <name>.quarantine.xml in the failed directory.");
+        options.addOption(OptionBuilder.withLongOpt("limit")
+                .withDescription("Limit the calls of a web service operation (e.g. data.import, or * for all "
+                + "operations together) to a number in flight and, optionally, a number per second, as "
+                + "operation=maxInFlight[/perSecond]. Limits are lowered while the server slows down or fails. "
+                + "May be repeated.").hasArg()
+                .withArgName("limit").create());
+        options.addOption(OptionBuilder.withLongOpt("compression")
+                .withDescription("Compress web service traffic: off (default), responses, or on (responses, and "
+                + "requests if the server accepts them).").hasArg()
+                .withArgName("mode").create());
+        options.addOption("h", "help", false, "this help screen");
+        options.addOption("v", "verbose", false, "be (very) verbose");
+    }
+
+    @Override
+    protected void processArgs(String[] args) throws ParseException, OCConnectorException {
+        // parse the command line arguments
+        line = parser.parse(options, args);
+        if (line.hasOption("help")) {
+            help();
+        } else {
+            if (line.hasOption("verbose")) {
+                setDebug(true);
+            }
+            spool = new File(line.getOptionValue('d'));
+            compression = parseCompression(line.getOptionValue("compression"));
+            validate = line.hasOption("validate");
+            done = new File(line.getOptionValue("done", new File(spool, "done").getPath()));
+            failed = new File(line.getOptionValue("failed", new File(spool, "failed").getPath()));
+            journal = line.hasOption('j') ? new File(line.getOptionValue('j')) : null;
+            try {
+                threads = Math.max(1, Integer.parseInt(line.getOptionValue('t', String.valueOf(DEFAULT_THREADS))));
+                interval = Long.parseLong(line.getOptionValue("interval", String.valueOf(DEFAULT_INTERVAL)));
+                expire = Integer.parseInt(line.getOptionValue("cache-seconds", String.valueOf(DEFAULT_EXPIRE)));
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid number: " + e.getMessage());
+            }
+            setConnectInfo(line.getOptionValue('b'), line.getOptionValue('u'), line.getOptionValue('p'));
+            applyLimits(connectInfo.getBaseURL(), line.getOptionValues("limit"));
+        }
+    }
+
+    @Override
+    public void runCmd() throws ParserConfigurationException, DatatypeConfigurationException, ODMException,
+            OCConnectorException, SAXException, IOException {
+        if (spool == null) { // help only
+            return;
+        }
+        final OCWebServices connector = OCWebServices.getInstance(connectInfo, debug, false);
+        connector.setCompression(compression);
+        connector.setStudyDirectoryTTL(expire * 1000L);
+        connector.setEventDefinitionTTL(expire * 1000L);
+        for (File directory : new File[]{spool, done, failed}) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create directory " + directory);
+            }
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        running = true;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            @Override
+            public void run() {
+                running = false;
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        logger.info("Watching " + spool + " with " + threads + " thread(s)");
+        try {
+            while (running) {
+                for (final File file : pending()) {
+                    executor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                process(file, connector);
+                            } finally {
+                                synchronized (inProgress) {
+                                    inProgress.remove(file);
+                                }
+                            }
+                        }
+                    });
+                }
+                Thread.sleep(interval);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Files in the spool directory that are ready to be imported: not
+     * modified for a polling interval and not submitted before. The files
+     * returned are marked as in progress.
+     *
+     * @return files, oldest first
+     */
+    List<File> pending() {
+        File[] files = spool.listFiles(ODM_FILES);
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 : a.lastModified() > b.lastModified() ? 1 : 0;
+            }
+        });
+        long settled = System.currentTimeMillis() - interval;
+        List<File> result = new ArrayList<File>();
+        synchronized (inProgress) {
+            for (File file : files) {
+                if (file.lastModified() <= settled && inProgress.add(file)) {
+                    result.add(file);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Import a single file and move it to the done or the failed directory
+     *
+     * @param file ODM file
+     * @param connector OpenClinica web services
+     * @return true if imported
+     */
+    boolean process(File file, OCWebServices connector) {
+        logger.info("Importing " + file);
+        try {
+            DocumentBuilder builder = builders.get();
+            if (builder == null) {
+                builder = documentBuilderFactory.newDocumentBuilder();
+                builders.set(builder);
+            }
+            ImportJournal importJournal = null;
+            Document document;
+            if (journal != null) {
+                byte[] input = readFile(file.getPath());
+                document = builder.parse(new ByteArrayInputStream(input));
+                importJournal = ImportJournal.open(journal, connectInfo.getBaseURL(), input);
+            } else {
+                InputStream reader = openInput(file.getPath());
+                try {
+                    document = builder.parse(reader);
+                } finally {
+                    reader.close();
+                }
+            }
+            ClinicalODMResolver resolver = getService(connector).newContext(document);
+            resolver.setJournal(importJournal);
+            try {
+                resolver.resolveOdmDocument();
+                resolver.importClinicalData();
+            } finally {
+                if (importJournal != null) {
+                    importJournal.close();
+                }
+            }
+            if (resolver.getQuarantinedCount() > 0) {
+                String name = file.getName().substring(0, file.getName().length() - ".xml".length());
+                File quarantine = new File(failed, name + ".quarantine.xml");
+                logger.warn(resolver.getQuarantinedCount() + " subject(s) of " + file
+                        + " failed validation and were not uploaded, see " + quarantine);
+                OutputStream out = openOutput(quarantine.getPath());
+                try {
+                    resolver.getQuarantine().write(out);
+                } finally {
+                    out.close();
+                }
+            }
+            move(file, done);
+            logger.info("Imported " + file);
+            return true;
+        } catch (Exception e) {
+            logger.error("Cannot import " + file + ": " + e.getMessage(), e);
+            try {
+                File moved = move(file, failed);
+                PrintStream error = new PrintStream(new FileOutputStream(moved.getPath() + ".error"), true, "UTF-8");
+                try {
+                    e.printStackTrace(error);
+                } finally {
+                    error.close();
+                }
+            } catch (IOException ioe) {
+                logger.error("Cannot move " + file + " to " + failed, ioe);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The resolver service of a connector, its study cache cleared when
+     * expired
+     *
+     * @param connector OpenClinica web services
+     * @return the service
+     * @throws OCConnectorException
+     */
+    private synchronized ResolverService getService(OCWebServices connector) throws OCConnectorException {
+        if (service == null || service.getConnector() != connector) {
+            service = new ResolverService(connector);
+            service.setChunkSizer(new AdaptiveChunkSizer());
+            if (validate) {
+                service.setValidator(new ItemValidator(connector));
+            }
+            timestamp = System.currentTimeMillis();
+        } else if (System.currentTimeMillis() - timestamp > expire * 1000L) {
+            service.clearCache();
+            timestamp = System.currentTimeMillis();
+        }
+        return service;
+    }
+
+    /**
+     * Move a file to a directory, adding a time stamp to its name if the
+     * directory holds a file by that name already
+     *
+     * @return the moved file
+     */
+    private static File move(File file, File directory) throws IOException {
+        File target = new File(directory, file.getName());
+        if (target.exists()) {
+            target = new File(directory, file.getName() + "." + System.currentTimeMillis());
+        }
+        if (!file.renameTo(target)) {
+            throw new IOException("Cannot move " + file + " to " + directory);
+        }
+        return target;
+    }
+
+    /**
+     * main()
+     *
+     * @param args command line arguments
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        new WatchODM("watch", args);
+    }
+}
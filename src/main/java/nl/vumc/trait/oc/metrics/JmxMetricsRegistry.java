@@ -0,0 +1,182 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Default registry: keeps OperationStats in memory and registers each with
+ * the platform MBean server as
+ * <code>nl.vumc.trait.oc:type=&lt;component&gt;,server="&lt;url&gt;",name=&lt;operation&gt;</code>.
+ */
+public class JmxMetricsRegistry implements MetricsRegistry {
+
+    private static final Logger logger = LogManager.getLogger(JmxMetricsRegistry.class);
+    /**
+     * JMX domain
+     */
+    public static final String DOMAIN = "nl.vumc.trait.oc";
+    private final ConcurrentHashMap<String, OperationStats> stats = new ConcurrentHashMap<String, OperationStats>();
+    private final boolean registerMBeans;
+
+    /**
+     * Create a registry that registers its statistics with JMX
+     */
+    public JmxMetricsRegistry() {
+        this(true);
+    }
+
+    /**
+     * Create a registry
+     *
+     * @param registerMBeans register statistics with the platform MBean
+     * server or not
+     */
+    public JmxMetricsRegistry(boolean registerMBeans) {
+        this.registerMBeans = registerMBeans;
+    }
+
+    @Override
+    public void recordLatency(String component, String operation, String server, long nanos) {
+        getStats(component, operation, server).recordLatency(nanos);
+    }
+
+    @Override
+    public void recordError(String component, String operation, String server) {
+        getStats(component, operation, server).recordError();
+    }
+
+    @Override
+    public void recordPayloadSize(String component, String operation, String server, boolean request, long bytes) {
+        getStats(component, operation, server).recordPayloadSize(request, bytes);
+    }
+
+    /**
+     * Get (or create) the statistics of an operation
+     *
+     * @param component component
+     * @param operation operation name
+     * @param server server base URL
+     * @return statistics
+     */
+    public OperationStats getStats(String component, String operation, String server) {
+        String key = component + '|' + operation + '|' + server;
+        OperationStats result = stats.get(key);
+        if (result == null) {
+            OperationStats created = new OperationStats(component, operation, server);
+            result = stats.putIfAbsent(key, created);
+            if (result == null) {
+                result = created;
+                register(created);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * All statistics collected so far
+     *
+     * @return list of statistics
+     */
+    public List<OperationStats> getAllStats() {
+        return new ArrayList<OperationStats>(stats.values());
+    }
+
+    /**
+     * Reset all statistics
+     */
+    public void reset() {
+        for (OperationStats s : stats.values()) {
+            s.reset();
+        }
+    }
+
+    /**
+     * Remove all statistics and unregister them from JMX
+     */
+    public void clear() {
+        for (OperationStats s : stats.values()) {
+            unregister(s);
+        }
+        stats.clear();
+    }
+
+    private void register(OperationStats s) {
+        if (registerMBeans) {
+            registerMBean(s, s.getComponent(), s.getServer(), s.getOperation());
+        }
+    }
+
+    private void unregister(OperationStats s) {
+        if (registerMBeans) {
+            unregisterMBean(s.getComponent(), s.getServer(), s.getOperation());
+        }
+    }
+
+    /**
+     * Register an MBean with the platform MBean server, named like the
+     * statistics: <code>nl.vumc.trait.oc:type=&lt;type&gt;,server="&lt;url&gt;",name=&lt;name&gt;</code>
+     *
+     * @param mbean the MBean
+     * @param type type, e.g. a component
+     * @param server server base URL
+     * @param name name, e.g. an operation
+     */
+    public static void registerMBean(Object mbean, String type, String server, String name) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(type, server, name);
+            if (!mbeanServer.isRegistered(objectName)) {
+                mbeanServer.registerMBean(mbean, objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Cannot register metrics MBean for " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Unregister an MBean registered with registerMBean()
+     *
+     * @param type type
+     * @param server server base URL
+     * @param name name
+     */
+    public static void unregisterMBean(String type, String server, String name) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(type, server, name);
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Cannot unregister metrics MBean for " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String type, String server, String name) throws Exception {
+        return new ObjectName(DOMAIN + ":type=" + ObjectName.quote(type) + ",server="
+                + ObjectName.quote(String.valueOf(server)) + ",name=" + ObjectName.quote(name));
+    }
+}
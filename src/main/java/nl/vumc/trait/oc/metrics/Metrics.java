@@ -0,0 +1,113 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.metrics;
+
+/**
+ * Holder of the MetricsRegistry in use. Defaults to a JmxMetricsRegistry;
+ * install another implementation (or the NONE registry to switch metrics
+ * off) with setRegistry(). Payload sizes of web service calls are only
+ * recorded when switched on with setPayloadSizes(), as measuring them costs
+ * an extra serialization of every message.
+ */
+public final class Metrics {
+
+    /**
+     * OpenClinica web service calls, made by OCWebServices
+     */
+    public static final String COMPONENT_WS = "ws";
+    /**
+     * OpenClinica web service calls as transferred: payload sizes are those
+     * on the wire, after compression
+     */
+    public static final String COMPONENT_WIRE = "wire";
+    /**
+     * SOAP message handlers
+     */
+    public static final String COMPONENT_HANDLER = "handler";
+    /**
+     * phases of resolving and uploading ODM
+     */
+    public static final String COMPONENT_RESOLVER = "resolver";
+    /**
+     * time spent waiting for the request governor before a web service call
+     */
+    public static final String COMPONENT_GOVERNOR = "governor";
+    /**
+     * registry that discards everything
+     */
+    public static final MetricsRegistry NONE = new MetricsRegistry() {
+        @Override
+        public void recordLatency(String component, String operation, String server, long nanos) {
+        }
+
+        @Override
+        public void recordError(String component, String operation, String server) {
+        }
+
+        @Override
+        public void recordPayloadSize(String component, String operation, String server, boolean request,
+                long bytes) {
+        }
+    };
+    private static volatile MetricsRegistry registry = new JmxMetricsRegistry();
+    private static volatile boolean payloadSizes;
+
+    private Metrics() {
+    }
+
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Install a registry
+     *
+     * @param registry the registry to use from now on, null for NONE
+     */
+    public static void setRegistry(MetricsRegistry registry) {
+        Metrics.registry = registry == null ? NONE : registry;
+    }
+
+    /**
+     * @return whether payload sizes of web service calls are recorded
+     */
+    public static boolean isPayloadSizes() {
+        return payloadSizes;
+    }
+
+    /**
+     * Record the payload sizes of web service calls, see PayloadSizeHandler
+     *
+     * @param payloadSizes true to record them, false (the default) not to
+     */
+    public static void setPayloadSizes(boolean payloadSizes) {
+        Metrics.payloadSizes = payloadSizes;
+    }
+
+    /**
+     * Start timing an operation
+     *
+     * @param component component, one of the COMPONENT_ constants
+     * @param operation operation name
+     * @param server server base URL
+     * @return a running timer
+     */
+    public static OperationTimer start(String component, String operation, String server) {
+        return new OperationTimer(registry, component, operation, server);
+    }
+}
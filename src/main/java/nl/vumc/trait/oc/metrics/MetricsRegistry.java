@@ -0,0 +1,58 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.metrics;
+
+/**
+ * Receiver of operation metrics. Operations are identified by component
+ * (see the COMPONENT_ constants in Metrics), operation name and server (the
+ * base URL of the OpenClinica web services). Implementations must be thread
+ * safe; install one with Metrics.setRegistry().
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Record the duration of a call; every call is recorded exactly once, so
+     * this doubles as the call counter.
+     *
+     * @param component component
+     * @param operation operation name
+     * @param server server base URL
+     * @param nanos duration in nanoseconds
+     */
+    void recordLatency(String component, String operation, String server, long nanos);
+
+    /**
+     * Record a failed call (in addition to its latency)
+     *
+     * @param component component
+     * @param operation operation name
+     * @param server server base URL
+     */
+    void recordError(String component, String operation, String server);
+
+    /**
+     * Record the size of a SOAP message
+     *
+     * @param component component
+     * @param operation operation name
+     * @param server server base URL
+     * @param request true for the request, false for the response
+     * @param bytes message size in bytes
+     */
+    void recordPayloadSize(String component, String operation, String server, boolean request, long bytes);
+}
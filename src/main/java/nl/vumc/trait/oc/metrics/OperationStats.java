@@ -0,0 +1,174 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of one operation (web service call, SOAP handler, resolver
+ * phase) against one server: number of calls, errors, latency and payload
+ * sizes.
+ */
+public class OperationStats implements OperationStatsMBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    private final String component;
+    private final String operation;
+    private final String server;
+    private final AtomicLong errors = new AtomicLong();
+    private final Histogram latency = new Histogram();
+    private final Histogram requestSize = new Histogram();
+    private final Histogram responseSize = new Histogram();
+
+    public OperationStats(String component, String operation, String server) {
+        this.component = component;
+        this.operation = operation;
+        this.server = server;
+    }
+
+    public void recordLatency(long nanos) {
+        latency.record(nanos);
+    }
+
+    public void recordError() {
+        errors.incrementAndGet();
+    }
+
+    public void recordPayloadSize(boolean request, long bytes) {
+        (request ? requestSize : responseSize).record(bytes);
+    }
+
+    /**
+     * Latency histogram, in nanoseconds
+     *
+     * @return latency histogram
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public Histogram getRequestSize() {
+        return requestSize;
+    }
+
+    public Histogram getResponseSize() {
+        return responseSize;
+    }
+
+    @Override
+    public String getComponent() {
+        return component;
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public String getServer() {
+        return server;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return latency.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return latency.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMedianLatencyMillis() {
+        return latency.getPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get95thPercentileLatencyMillis() {
+        return latency.getPercentile(95) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get99thPercentileLatencyMillis() {
+        return latency.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getTotalLatencyMillis() {
+        return latency.getSum() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestSize.getSum();
+    }
+
+    @Override
+    public double getMeanRequestBytes() {
+        return requestSize.getMean();
+    }
+
+    @Override
+    public long getMaxRequestBytes() {
+        return requestSize.getMax();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseSize.getSum();
+    }
+
+    @Override
+    public double getMeanResponseBytes() {
+        return responseSize.getMean();
+    }
+
+    @Override
+    public long getMaxResponseBytes() {
+        return responseSize.getMax();
+    }
+
+    @Override
+    public void reset() {
+        errors.set(0);
+        latency.reset();
+        requestSize.reset();
+        responseSize.reset();
+    }
+
+    @Override
+    public String toString() {
+        return component + " " + operation + " @ " + server + ": " + getCount() + " calls, " + getErrors()
+                + " errors, mean " + String.format("%.2f", getMeanLatencyMillis()) + " ms, p95 "
+                + String.format("%.2f", get95thPercentileLatencyMillis()) + " ms, max "
+                + String.format("%.2f", getMaxLatencyMillis()) + " ms, request "
+                + getRequestBytes() + " bytes, response " + getResponseBytes() + " bytes";
+    }
+}
@@ -0,0 +1,60 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.metrics;
+
+/**
+ * JMX view of the statistics of one operation.
+ */
+public interface OperationStatsMBean {
+
+    String getComponent();
+
+    String getOperation();
+
+    String getServer();
+
+    long getCount();
+
+    long getErrors();
+
+    double getMeanLatencyMillis();
+
+    double getMaxLatencyMillis();
+
+    double getMedianLatencyMillis();
+
+    double get95thPercentileLatencyMillis();
+
+    double get99thPercentileLatencyMillis();
+
+    double getTotalLatencyMillis();
+
+    long getRequestBytes();
+
+    double getMeanRequestBytes();
+
+    long getMaxRequestBytes();
+
+    long getResponseBytes();
+
+    double getMeanResponseBytes();
+
+    long getMaxResponseBytes();
+
+    void reset();
+}
@@ -0,0 +1,109 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.metrics;
+
+/**
+ * Times a single call. Obtain one through Metrics.start(), call failed() if
+ * the call did not succeed and stop() when it is done, typically in a finally
+ * block:
+ *
+ * <pre>
+ * OperationTimer timer = Metrics.start(...);
+ * try {
+ *     ...
+ * } catch (Exception e) {
+ *     timer.failed();
+ *     throw ...;
+ * } finally {
+ *     timer.stop();
+ * }
+ * </pre>
+ */
+public class OperationTimer {
+
+    private final MetricsRegistry registry;
+    private final String component;
+    private final String operation;
+    private final String server;
+    private final long start;
+    private boolean failed;
+    private boolean stopped;
+
+    /**
+     * Start timing; see Metrics.start()
+     *
+     * @param registry registry to record to
+     * @param component component
+     * @param operation operation name
+     * @param server server base URL
+     */
+    protected OperationTimer(MetricsRegistry registry, String component, String operation, String server) {
+        this.registry = registry;
+        this.component = component;
+        this.operation = operation;
+        this.server = server;
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Mark the call as failed; it is counted as an error when stopped.
+     */
+    public void failed() {
+        failed = true;
+    }
+
+    /**
+     * Record the duration (and the error, if failed) of the call. Only the
+     * first call has any effect.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    public long stop() {
+        long elapsed = System.nanoTime() - start;
+        if (!stopped) {
+            stopped = true;
+            registry.recordLatency(component, operation, server, elapsed);
+            if (failed) {
+                registry.recordError(component, operation, server);
+            }
+            stopped(elapsed, failed);
+        }
+        return elapsed;
+    }
+
+    /**
+     * Called once, when the timer is first stopped. Does nothing; to be
+     * overridden by timers that hold on to something for the duration of the
+     * call.
+     *
+     * @param nanos duration in nanoseconds
+     * @param failed whether the call failed
+     */
+    protected void stopped(long nanos, boolean failed) {
+    }
+
+    /**
+     * Record a payload size for the operation being timed
+     *
+     * @param request true for the request, false for the response
+     * @param bytes size in bytes
+     */
+    public void payloadSize(boolean request, long bytes) {
+        registry.recordPayloadSize(component, operation, server, request, bytes);
+    }
+}
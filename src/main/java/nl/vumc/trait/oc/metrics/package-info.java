@@ -0,0 +1,20 @@
+/*
+
+	Copyright 2012 VU Medical Center Amsterdam
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+*/
+
+/** This package supplies operation level metrics (call counts, latency and payload size histograms, error counts) for web service calls, SOAP handlers and resolver phases, exposed through JMX or a pluggable registry. */
+package nl.vumc.trait.oc.metrics;
@@ -19,28 +19,32 @@ package nl.vumc.trait.oc.mirth;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
 
 import nl.vumc.trait.oc.connect.ConnectInfo;
 import nl.vumc.trait.oc.connect.OCConnectorException;
 import nl.vumc.trait.oc.connect.OCWebServices;
-import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import nl.vumc.trait.oc.connect.RequestGovernor;
+import nl.vumc.trait.oc.odm.ImportCoalescer;
 import nl.vumc.trait.oc.odm.ODMException;
-import nl.vumc.trait.oc.odm.XMLUtils;
+import nl.vumc.trait.oc.odm.ResolverService;
+import nl.vumc.trait.oc.odm.SubjectLanes;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
- * Class for automated data uploads. To be used by Mirth.
+ * Class for automated data uploads. To be used by Mirth. Messages may be
+ * processed concurrently, also those of the same batch: a batch holds a
+ * ResolverService, of which each message gets a context of its own.
  *
  * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
  */
@@ -51,10 +55,10 @@ public class ImportODM extends Main {
 
     private class ResolverCache {
 
-        public long timestamp;
-        public ClinicalODMResolver resolver;
+        public volatile long timestamp;
+        public final ResolverService resolver;
 
-        public ResolverCache(ClinicalODMResolver resolver, int expire) {
+        public ResolverCache(ResolverService resolver, int expire) {
             updateTimeStamp();
             this.resolver = resolver;
         }
@@ -70,7 +74,22 @@ public class ImportODM extends Main {
     /**
      * Per batch clinical resolver
      */
-    private HashMap<String, ResolverCache> resolvers; // <batch, resolver>
+    private volatile ConcurrentMap<String, ResolverCache> resolvers; // <batch, resolver>
+    /**
+     * per thread parsers, DocumentBuilders not being thread-safe
+     */
+    private final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            synchronized (documentBuilderFactory) {
+                try {
+                    return documentBuilderFactory.newDocumentBuilder();
+                } catch (ParserConfigurationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    };
 
     /**
      * Initiliaze importer
@@ -79,7 +98,7 @@ public class ImportODM extends Main {
      */
     public ImportODM() throws Exception {
         super();
-        resolvers = new HashMap<String, ResolverCache>();
+        resolvers = new ConcurrentHashMap<String, ResolverCache>();
         logger.debug("ImportODM Instantiated...");
     }
 
@@ -87,7 +106,12 @@ public class ImportODM extends Main {
      * Clear all batches (resolvers)
      */
     public void clearCache() {
-        resolvers = new HashMap<String, ResolverCache>();
+        ConcurrentMap<String, ResolverCache> cleared = resolvers;
+        resolvers = new ConcurrentHashMap<String, ResolverCache>();
+        for (ResolverCache cache : cleared.values()) {
+            cache.resolver.getConnector().clearCaches();
+            shutdownLanes(cache.resolver);
+        }
     }
 
     /**
@@ -113,12 +137,14 @@ public class ImportODM extends Main {
      * resolver cache
      */
     public void teardownBatch(String batch) throws OCConnectorException {
-        if (resolvers.containsKey(batch)) {
+        ResolverCache cache = resolvers.remove(batch);
+        if (cache != null) {
             logger.debug("teardownBatch(): batch: " + batch);
-            ClinicalODMResolver resolver = resolvers.get(batch).resolver;
+            ResolverService resolver = cache.resolver;
             resolver.getConnector().clearMessages();
             resolver.clearCache();
-            resolvers.remove(batch);
+            resolver.getConnector().clearCaches();
+            shutdownLanes(resolver);
         } else {
             throw new OCConnectorException("Requested batch " + batch
                     + " can not be torndown. It does not exist.");
@@ -135,14 +161,20 @@ public class ImportODM extends Main {
      * @param expire time to expire cached resolver
      * @throws OCConnectorException
      */
-    public void setupBatch(String batch, String baseURL, String user, String password, int expire) throws OCConnectorException {
+    public synchronized void setupBatch(String batch, String baseURL, String user, String password, int expire)
+            throws OCConnectorException {
         logger.debug("setupBatch(): batch: " + batch);
         ConnectInfo connectInfo = new ConnectInfo(baseURL, user);
         connectInfo.setPassword(password);
         if (!resolvers.containsKey(batch) || resolvers.get(batch).isExpired()) {
             try {
                 OCWebServices connector = OCWebServices.getInstance(connectInfo, debug, false);
-                resolvers.put(batch, new ResolverCache(new ClinicalODMResolver(connector), expire));
+                ResolverService resolver = new ResolverService(connector);
+                if (resolvers.containsKey(batch)) { // expired; keep coalescing and lanes
+                    resolver.setCoalescer(resolvers.get(batch).resolver.getCoalescer());
+                    resolver.setLanes(resolvers.get(batch).resolver.getLanes());
+                }
+                resolvers.put(batch, new ResolverCache(resolver, expire));
             } catch (Exception e) {
                 throw new OCConnectorException("Cannot setup ImportODM;" + e.getMessage(), e);
             }
@@ -152,9 +184,92 @@ public class ImportODM extends Main {
         }
     }
 
+    /**
+     * Combine the uploads of messages of a batch processed concurrently
+     * (see ImportCoalescer): the data of a message is uploaded together with
+     * that of other messages for the same study arriving within the linger
+     * time, up to a maximum number of subjects. process() returns (or fails)
+     * once the data of its own message has been uploaded. Coalescing only
+     * pays off if the channel processes messages concurrently; otherwise it
+     * only adds the linger time to every message.
+     *
+     * @param batch batch name
+     * @param lingerMillis time to wait for more messages, 0 to stop coalescing
+     * @param maxSubjects maximum number of subjects in a combined upload
+     * @throws OCConnectorException if the batch does not exist
+     */
+    public void setCoalescing(String batch, long lingerMillis, int maxSubjects) throws OCConnectorException {
+        ResolverCache cache = resolvers.get(batch);
+        if (cache == null) {
+            throw new OCConnectorException("No resolver for batch '" + batch + "'!");
+        }
+        ResolverService resolver = cache.resolver;
+        resolver.setCoalescer(lingerMillis > 0
+                ? new ImportCoalescer(resolver.getConnector(), lingerMillis, maxSubjects) : null);
+        logger.info("Batch " + batch + ": " + resolver);
+    }
+
+    /**
+     * Process the messages of a batch in subject lanes (see SubjectLanes):
+     * messages for different subjects are processed concurrently, up to the
+     * number of lanes, messages for the same subject one after the other, in
+     * the order process() was called. Lanes let a channel process messages
+     * concurrently without the messages of a subject racing each other.
+     *
+     * @param batch batch name
+     * @param lanes number of lanes, 0 to process messages in the calling
+     * thread
+     * @throws ODMException if the lanes cannot be created
+     * @throws OCConnectorException if the batch does not exist
+     */
+    public void setLanes(String batch, int lanes) throws ODMException, OCConnectorException {
+        ResolverCache cache = resolvers.get(batch);
+        if (cache == null) {
+            throw new OCConnectorException("No resolver for batch '" + batch + "'!");
+        }
+        ResolverService resolver = cache.resolver;
+        shutdownLanes(resolver);
+        resolver.setLanes(lanes > 0 ? new SubjectLanes(lanes) : null);
+        logger.info("Batch " + batch + ": " + resolver);
+    }
+
+    /**
+     * Limit the web service calls of a batch, or rather those to its server,
+     * see RequestGovernor. The limits are lowered while the server slows
+     * down or fails.
+     *
+     * @param batch batch name
+     * @param operation operation name, e.g. data.import, or
+     * RequestGovernor.ALL_OPERATIONS
+     * @param maxInFlight maximum number of calls in flight, 0 for no maximum
+     * @param permitsPerSecond maximum number of calls per second, 0 for no
+     * maximum
+     * @throws OCConnectorException if the batch does not exist
+     */
+    public void setLimit(String batch, String operation, int maxInFlight, double permitsPerSecond)
+            throws OCConnectorException {
+        ResolverCache cache = resolvers.get(batch);
+        if (cache == null) {
+            throw new OCConnectorException("No resolver for batch '" + batch + "'!");
+        }
+        RequestGovernor governor = cache.resolver.getConnector().getGovernor();
+        governor.setLimit(operation, maxInFlight, permitsPerSecond);
+        logger.info("Batch " + batch + ": " + governor);
+    }
+
+    private static void shutdownLanes(ResolverService resolver) {
+        SubjectLanes lanes = resolver.getLanes();
+        if (lanes != null) {
+            resolver.setLanes(null);
+            lanes.shutdown();
+        }
+    }
+
     /**
      * Process an ODM message (string) for a given batch -- parse, clean ODM,
-     * create subjects, load data, etc.
+     * create subjects, load data, etc. Messages may be processed concurrently,
+     * but messages for the same subject should not, unless the batch has
+     * lanes (see setLanes()).
      *
      * @param batch batch name
      * @param odmInput ODM XML string
@@ -168,54 +283,12 @@ public class ImportODM extends Main {
     public String process(String batch, String odmInput) throws ODMException, SAXException, IOException,
             OCConnectorException, DatatypeConfigurationException {
         InputSource reader = new InputSource(new StringReader(odmInput));
-        ClinicalODMResolver resolver;
-
-        if (resolvers.containsKey(batch)) {
-            resolver = resolvers.get(batch).resolver;
-        } else {
+        ResolverCache cache = resolvers.get(batch);
+        if (cache == null) {
             logger.debug("ImportODM.process(): batches: " + resolvers.keySet());
             throw new OCConnectorException("No resolver for batch '" + batch + "'!");
-        }		
-        Document odmDocument = documentBuilder.parse(reader);
-        resolver.setOdm(odmDocument);
-        resolver.resolveOdmDocument();
-        String resolvedODM = resolver.toString();
-        Document odmDoc = resolver.getOdm();
-        resolver.removeEventsOnlyToSchedule(odmDoc);
-        Node odmNode = resolver.getOdm().getFirstChild();
-//        if (odmNode == null) {
-//            // TODO - remove this if-clause one the bug is solved.
-//            // This issue was created by the removeElementsOnlyToSchedule. There
-//            // was an unforseen interaction between the clean step (using the
-//            // XSLT CleanODMImport and the case when a ItemData-node contained
-//            // the &lt;VALUE&gt; marker and the attribute Mirth:ScheduleOnly with
-//            // a value of "true". The entire document is then cleaned
-//            // leaving only the ODM-root node. This can be avoided by filling
-//            // in a dummy value in the ItemData 'Value' attribute.
-//            throw new ODMException("No data nodes found in ODM-document. When "
-//                    + "using the 'Mirth:ScheduleOnly=true' construct, no "
-//                    + "ItemData nodes must be present with "
-//                    + " an attribute 'value' with '&lt;VALUE&gt;'. Replace "
-//                    + " these with a dummy value.");
-//        }
-        // bulk load -- chop up into ClinicaDatas...
-        NodeList clinicalDatas = resolver.xPath(odmNode, "//cdisc:ClinicalData");
-        for (int i = 0; i < clinicalDatas.getLength(); ++i) {
-            odmNode.removeChild(clinicalDatas.item(i));
-        }
-        for (int i = 0; i < clinicalDatas.getLength(); ++i) {
-            if (resolver.hasEventToUpload(clinicalDatas.item(i))) {
-                odmNode.appendChild(clinicalDatas.item(i));
-                resolver.setOdm(odmDoc); // important!
-                String dataToUpload = resolver.extraClean().toString();
-                resolver.getConnector().importODM(dataToUpload);
-                odmNode.removeChild(clinicalDatas.item(i));
-                logger.info("Uploaded data to " + resolver.getConnector().getBaseURL());
-                logger.info("Data " + dataToUpload);
-            } else {
-                logger.info("No events to upload found in node.");
-            }
         }
-        return resolvedODM;
+        Document odmDocument = documentBuilders.get().parse(reader);
+        return cache.resolver.process(odmDocument);
     }
 }
@@ -19,6 +19,7 @@
 package nl.vumc.trait.oc.odm;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Iterator;
@@ -144,14 +145,71 @@ public abstract class AbstractODM implements NamespaceContext {
 	 * @throws TransformerException 
 	 */
 	protected String documentToString(Document d) throws TransformerException {
+		return documentToString(d, true);
+	}
+
+	/**
+	 * Convert an XML DOM Document to a String representation
+	 * @param d DOM Document
+	 * @param indent indent (for people to read) or not (for the wire)
+	 * @return String representation of DOM Document d
+	 * @throws TransformerException 
+	 */
+	protected String documentToString(Document d, boolean indent) throws TransformerException {
 		StringWriter s = new StringWriter();
-		Transformer transformer = transformerFactory.newTransformer();
-		transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-		transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-		transformer.transform(new DOMSource(d), new StreamResult(s));
+		writeDocument(d, new StreamResult(s), indent);
 		return s.toString();
 	}
 
+	/**
+	 * Serialize an XML DOM Document
+	 * @param d DOM Document
+	 * @param result where to write the serialized document to
+	 * @param indent indent (for people to read) or not (for the wire)
+	 * @throws TransformerException 
+	 */
+	protected void writeDocument(Document d, StreamResult result, boolean indent) throws TransformerException {
+		Transformer transformer = transformerFactory.newTransformer();
+		if (indent) {
+			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+			transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+		} else {
+			transformer.setOutputProperty(OutputKeys.INDENT, "no");
+		}
+		transformer.transform(new DOMSource(d), result);
+	}
+
+	/**
+	 * Compact String representation of the ODM, without indentation. This is
+	 * what is sent to OpenClinica; use toString() for logging.
+	 * @return ODM XML String
+	 * @throws OCConnectorException 
+	 */
+	public String toWireString() throws OCConnectorException {
+		try {
+			return documentToString(odm, false);
+		} catch (TransformerException e) {
+			throw new OCConnectorException("Cannot serialize ODM.", e);
+		}
+	}
+
+	/**
+	 * Write the ODM to a stream (UTF-8, indented as in toString()) without
+	 * building it as a String first. The stream is flushed, not closed.
+	 * @param out stream to write to
+	 * @throws OCConnectorException 
+	 */
+	public void write(OutputStream out) throws OCConnectorException {
+		try {
+			writeDocument(odm, new StreamResult(out), true);
+			out.flush();
+		} catch (TransformerException e) {
+			throw new OCConnectorException("Cannot write ODM.", e);
+		} catch (IOException e) {
+			throw new OCConnectorException("Cannot write ODM.", e);
+		}
+	}
+
 	@Override
 	public String toString() {
 		try {
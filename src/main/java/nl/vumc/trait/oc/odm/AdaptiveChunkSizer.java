@@ -0,0 +1,127 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+/**
+ * Decides how many items go into a single dataImport() call. Uploads are
+ * sized so that they take about a target time: the time per item is learned
+ * from the uploads done (as a moving average) and the chunk size follows from
+ * it, growing at most twofold per upload. An upload that failed in transport
+ * (e.g. timed out) halves the chunk size and caps it below the size that
+ * failed; the cap is lifted again slowly by uploads that succeed while held
+ * back by it.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class AdaptiveChunkSizer {
+
+    public static final int DEFAULT_INITIAL_ITEMS = 1000;
+    public static final int DEFAULT_MIN_ITEMS = 1;
+    public static final int DEFAULT_MAX_ITEMS = 50000;
+    public static final long DEFAULT_TARGET_MILLIS = 5000;
+    /**
+     * weight of the latest upload in the moving average
+     */
+    private static final double ALPHA = 0.3;
+    /**
+     * growth of the cap per successful upload held back by it
+     */
+    private static final double CEILING_GROWTH = 1.02;
+    private final int minItems;
+    private final int maxItems;
+    private final long targetNanos;
+    private int chunkItems;
+    private double ceiling;
+    private double nanosPerItem;
+    private long successes;
+    private long failures;
+
+    /**
+     * Sizer with the default settings
+     */
+    public AdaptiveChunkSizer() {
+        this(DEFAULT_INITIAL_ITEMS, DEFAULT_MIN_ITEMS, DEFAULT_MAX_ITEMS, DEFAULT_TARGET_MILLIS);
+    }
+
+    /**
+     * @param initialItems chunk size to start with
+     * @param minItems smallest chunk size
+     * @param maxItems largest chunk size
+     * @param targetMillis time an upload should take
+     */
+    public AdaptiveChunkSizer(int initialItems, int minItems, int maxItems, long targetMillis) {
+        this.minItems = Math.max(1, minItems);
+        this.maxItems = Math.max(this.minItems, maxItems);
+        this.targetNanos = targetMillis * 1000000L;
+        this.ceiling = this.maxItems;
+        this.chunkItems = clamp(initialItems);
+    }
+
+    /**
+     * @return number of items to put in the next upload
+     */
+    public synchronized int getChunkItems() {
+        return chunkItems;
+    }
+
+    /**
+     * Learn from a successful upload
+     *
+     * @param items number of items uploaded
+     * @param nanos time the upload took
+     */
+    public synchronized void success(int items, long nanos) {
+        successes++;
+        double observed = (double) nanos / Math.max(1, items);
+        nanosPerItem = nanosPerItem == 0 ? observed : ALPHA * observed + (1 - ALPHA) * nanosPerItem;
+        double ideal = nanosPerItem > 0 ? targetNanos / nanosPerItem : maxItems;
+        double wanted = Math.min(ideal, 2.0 * chunkItems);
+        chunkItems = clamp(wanted);
+        if (wanted > ceiling) { // held back by an earlier failure; probe a little further next time
+            ceiling = Math.min(maxItems, ceiling * CEILING_GROWTH);
+        }
+    }
+
+    /**
+     * Learn from an upload that failed in transport
+     *
+     * @param items number of items in the failed upload
+     */
+    public synchronized void failure(int items) {
+        failures++;
+        ceiling = Math.max(minItems, Math.min(ceiling, items - 1));
+        chunkItems = clamp(Math.min(chunkItems, items) / 2.0);
+    }
+
+    public synchronized long getSuccesses() {
+        return successes;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    private int clamp(double items) {
+        return (int) Math.max(minItems, Math.min(Math.min(maxItems, ceiling), items));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "chunk items: " + chunkItems + ", uploads: " + successes + ", failures: " + failures;
+    }
+}
@@ -141,7 +141,9 @@ public class ClinicalODM extends AbstractODM {
 	 */
 	public final ClinicalODM clean() throws OCConnectorException {
 		setOdm(cleaningTransformation(this.odm));
-		removeAttributes(this.odm, "//@OpenClinica:*[.='<VALUE>']");
+		ODMRewriter rewriter = new ODMRewriter();
+		rewriter.setStripPlaceholders(true);
+		rewriter.rewrite(this.odm);
 		return this;
 	}
 
@@ -17,22 +17,39 @@
  */
 package nl.vumc.trait.oc.odm;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.xml.datatype.DatatypeConfigurationException;
 import nl.vumc.trait.oc.connect.OCConnectorException;
 import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.metrics.Metrics;
+import nl.vumc.trait.oc.metrics.OperationTimer;
+import nl.vumc.trait.oc.odm.ResolutionPlan.PlannedEvent;
+import nl.vumc.trait.oc.odm.ResolutionPlan.PlannedStudy;
+import nl.vumc.trait.oc.odm.ResolutionPlan.PlannedSubject;
+import nl.vumc.trait.oc.types.Event;
 import nl.vumc.trait.oc.types.ScheduledEvent;
 import nl.vumc.trait.oc.types.Study;
 import nl.vumc.trait.oc.types.StudySubject;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.openclinica.ws.study.v1.ListAllResponse;
-import org.openclinica.ws.studysubject.v1.IsStudySubjectResponse;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * Clinical ODM with functionality to resolve non-OID ids from OpenClinica IDs
@@ -61,13 +78,8 @@ public class ClinicalODMResolver extends ClinicalODM {
      * element if non-existent
      */
     private static final String ATTR_MIRTH_CREATE = "Mirth:Create";
-    /**
-     * Attribute:
-     * <code>Mirth:ScheduleOnly<code>, indicates that the event only has to be
-     * scheduled and no data has to be uploaded. Located on the ODM element
-     * <code>StudyEventData</code>
-     */
-    private static final String ATTR_MIRTH_SCHEDULE_ONLY = "Mirth:ScheduleOnly";
+    // Mirth:ScheduleOnly, on StudyEventData, indicates that the event only has
+    // to be scheduled and no data has to be uploaded; see ODMRewriter
     /**
      * Attribute: OpenClinica, data of birth
      */
@@ -104,21 +116,18 @@ public class ClinicalODMResolver extends ClinicalODM {
     private static final String ATTR_STUDYOID = "StudyOID";
     // TODO: private final String ATTR_STUDY_EVENT_REPEAT_KEY = "StudyEventRepeatKey";
     /**
-     * XPath Query: ClinicalData element, the root of OpenClinica loadable data
-     */
-    private static final String XPATH_CLINICAL_DATA = "/ODM/ClinicalData";
-    /**
-     * XPath Query: Subject Data -- Child(ren) of ClinicalData
+     * Element: ClinicalData, child of ODM, the root of OpenClinica loadable
+     * data
      */
-    private static final String XPATH_SUBJECT_DATA = "./SubjectData";
+    private static final String CLINICAL_DATA = "ClinicalData";
     /**
-     * XPath Query: Study Event Data -- event related data, child of SubjectData
+     * Element: Subject Data -- Child(ren) of ClinicalData
      */
-    private static final String XPATH_STUDYEVENTDATA = "./StudyEventData";
+    private static final String SUBJECT_DATA = "SubjectData";
     /**
-     * XPath Query: All attributes that do not have their value set to '<VALUE>'
+     * Element: Study Event Data -- event related data, child of SubjectData
      */
-    private static final String XPATH_SUBJECT_ATTRS = "./@*[.!='<VALUE>']";
+    private static final String STUDYEVENTDATA = "StudyEventData";
     /**
      * Controls whether a preliminary consistency check must be preformed prior
      * to an insert or update transaction of ODM data. Be aware that this
@@ -129,13 +138,52 @@ public class ClinicalODMResolver extends ClinicalODM {
     private static final String ATTR_PRELIMANARY_CONSISTENCY_CHECK =
             "Mirth:PreliminaryConsistencyCheck";
     /**
-     * study index. Study objects, keyed by study name + site name
+     * Encoding of uploaded ODM
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * study index. Study objects, keyed by study name + site name. Shared with
+     * other resolvers when created by a ResolverService.
      */
-    protected HashMap<String, Study> studies; // // <unique id (study name + sitename), study object>
+    protected ConcurrentMap<String, Study> studies; // // <unique id (study name + sitename), study object>
     /**
      * OC web services connector
      */
     private OCWebServices connector;
+    /**
+     * number of subjects resolved in parallel
+     */
+    private int parallelism = 1;
+    /**
+     * journal of the work done, null for none
+     */
+    private ImportJournal journal;
+    /**
+     * sizes uploads, null to upload each ClinicalData in a call of its own
+     */
+    private AdaptiveChunkSizer chunkSizer;
+    /**
+     * checks subjects against the study metadata before upload, null for no
+     * checks
+     */
+    private ItemValidator validator;
+    /**
+     * combines uploads with those of other documents, null to upload on our
+     * own
+     */
+    private ImportCoalescer coalescer;
+    /**
+     * subjects kept out of the last upload by the validator, null if none
+     */
+    private Document quarantine;
+    /**
+     * ClinicalData nodes of the document and their copies in quarantine
+     */
+    private Map<Node, Node> quarantined = new IdentityHashMap<Node, Node>();
+    /**
+     * number of subjects in quarantine
+     */
+    private int quarantinedCount;
 
     /**
      * Constructor.
@@ -146,7 +194,7 @@ public class ClinicalODMResolver extends ClinicalODM {
     public ClinicalODMResolver(OCWebServices ocConnector) throws OCConnectorException {
         super();
         this.connector = ocConnector;
-        studies = new HashMap<String, Study>();
+        studies = new ConcurrentHashMap<String, Study>();
     }
 
     /**
@@ -163,7 +211,7 @@ public class ClinicalODMResolver extends ClinicalODM {
             OCConnectorException, DatatypeConfigurationException {
         super(odm, clean);
         this.connector = ocConnector;
-        studies = new HashMap<String, Study>();
+        studies = new ConcurrentHashMap<String, Study>();
     }
 
     /**
@@ -179,7 +227,8 @@ public class ClinicalODMResolver extends ClinicalODM {
     public ClinicalODMResolver(String odm, OCWebServices ocConnector, boolean clean) throws ODMException,
             OCConnectorException, DatatypeConfigurationException {
         super(odm, clean);
-        studies = new HashMap<String, Study>();
+        this.connector = ocConnector;
+        studies = new ConcurrentHashMap<String, Study>();
     }
 
     /**
@@ -195,7 +244,27 @@ public class ClinicalODMResolver extends ClinicalODM {
     public ClinicalODMResolver(Document odm, OCWebServices ocConnector) throws ODMException, OCConnectorException,
             DatatypeConfigurationException {
         this(odm, ocConnector, DEFAULT_CLEANING);
-        studies = new HashMap<String, Study>();
+        studies = new ConcurrentHashMap<String, Study>();
+    }
+
+    /**
+     * Create a ClinicalODMResolver for a single document processed by a
+     * ResolverService, sharing the studies and settings of the service. See
+     * ResolverService.newContext().
+     *
+     * @param odm ODM XML document, not cleaned yet
+     * @param service the service
+     * @throws OCConnectorException
+     */
+    ClinicalODMResolver(Document odm, ResolverService service) throws OCConnectorException {
+        super();
+        setOdm(odm);
+        this.connector = service.getConnector();
+        studies = service.getStudyIndex();
+        parallelism = service.getParallelism();
+        chunkSizer = service.getChunkSizer();
+        validator = service.getValidator();
+        coalescer = service.getCoalescer();
     }
 
     /**
@@ -205,16 +274,10 @@ public class ClinicalODMResolver extends ClinicalODM {
 	 * @throws OCConnectorException
      */
     public void removeEventsOnlyToSchedule(Document doc) throws OCConnectorException {
-        NodeList eventNodeList = xPath(doc, "//cdisc:StudyEventData");
-        for (int i = 0; i < eventNodeList.getLength(); i++) {
-            Node eventNode = eventNodeList.item(i);
-			logger.debug("EventNode : " + XMLUtils.nodeToString(eventNode));
-            if (scheduleOnly(eventNode)) {
-				logger.debug("Removing EventNode");
-                Node parent = eventNode.getParentNode();
-                parent.removeChild(eventNode);
-            }
-        }
+        ODMRewriter rewriter = new ODMRewriter();
+        rewriter.setPruneScheduleOnly(true);
+        rewriter.rewrite(doc);
+        logger.debug("Removed " + rewriter.getPrunedEvents() + " events only to schedule");
     }
 
     /**
@@ -227,8 +290,12 @@ public class ClinicalODMResolver extends ClinicalODM {
 	 * @throws OCConnectorException
      */
     public boolean hasEventToUpload(Node aClinicalDataNode) throws OCConnectorException {
-        NodeList eventNodeList = xPath(aClinicalDataNode, "//cdisc:StudyEventData");
-        return eventNodeList.getLength() > 0;
+        for (Node subjectData : XMLUtils.children(aClinicalDataNode, SUBJECT_DATA)) {
+            if (!XMLUtils.children(subjectData, STUDYEVENTDATA).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -244,7 +311,7 @@ public class ClinicalODMResolver extends ClinicalODM {
     public ClinicalODMResolver(String odm, OCWebServices ocConnector) throws ODMException, OCConnectorException,
             DatatypeConfigurationException {
         this(odm, ocConnector, DEFAULT_CLEANING);
-        studies = new HashMap<String, Study>();
+        studies = new ConcurrentHashMap<String, Study>();
     }
 
     /**
@@ -269,18 +336,6 @@ public class ClinicalODMResolver extends ClinicalODM {
         return checkBooleanAttribute(node, ATTR_MIRTH_CREATE);
     }
 
-    /**
-     * Return boolean attribute
-     * <code>ATTR_MIRTH_SCHEDULE_ONLY</code> as bool for a certain node.
-     *
-     * @param node the nodes that supposedly has the ATTR_MIRTH_SCHEDULE_ONLY
-     * attribute
-     * @return the boolean value as bool
-     */
-    private boolean scheduleOnly(Node node) {
-        return checkBooleanAttribute(node, ATTR_MIRTH_SCHEDULE_ONLY);
-    }
-
     /**
      * Return boolean attribute value of
      * {@link #ATTR_PRELIMANARY_CONSISTENCY_CHECK}
@@ -302,11 +357,14 @@ public class ClinicalODMResolver extends ClinicalODM {
      * @throws OCConnectorException
      */
     private StudySubject createStudySubject(Study study, Node subjectDataNode) throws OCConnectorException {
-        NodeList attributes = xPath(subjectDataNode, XPATH_SUBJECT_ATTRS);
+        NamedNodeMap attributes = subjectDataNode.getAttributes();
         StudySubject studySubject = new StudySubject(study);
         String subjectHandle = "";
         for (int i = 0; i < attributes.getLength(); ++i) {
             Node node = attributes.item(i);
+            if (ODMRewriter.PLACEHOLDER.equals(node.getNodeValue())) {
+                continue;
+            }
             String nodeName = node.getNodeName();
             String nodeValue = node.getNodeValue();
             if (ATTR_OC_DATEOFBIRTH.equals(nodeName)) {
@@ -332,130 +390,384 @@ public class ClinicalODMResolver extends ClinicalODM {
     }
 
     /**
-     * Resolves a certain study with an optional center. See overloaded
-     * resolveMe(). This method makes a OpenClinica web service call.
+     * Resolve "this" after loading the subjects of the studies involved, and
+     * their scheduled events, from OpenClinica. Existing subjects are reused
+     * and events that have been scheduled already are not scheduled again.
      *
      * @return a collection of studies
      * @throws ODMException
      * @throws OCConnectorException
-     * @throws DatatypeConfigurationException
      */
     private Collection<Study> resolvStudy() throws ODMException, OCConnectorException {
         logger.debug("Resolving study");
-        ListAllResponse allStudies = connector.listAllStudies(); // fetch available studies
-        logger.debug("Resolved study; found " + allStudies.getStudies().getStudy().size());
-        return resolveMe(allStudies);
+        execute(plan(true));
+        return studies.values();
     }
 
     /**
-     * This is where all the logic sits for resolving ODM data. ODM data is
-     * processed here and unresolved attributes are resolved, subjects are
-     * created, events are scheduled... This method operated on a pre-fetched
-     * ListAllResponse object.
+     * Clean "this" and work out what it takes to resolve it. Only read-only
+     * web service calls are made: the studies are looked up (and populated if
+     * requested), after which the plan is validated against them. Nothing is
+     * created or scheduled, and the document is left as is apart from the
+     * cleaning.
      *
-     * @param studies internal study data (our cache)
-     * @param allStudies all studies from listAll OpenClinica method.
-     * @return A collection of studies.
+     * @param populate load the subjects and scheduled events of the studies
+     * @return a validated plan, ready to be executed
      * @throws ODMException
      * @throws OCConnectorException
-     * @throws DatatypeConfigurationException
      */
-    private Collection<Study> resolveMe(ListAllResponse allStudies)
-            throws ODMException, OCConnectorException {
+    private ResolutionPlan plan(boolean populate) throws ODMException, OCConnectorException {
+        OperationTimer cleanPhase = startPhase("clean");
+        try {
+            this.clean();
+        } finally {
+            cleanPhase.stop();
+        }
+        ResolutionPlan plan = buildPlan();
+        plan.setPopulated(populate);
+        resolveStudies(plan, populate);
+        validate(plan);
+        logger.info("Resolution plan: " + plan);
+        return plan;
+    }
 
-        this.clean();
-        // TODO: Change the order of things in here slightly
-        // so as to make this a bit more of a "transaction". A subject
-        // should not be created if we know beforehand that the event
-        // data is rubbish.
-
-        // for each ClinicalData i
-        NodeList clinicalDatas = xPath(XPATH_CLINICAL_DATA);
-        logger.info("Processing clinicalDatas " + clinicalDatas.getLength());
-        for (int i = 0; i < clinicalDatas.getLength(); ++i) {
-            Node clinicalData = clinicalDatas.item(i); // ---- ClinicalData i ----
+    /**
+     * Clean "this" and work out what it takes to resolve it, without any side
+     * effects. See resolveOdmDocument() for how the document controls whether
+     * study subjects are loaded beforehand.
+     *
+     * @return a validated plan, ready to be executed
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
+    public ResolutionPlan plan() throws ODMException, OCConnectorException {
+        return plan(performPreliminaryConsistencyCheck(odm.getDocumentElement()));
+    }
+
+    /**
+     * Walk the document once and collect the studies, subjects and events it
+     * refers to. No web service calls are made.
+     *
+     * @return the plan
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
+    private ResolutionPlan buildPlan() throws ODMException, OCConnectorException {
+        ResolutionPlan plan = new ResolutionPlan();
+        List<Element> clinicalDatas = XMLUtils.children(odm.getDocumentElement(), CLINICAL_DATA);
+        logger.info("Processing clinicalDatas " + clinicalDatas.size());
+        for (Node clinicalData : clinicalDatas) { // ---- ClinicalData ----
             Attr studyOID = getAttribute(clinicalData, ATTR_STUDYOID);
-            Study study = connector.findStudy(allStudies, studyOID.getNodeValue(), !translateOrNot(clinicalData));
-            studyOID.setNodeValue(study.getStudyOID()); // update OID field (it may have been translated)
-            String studyHashKey = "Study: " + study.getStudyName() + ", Site: " + study.getSiteName();
-            if (studies.containsKey(studyHashKey)) {
-                study = studies.get(studyHashKey);
-            } else {
-                studies.put(studyHashKey, study);
-                logger.debug("resolveMe() calling connector.populateStudy()");
-                connector.populateStudy(study); // fetch study from OC
+            PlannedStudy study = plan.addStudy(studyOID.getNodeValue(), !translateOrNot(clinicalData));
+            study.addAttribute(studyOID);
+            List<Element> subjectDatas = XMLUtils.children(clinicalData, SUBJECT_DATA);
+            logger.debug("Found " + subjectDatas.size() + " subjects");
+            for (Node subjectData : subjectDatas) { // ---- SubjectData ----
+                Attr subjectKey = getAttribute(subjectData, ATTR_OC_SUBJECTKEY);
+                PlannedSubject subject = study.addSubject(subjectKey.getNodeValue(), subjectData);
+                subject.addAttribute(subjectKey);
+                subject.setCreate(subject.isCreate() || hasToBeCreated(subjectData));
+                for (Node eventData : XMLUtils.children(subjectData, STUDYEVENTDATA)) { // ---- EventData ----
+                    PlannedEvent event = subject.addEvent(getAttribute(eventData, ATTR_STUDY_EVENT_OID).getNodeValue());
+                    event.setCreate(event.isCreate() || hasToBeCreated(eventData));
+                    Attr startDate = getAttribute(eventData, ATTR_OC_START_DATE, false);
+                    if (startDate != null && event.getStartDate() == null) {
+                        event.setStartDate(startDate.getNodeValue());
+                    }
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Look up the studies of a plan in the study directory of the connector,
+     * which lists the studies only if its list has expired. The event
+     * definitions (or, when populating, the subjects and their events as well)
+     * are fetched once per study not seen before by this resolver; event
+     * definitions come from the cache of the connector, shared with other
+     * resolvers, unless they have expired there.
+     *
+     * @param plan the plan
+     * @param populate load the subjects and scheduled events of the studies
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
+    private void resolveStudies(ResolutionPlan plan, final boolean populate)
+            throws ODMException, OCConnectorException {
+        List<Callable<Void>> fetches = new ArrayList<Callable<Void>>();
+        OperationTimer studyPhase = startPhase("studyLookup");
+        try {
+            if (!connector.hasStudyDirectory()) {
+                plan.addLookupCalls(1);
+            }
+            logger.debug("Resolved study; found " + connector.getStudyDirectory());
+            Map<String, Study> loading = new HashMap<String, Study>();
+            for (PlannedStudy planned : plan.getStudies()) {
+                Study study = connector.findStudy(planned.getIdentifier(), planned.isByOID());
+                String studyHashKey = studyHashKey(study);
+                Study known = studies.get(studyHashKey);
+                if (known != null) {
+                    study = known;
+                } else if (loading.containsKey(studyHashKey)) {
+                    study = loading.get(studyHashKey);
+                } else {
+                    loading.put(studyHashKey, study);
+                    plan.addLookupCalls((populate ? 1 : 0) + (connector.hasEventDefinitions(study) ? 0 : 1));
+                    final Study newStudy = study;
+                    fetches.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            if (populate) {
+                                connector.populateStudy(newStudy); // fetch study from OC
+                            } else {
+                                newStudy.setEvents(connector.getEventDefinitions(newStudy)); // get events
+                            }
+                            return null;
+                        }
+                    });
+                }
+                planned.setStudy(study);
             }
-            logger.debug("studies: " + studies.keySet());
-            // for each SubjectData j
-            NodeList subjectDatas = xPath(clinicalData, XPATH_SUBJECT_DATA);
-            logger.debug("Found " + subjectDatas.getLength() + " subjects");
-            for (int j = 0; j < subjectDatas.getLength(); ++j) {
-                Node subjectData = subjectDatas.item(j); // ---- SubjectData j ----
-                StudySubject subject = createStudySubject(study, subjectData);
+            invokeAll(fetches);
+            for (PlannedStudy planned : plan.getStudies()) { // share the studies loaded, unless loaded meanwhile
+                String studyHashKey = studyHashKey(planned.getStudy());
+                if (loading.get(studyHashKey) == planned.getStudy()) {
+                    Study shared = studies.putIfAbsent(studyHashKey, planned.getStudy());
+                    if (shared != null) {
+                        planned.setStudy(shared);
+                    }
+                }
+            }
+        } finally {
+            studyPhase.stop();
+        }
+        logger.debug("studies: " + studies.keySet());
+    }
+
+    private static String studyHashKey(Study study) {
+        return "Study: " + study.getStudyName() + ", Site: " + study.getSiteName();
+    }
+
+    /**
+     * Check a plan against its (resolved) studies before anything is written
+     * to OpenClinica: events must be defined in the study and, unless they
+     * have been scheduled already, flagged to be created.
+     *
+     * @param plan the plan
+     * @throws ODMException if the plan cannot be executed
+     * @throws OCConnectorException
+     */
+    private void validate(ResolutionPlan plan) throws ODMException, OCConnectorException {
+        for (PlannedSubject planned : plan.getSubjects()) {
+            Study study = planned.getPlannedStudy().getStudy();
+            StudySubject subject = createStudySubject(study, planned.getSubjectData());
+            synchronized (study) { // studies may be shared by resolvers, see ResolverService
                 for (StudySubject s : study.getStudySubjects()) { // make sure we reuse existing subjects...
-                    if (s.getStudySubjectLabel().equals(subject.getStudySubjectLabel())) {
+                    if (s.getStudySubjectLabel() != null && s.getStudySubjectLabel().equals(subject.getStudySubjectLabel())) {
                         subject = s;
+                        planned.setExisting(true);
                         logger.debug("Found subject " + s);
                         break;
                     }
                 }
-                handleSubjectDataNode(subjectData, subject);
-                try {
-                    connector.getSubjectOID(subject); // if this works it must be in the study (and in our model)
-                } catch (OCConnectorException e) {
-                    if (hasToBeCreated(subjectData)) {
-                        logger.info("Creating study subject...");
-                        connector.createStudySubject(subject);
-                        connector.getSubjectOID(subject);
-                        study.getStudySubjects().add(subject); // update model
-                    } else {
-                        logger.info("Failt to updateOID of subject " + subject);
-                        throw e;
-                    }
-                }
-                getAttribute(subjectData, "SubjectKey").setNodeValue(subject.getStudySubjectOID());
-
-                // for each EventData k
-                NodeList eventDatas = xPath(subjectData, XPATH_STUDYEVENTDATA);
-                for (int k = 0; k < eventDatas.getLength(); ++k) {
-                    String eventOID;
-                    Node eventData = eventDatas.item(k); // ---- EventData k ----
-                    eventOID = getAttribute(eventData, ATTR_STUDY_EVENT_OID).getNodeValue();
-                    boolean hasEvent = false;
+            }
+            planned.setSubject(subject);
+            for (PlannedEvent event : planned.getEvents()) {
+                synchronized (subject) {
                     for (ScheduledEvent scheduledEvent : subject.getScheduledEvents()) {
-                        if (scheduledEvent.getEventOID().equals(eventOID)) {
-                            hasEvent = true;
+                        if (scheduledEvent.getEventOID().equals(event.getEventOID())) {
+                            event.setScheduled(true);
                             break;
                         }
                     }
-                    if (!hasEvent) { // no scheduled event
-
-                        if (hasToBeCreated(eventData)) { // schedule one
-                            logger.debug("Scheduling event with OID " + eventOID);
-                            ScheduledEvent scheduledEvent = new ScheduledEvent(study.getEventDefinition(eventOID));
-                            // scheduling happens here...
-                            try {
-                                scheduledEvent.setStartDate(getAttribute(eventData, ATTR_OC_START_DATE).getNodeValue());
-                            } catch (ODMException e1) {
-                                // Ignore odm exception here as we can do
-                                // without a start date
-                                logger.info("Problem with event startdate" + e1.getMessage() + ". Ignoring");
-                            }
-                            logger.info("Scheduling event " + eventOID + " at " + scheduledEvent.getStartDate());
-                            connector.scheduleEvent(subject, scheduledEvent);
-                            subject.getScheduledEvents().add(scheduledEvent); // update model
-                        } else { // event not found (not scheduled)
-                            throw new ODMException("Event with OID '" + eventOID + "' not found!");
+                }
+                if (event.needsSchedule()) {
+                    if (!event.isCreate()) { // event not found (not scheduled)
+                        throw new ODMException("Event with OID '" + event.getEventOID() + "' not found!");
+                    }
+                    synchronized (study) {
+                        if (!isDefined(study, event.getEventOID())) { // may have been defined since
+                            study.setEvents(connector.refreshEventDefinitions(study));
                         }
+                        study.getEventDefinition(event.getEventOID());
                     }
                 }
             }
         }
-        removeAttributes(this.odm, "//@Mirth:*");
-        removeAttributes(this.odm, "//@OpenClinica:*[.='<VALUE>']");
-        return studies.values();
+    }
+
+    private static boolean isDefined(Study study, String eventOID) {
+        for (Event e : study.getEvents()) {
+            if (e.getEventOID().equals(eventOID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Execute a plan: create subjects, look up their OIDs and schedule events,
+     * subjects in parallel (see setParallelism()), the events of a subject one
+     * after the other. The resolved OIDs are then written into the attributes
+     * they were planned from, without walking the document; removing the
+     * events only to schedule and stripping the Mirth attributes and
+     * placeholders is left to the single rewriting pass of
+     * importClinicalData().
+     *
+     * @param plan a plan as returned by plan()
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
+    public void execute(final ResolutionPlan plan) throws ODMException, OCConnectorException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final PlannedSubject planned : plan.getSubjects()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    resolveSubject(planned, !plan.isPopulated());
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+        plan.rewrite();
+    }
+
+    /**
+     * Create a planned subject if required, fetch its OID and schedule its
+     * events.
+     *
+     * @param planned the planned subject
+     * @param probe look the subject up before creating it, as it may exist
+     * although its study did not list it
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
+    private void resolveSubject(PlannedSubject planned, boolean probe) throws ODMException, OCConnectorException {
+        Study study = planned.getPlannedStudy().getStudy();
+        StudySubject subject = planned.getSubject();
+        String studyOID = study.getStudyOID();
+        String handle = planned.getHandle();
+        handleSubjectDataNode(planned.getSubjectData(), subject);
+        String subjectOID = journal == null ? null : journal.getSubjectOID(studyOID, handle);
+        if (subjectOID == null) {
+            OperationTimer subjectPhase = startPhase("subjectResolution");
+            try {
+                if (planned.needsCreate() && (journal == null || !journal.isCreated(studyOID, handle))) {
+                    subjectOID = probe ? connector.findSubjectOID(subject) : null;
+                    if (subjectOID == null) {
+                        logger.info("Creating study subject...");
+                        connector.createStudySubject(subject);
+                        if (journal != null) {
+                            journal.created(studyOID, handle);
+                        }
+                    } else {
+                        logger.debug("Subject " + handle + " exists already");
+                    }
+                    synchronized (study) {
+                        study.getStudySubjects().add(subject); // update model
+                    }
+                }
+                if (subjectOID == null) {
+                    subjectOID = connector.getSubjectOID(subject);
+                }
+                if (journal != null) {
+                    journal.resolved(studyOID, handle, subjectOID);
+                }
+            } finally {
+                subjectPhase.stop();
+            }
+        } else {
+            logger.debug("Subject " + handle + " resolved before as " + subjectOID);
+        }
+        subject.setStudySubjectOID(subjectOID);
+        planned.setSubjectOID(subjectOID);
+        for (PlannedEvent event : planned.getEvents()) {
+            if (journal != null && journal.isScheduled(studyOID, handle, event.getEventOID())) {
+                logger.debug("Event " + event.getEventOID() + " of subject " + handle + " scheduled before");
+            } else if (event.needsSchedule()) {
+                logger.debug("Scheduling event with OID " + event.getEventOID());
+                ScheduledEvent scheduledEvent;
+                synchronized (study) {
+                    scheduledEvent = new ScheduledEvent(study.getEventDefinition(event.getEventOID()));
+                }
+                if (event.getStartDate() != null) {
+                    scheduledEvent.setStartDate(event.getStartDate());
+                } else {
+                    // we can do without a start date
+                    logger.info("Problem with event startdate: none given. Ignoring");
+                }
+                logger.info("Scheduling event " + event.getEventOID() + " at " + scheduledEvent.getStartDate());
+                OperationTimer schedulePhase = startPhase("scheduling");
+                try {
+                    connector.scheduleEvent(subject, scheduledEvent);
+                } finally {
+                    schedulePhase.stop();
+                }
+                if (journal != null) {
+                    journal.scheduled(studyOID, handle, event.getEventOID());
+                }
+                synchronized (subject) {
+                    subject.getScheduledEvents().add(scheduledEvent); // update model
+                }
+            }
+        }
     }
 
+    /**
+     * Run tasks, in parallel if so configured, and wait for all of them.
+     * The first failure (in task order) is rethrown.
+     *
+     * @param tasks the tasks
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
+    private void invokeAll(List<Callable<Void>> tasks) throws ODMException, OCConnectorException {
+        if (parallelism <= 1 || tasks.size() <= 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    rethrow(e);
+                }
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OCConnectorException("Interrupted while resolving ODM.", e);
+        } catch (ExecutionException e) {
+            rethrow(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Rethrow the failure of a task as one of our own exceptions
+     *
+     * @param t the failure
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
+    private static void rethrow(Throwable t) throws ODMException, OCConnectorException {
+        if (t instanceof ODMException) {
+            throw (ODMException) t;
+        } else if (t instanceof OCConnectorException) {
+            throw (OCConnectorException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new OCConnectorException(t.getMessage(), t);
+    }
     /**
      * Hook for additional node processing at subject data level
      *
@@ -485,8 +797,12 @@ public class ClinicalODMResolver extends ClinicalODM {
      */
     public int resolveOdmDocument() throws OCConnectorException, ODMException {
 
-        Node rootNode = xPath("/cdisc:ODM", true).item(0);
-		logger.debug("Found rootNode: " + XMLUtils.nodeToString(rootNode));
+        // cleaning leaves the ODM without the cdisc namespace, so take the
+        // document element rather than querying for /cdisc:ODM
+        Node rootNode = odm.getDocumentElement();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Found rootNode: " + XMLUtils.nodeToString(rootNode));
+        }
         if (performPreliminaryConsistencyCheck(rootNode)) {
             resolvStudy();
             return 1;
@@ -496,98 +812,461 @@ public class ClinicalODMResolver extends ClinicalODM {
         }
     }
 
+    /**
+     * Resolve "this" without loading the subjects of the studies involved:
+     * subjects flagged to be created are created and all events flagged to be
+     * created are scheduled.
+     *
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
     public void resolveStudySubectsID() throws ODMException, OCConnectorException {
-        this.clean();
+        execute(plan(false));
+    }
 
-        NodeList clinicalDatas = xPath(XPATH_CLINICAL_DATA);
-        logger.info("Processing clinicalDatas " + clinicalDatas.getLength());
-        ListAllResponse allStudies = connector.listAllStudies(); // fetch available studies
-        for (int i = 0; i < clinicalDatas.getLength(); ++i) {
-            Node clinicalData = clinicalDatas.item(i); // ---- ClinicalData i ----
-            Attr studyOID = getAttribute(clinicalData, ATTR_STUDYOID);
-            Study study = connector.findStudy(allStudies, studyOID.getNodeValue(), !translateOrNot(clinicalData));
-            study.setEvents(connector.fetchEventDefinitions(study)); // get events
-            studyOID.setNodeValue(study.getStudyOID()); // update OID field (it may have been translated)
-            String studyHashKey = "Study: " + study.getStudyName() + ", Site: " + study.getSiteName();
-            if (studies.containsKey(studyHashKey)) {
-                study = studies.get(studyHashKey);
-            } else {
-                studies.put(studyHashKey, study);
+    /**
+     * // TODO: The cleaning part needs to be cleaned up and perhaps remodeled.
+     * Clean "this" but more than with clean(), hence the name...
+     *
+     * @return clean version of "this" as a shortcut.
+     * @throws OCConnectorException
+     */
+    public ClinicalODM extraClean() throws OCConnectorException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("extraClean() (before): " + this);
+        }
+        ODMRewriter.forUpload().rewrite(this.odm);
+        if (logger.isDebugEnabled()) {
+            logger.debug("extraClean() (after): " + this);
+        }
+        return this;
+    }
+
+    /**
+     * Upload the resolved ODM ("this") to OpenClinica. Events that only have
+     * to be scheduled are removed and the Mirth attributes and placeholders
+     * stripped first, unless execute() did so, after which the document is chopped
+     * up into its ClinicalData nodes and each ClinicalData holding event data
+     * is uploaded in a dataImport() call of its own. If a chunk sizer is set,
+     * SubjectData nodes are uploaded in chunks of the size it decides
+     * instead. If a validator is set, subjects failing its checks are left
+     * out and put in quarantine.
+     *
+     * @return the number of uploads
+     * @throws OCConnectorException
+     */
+    public int importClinicalData() throws OCConnectorException {
+        return importClinicalData(null);
+    }
+
+    /**
+     * Work out the uploads importClinicalData() would do, without uploading
+     * anything, and add them to a plan. A copy of "this" is used, so the
+     * document is left as is. The byte count is approximate if "this" has not
+     * been resolved yet, as OIDs and labels may differ in length.
+     *
+     * @param plan the plan to add the uploads to
+     * @throws OCConnectorException
+     */
+    public void estimateImport(ResolutionPlan plan) throws OCConnectorException {
+        Document original = getOdm();
+        setOdm((Document) original.cloneNode(true));
+        try {
+            importClinicalData(plan);
+        } finally {
+            setOdm(original);
+        }
+    }
+
+    /**
+     * Upload "this", or only count the uploads. The events only to schedule
+     * are removed and the Mirth attributes and placeholders stripped first.
+     *
+     * @param estimate plan to count the uploads in instead of uploading, null
+     * to upload
+     * @return the number of ClinicalData nodes (to be) uploaded
+     * @throws OCConnectorException
+     */
+    private int importClinicalData(ResolutionPlan estimate) throws OCConnectorException {
+        if (estimate == null) {
+            quarantine = null;
+            quarantined.clear();
+            quarantinedCount = 0;
+        }
+        Document odmDoc = getOdm();
+        ODMRewriter rewriter = ODMRewriter.forUpload();
+        rewriter.setPruneScheduleOnly(true);
+        rewriter.rewrite(odmDoc);
+        Node odmNode = odmDoc.getDocumentElement();
+        // bulk load -- chop up into ClinicaDatas...
+        List<Element> clinicalDatas = XMLUtils.children(odmNode, CLINICAL_DATA);
+        for (Node clinicalData : clinicalDatas) {
+            odmNode.removeChild(clinicalData);
+        }
+        setOdm(odmDoc); // important!
+        if (chunkSizer != null) {
+            return importChunks(odmNode, clinicalDatas, estimate);
+        }
+        int uploaded = 0;
+        for (int i = 0; i < clinicalDatas.size(); ++i) {
+            Node clinicalData = clinicalDatas.get(i);
+            String chunk = String.valueOf(i);
+            if (estimate == null && journal != null && journal.isUploaded(chunk)) {
+                logger.info("ClinicalData " + chunk + " uploaded before.");
+                continue;
+            }
+            if (validator != null) {
+                for (Node subjectData : XMLUtils.children(clinicalData, SUBJECT_DATA)) {
+                    if (!accept(subjectData, estimate)) {
+                        clinicalData.removeChild(subjectData);
+                    }
+                }
             }
-            NodeList subjectDatas = xPath(clinicalData, XPATH_SUBJECT_DATA);
-            logger.debug("Found " + subjectDatas.getLength() + " subjects");
-            for (int j = 0; j < subjectDatas.getLength(); ++j) {
-                Node subjectData = subjectDatas.item(j); // ---- SubjectData j ----
-                StudySubject subject = createStudySubject(study, subjectData);
-
-                if (hasToBeCreated(subjectData)) {
-                    logger.info("Creating study subject...");
-                    connector.createStudySubject(subject);
-                    study.getStudySubjects().add(subject); // update model
+            if (hasEventToUpload(clinicalData)) {
+                odmNode.appendChild(clinicalData);
+                try {
+                    upload(estimate);
+                } finally {
+                    odmNode.removeChild(clinicalData);
                 }
+                if (estimate == null && journal != null) {
+                    journal.uploaded(chunk);
+                }
+                uploaded++;
+            } else {
+                logger.info("No events to upload found in node.");
+            }
+        }
+        return uploaded;
+    }
 
-                IsStudySubjectResponse isStudySubjectResponse = connector.isStudySubject(subject);
-                String subjectOID = isStudySubjectResponse.getStudySubjectOID();
-                getAttribute(subjectData, "SubjectKey").setNodeValue(subjectOID);
-                NodeList eventDatas = xPath(subjectData, XPATH_STUDYEVENTDATA);
-                for (int k = 0; k < eventDatas.getLength(); ++k) {
-                    String eventOID;
-                    Node eventData = eventDatas.item(k); // ---- EventData k ----
-                    eventOID = getAttribute(eventData, ATTR_STUDY_EVENT_OID).getNodeValue();
-                    boolean hasEvent = false;
-                    for (ScheduledEvent scheduledEvent : subject.getScheduledEvents()) {
-                        if (scheduledEvent.getEventOID().equals(eventOID)) {
-                            hasEvent = true;
-                            break;
-                        }
-                    }
-                    if (!hasEvent) { // no scheduled event
-
-                        if (hasToBeCreated(eventData)) { // schedule one
-                            logger.debug("Scheduling event with OID " + eventOID);
-                            ScheduledEvent scheduledEvent = new ScheduledEvent(study.getEventDefinition(eventOID));
-                            // scheduling happens here...
-                            try {
-                                scheduledEvent.setStartDate(getAttribute(eventData, ATTR_OC_START_DATE).getNodeValue());
-                            } catch (ODMException e1) {
-                                // Ignore odm exception here as we can do
-                                // without a start date
-                                logger.info("Problem with event startdate" + e1.getMessage() + ". Ignoring");
-                            }
-                            logger.info("Scheduling event " + eventOID + " at " + scheduledEvent.getStartDate());
-                            connector.scheduleEvent(subject, scheduledEvent);
-                            subject.getScheduledEvents().add(scheduledEvent); // update model
-                        } else { // event not found (not scheduled)
-                            throw new ODMException("Event with OID '" + eventOID + "' not found!");
-                        }
+    /**
+     * Upload ClinicalData nodes in chunks sized by the chunk sizer. The
+     * SubjectData nodes holding events are the units of upload: consecutive
+     * ones are merged into a single upload as long as their ClinicalData
+     * nodes carry the same attributes (study, metadata version) and the
+     * chunk size allows; large ClinicalData nodes are split. An upload of
+     * more than one SubjectData that fails in transport (e.g. times out) is
+     * retried in smaller chunks; data rejected by OpenClinica fails straight
+     * away.
+     *
+     * @param odmNode the (emptied) ODM element
+     * @param clinicalDatas the ClinicalData nodes taken from it
+     * @param estimate plan to count the uploads in instead of uploading, null
+     * to upload
+     * @return the number of uploads
+     * @throws OCConnectorException
+     */
+    private int importChunks(Node odmNode, List<Element> clinicalDatas, ResolutionPlan estimate)
+            throws OCConnectorException {
+        List<Node> units = new ArrayList<Node>();
+        List<String> keys = new ArrayList<String>();
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < clinicalDatas.size(); ++i) {
+            List<Element> subjectDatas = XMLUtils.children(clinicalDatas.get(i), SUBJECT_DATA);
+            for (int j = 0; j < subjectDatas.size(); ++j) {
+                Node subjectData = subjectDatas.get(j);
+                String key = i + "." + j;
+                if (estimate == null && journal != null && journal.isUploaded(key)) {
+                    logger.info("SubjectData " + key + " uploaded before.");
+                } else if (!XMLUtils.children(subjectData, STUDYEVENTDATA).isEmpty() && accept(subjectData, estimate)) {
+                    units.add(subjectData);
+                    keys.add(key);
+                    items.add(Math.max(1, ((Element) subjectData).getElementsByTagNameNS("*", "ItemData").getLength()));
+                }
+            }
+        }
+        int uploaded = 0;
+        int next = 0;
+        while (next < units.size()) {
+            // fill a chunk
+            int limit = chunkSizer.getChunkItems();
+            int end = next;
+            int chunkItems = 0;
+            do {
+                chunkItems += items.get(end);
+                end++;
+            } while (end < units.size() && chunkItems + items.get(end) <= limit
+                    && sameAttributes(units.get(end).getParentNode(), units.get(next).getParentNode()));
+            Node chunk = units.get(next).getParentNode().cloneNode(false);
+            for (int k = next; k < end; k++) {
+                chunk.appendChild(units.get(k));
+            }
+            odmNode.appendChild(chunk);
+            long nanos;
+            try {
+                nanos = upload(estimate);
+            } catch (OCConnectorException e) {
+                if (!e.isTransportFailure()) {
+                    throw e; // rejected by OpenClinica, which a smaller chunk will not change
+                }
+                chunkSizer.failure(chunkItems);
+                if (end - next == 1) {
+                    throw e;
+                }
+                logger.info("Upload of " + (end - next) + " subjects failed, retrying in smaller chunks: "
+                        + e.getMessage());
+                continue;
+            } finally {
+                odmNode.removeChild(chunk);
+            }
+            if (estimate == null) {
+                chunkSizer.success(chunkItems, nanos);
+                if (journal != null) {
+                    for (int k = next; k < end; k++) {
+                        journal.uploaded(keys.get(k));
                     }
                 }
             }
+            uploaded++;
+            next = end;
+        }
+        if (estimate == null) {
+            logger.info("Uploaded " + units.size() + " subjects in " + uploaded + " chunks; " + chunkSizer);
         }
+        return uploaded;
     }
 
     /**
-     * // TODO: The cleaning part needs to be cleaned up and perhaps remodeled.
-     * Clean "this" but more than with clean(), hence the name...
+     * Check a SubjectData node with the validator, if any, and put it in
+     * quarantine if it fails. No checks are done for estimates.
      *
-     * @return clean version of "this" as a shortcut.
+     * @param subjectData the SubjectData node, still in its ClinicalData
+     * @param estimate plan the upload is counted in, null if uploading
+     * @return true if the subject may be uploaded
+     * @throws OCConnectorException if the study or its metadata cannot be
+     * fetched
+     */
+    private boolean accept(Node subjectData, ResolutionPlan estimate) throws OCConnectorException {
+        if (validator == null || estimate != null) {
+            return true;
+        }
+        String studyOID = ((Element) subjectData.getParentNode()).getAttribute(ATTR_STUDYOID);
+        Study study = null;
+        for (Study known : studies.values()) {
+            if (studyOID.equals(known.getStudyOID())) {
+                study = known;
+                break;
+            }
+        }
+        if (study == null) {
+            study = connector.findStudy(studyOID, true);
+        }
+        List<String> problems = validator.validate(subjectData, validator.getIndex(study));
+        if (problems.isEmpty()) {
+            return true;
+        }
+        logger.warn("Subject " + ((Element) subjectData).getAttribute(ATTR_OC_SUBJECTKEY) + " of " + studyOID
+                + " not uploaded: " + problems);
+        quarantine(subjectData, problems);
+        return false;
+    }
+
+    /**
+     * Copy a SubjectData node into the quarantine document, preceded by a
+     * comment for each problem found
+     *
+     * @param subjectData the SubjectData node, still in its ClinicalData
+     * @param problems the problems found
+     */
+    private void quarantine(Node subjectData, List<String> problems) {
+        if (quarantine == null) {
+            quarantine = documentBuilder.newDocument();
+            quarantine.appendChild(quarantine.importNode(odm.getDocumentElement(), false));
+        }
+        Node clinicalData = quarantined.get(subjectData.getParentNode());
+        if (clinicalData == null) {
+            clinicalData = quarantine.importNode(subjectData.getParentNode(), false);
+            quarantine.getDocumentElement().appendChild(clinicalData);
+            quarantined.put(subjectData.getParentNode(), clinicalData);
+        }
+        for (String problem : problems) {
+            clinicalData.appendChild(quarantine.createComment(" " + problem.replace("--", "- -") + " "));
+        }
+        clinicalData.appendChild(quarantine.importNode(subjectData, true));
+        quarantinedCount++;
+    }
+
+    /**
+     * Check whether two elements carry the same attributes
+     *
+     * @param a an element
+     * @param b another element
+     * @return true if the attributes (names and values) are equal
+     */
+    private static boolean sameAttributes(Node a, Node b) {
+        return a == b || a.cloneNode(false).isEqualNode(b.cloneNode(false));
+    }
+
+    /**
+     * Upload "this" in a single dataImport() call, or only count the upload
+     *
+     * @param estimate plan to count the upload in instead of uploading, null
+     * to upload
+     * @return time the upload took in nanoseconds, through a coalescer only
+     * the time of the dataImport() calls
      * @throws OCConnectorException
      */
-    public ClinicalODM extraClean() throws OCConnectorException {
-        logger.debug("extraClean() (before): " + this);
-        removeAttributes(this.odm, "//@Mirth:*");
-        removeAttributes(this.odm, "//@OpenClinica:*[.='<VALUE>']");
-        removeAttributes(this.odm, "//@StudyEventRepeatKey[.='<VALUE>']");
-        removeAttributes(this.odm, "//@ItemGroupRepeatKey[.='<VALUE>']");
-        logger.debug("extraClean() (after): " + this);
-        return this;
+    private long upload(ResolutionPlan estimate) throws OCConnectorException {
+        String dataToUpload;
+        if (estimate != null) {
+            dataToUpload = toWireString();
+            estimate.addUpload(dataToUpload.getBytes(UTF8).length);
+            return 0;
+        }
+        long nanos;
+        long coalescedNanos = -1;
+        OperationTimer uploadPhase = startPhase("upload");
+        try {
+            if (coalescer != null) { // combined with the uploads of other documents
+                coalescedNanos = coalescer.importODM(odm.getDocumentElement());
+                dataToUpload = null;
+            } else {
+                dataToUpload = toWireString();
+                connector.importODM(dataToUpload);
+            }
+        } catch (OCConnectorException e) {
+            uploadPhase.failed();
+            throw e;
+        } finally {
+            nanos = uploadPhase.stop();
+        }
+        if (coalescedNanos >= 0) {
+            nanos = coalescedNanos; // without the time spent waiting to be combined
+        }
+        logger.info("Uploaded data to " + connector.getBaseURL());
+        if (logger.isDebugEnabled() && dataToUpload != null) {
+            logger.debug("Data " + dataToUpload);
+        }
+        return nanos;
+    }
+
+    /**
+     * Start timing a resolver phase against the server of our connector
+     *
+     * @param phase phase name
+     * @return a running timer
+     */
+    private OperationTimer startPhase(String phase) {
+        return Metrics.start(Metrics.COMPONENT_RESOLVER, phase, connector.getBaseURL());
     }
 
     /**
      * Clear all study data
      */
     public void clearCache() {
-        studies = new HashMap<String, Study>(); // <unique id (study name + sitename), study object>
+        studies = new ConcurrentHashMap<String, Study>(); // <unique id (study name + sitename), study object>
+        if (validator != null) {
+            validator.clearCache();
+        }
+    }
+
+    /**
+     * Number of subjects resolved (and studies looked up) in parallel
+     *
+     * @return parallelism, 1 for none
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of subjects resolved (and studies looked up) in
+     * parallel. The connector is shared by all threads.
+     *
+     * @param parallelism parallelism, 1 (the default) for none
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return journal of the work done, null if none
+     */
+    public ImportJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Keep a journal of the work done. Subjects, events and uploads recorded
+     * in the journal already are skipped.
+     *
+     * @param journal the journal, null for none
+     */
+    public void setJournal(ImportJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the chunk sizer, null if none
+     */
+    public AdaptiveChunkSizer getChunkSizer() {
+        return chunkSizer;
+    }
+
+    /**
+     * Size uploads with a chunk sizer rather than uploading each ClinicalData
+     * in a dataImport() call of its own. See importClinicalData().
+     *
+     * @param chunkSizer the chunk sizer, null for one upload per ClinicalData
+     */
+    public void setChunkSizer(AdaptiveChunkSizer chunkSizer) {
+        this.chunkSizer = chunkSizer;
+    }
+
+    /**
+     * @return the validator, null if none
+     */
+    public ItemValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Check every subject against the metadata of its study before upload.
+     * Subjects failing the check are not uploaded but put in quarantine, see
+     * getQuarantine().
+     *
+     * @param validator the validator, null (the default) for no checks
+     */
+    public void setValidator(ItemValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * @return the coalescer, null if none
+     */
+    public ImportCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Combine uploads with those of other documents (resolvers) sharing the
+     * coalescer. An upload then waits for the combined upload it is part
+     * of.
+     *
+     * @param coalescer the coalescer, null (the default) to upload on our own
+     */
+    public void setCoalescer(ImportCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * The subjects kept out of the last importClinicalData() by the
+     * validator, as ODM. Each SubjectData is preceded by comments listing the
+     * problems found.
+     *
+     * @return the quarantined subjects, null if none
+     * @throws OCConnectorException
+     */
+    public ClinicalODM getQuarantine() throws OCConnectorException {
+        return quarantine == null ? null : new ClinicalODM(quarantine, false);
+    }
+
+    /**
+     * @return number of subjects kept out of the last importClinicalData()
+     */
+    public int getQuarantinedCount() {
+        return quarantinedCount;
     }
 
     /**
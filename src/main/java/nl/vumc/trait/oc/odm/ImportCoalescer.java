@@ -0,0 +1,416 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.metrics.Metrics;
+import nl.vumc.trait.oc.metrics.OperationTimer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Merges the uploads of concurrent documents into combined dataImport()
+ * calls. Small documents, such as the single lab result of a Mirth message,
+ * otherwise cost a web service call each. A thread uploading a ClinicalData
+ * hands it to the coalescer and waits: the first to arrive for a study (the
+ * ClinicalData attributes, really) waits for the linger time, or until the
+ * maximum number of subjects is reached, and then uploads the SubjectData of
+ * all ClinicalData collected in the meantime in one call. Each thread gets
+ * the outcome of its own data: if OpenClinica rejects a combined upload,
+ * the ClinicalData are uploaded one by one, so a bad message fails on its
+ * own. Any other failure, e.g. a time-out, fails all ClinicalData of the
+ * call without uploading them again: OpenClinica may have imported them.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class ImportCoalescer {
+
+    private static final Logger logger = LogManager.getLogger(ImportCoalescer.class);
+    /**
+     * Default time to wait for more data to upload with the first: 200 ms
+     */
+    public static final long DEFAULT_LINGER_MILLIS = 200;
+    /**
+     * Default maximum number of SubjectData in a combined upload
+     */
+    public static final int DEFAULT_MAX_SUBJECTS = 100;
+    private final OCWebServices connector;
+    private final long lingerMillis;
+    private final int maxSubjects;
+    private final DocumentBuilder documentBuilder;
+    /**
+     * uploads still collecting data, by ClinicalData attributes; also guards
+     * the counters and the document builder
+     */
+    private final Map<String, Upload> open = new HashMap<String, Upload>();
+    private long uploads;
+    private long fragments;
+    private long fallbacks;
+
+    /**
+     * Create a coalescer with the default linger time and maximum
+     *
+     * @param connector OpenClinica web services
+     * @throws OCConnectorException
+     */
+    public ImportCoalescer(OCWebServices connector) throws OCConnectorException {
+        this(connector, DEFAULT_LINGER_MILLIS, DEFAULT_MAX_SUBJECTS);
+    }
+
+    /**
+     * Create a coalescer
+     *
+     * @param connector OpenClinica web services
+     * @param lingerMillis time to wait for more data to upload with the first
+     * @param maxSubjects maximum number of SubjectData in a combined upload
+     * @throws OCConnectorException
+     */
+    public ImportCoalescer(OCWebServices connector, long lingerMillis, int maxSubjects)
+            throws OCConnectorException {
+        this.connector = connector;
+        this.lingerMillis = lingerMillis;
+        this.maxSubjects = Math.max(1, maxSubjects);
+        try {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true); // <- important!
+            documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new OCConnectorException("Cannot instantiate ImportCoalescer.", e);
+        }
+    }
+
+    /**
+     * Upload the ClinicalData elements of an ODM element, combined with those
+     * of other threads, and wait for the outcome. The element is copied, so
+     * it may be changed as soon as this method returns.
+     *
+     * @param odm ODM element holding the ClinicalData to upload
+     * @return time taken by the dataImport() calls carrying the data in
+     * nanoseconds, not counting the time spent waiting for other data or for
+     * the calls of other threads
+     * @throws OCConnectorException if the data could not be uploaded
+     */
+    public long importODM(Element odm) throws OCConnectorException {
+        long nanos = 0;
+        for (Node node = odm.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                nanos += importClinicalData(odm, node);
+            }
+        }
+        return nanos;
+    }
+
+    private long importClinicalData(Element odm, Node clinicalData) throws OCConnectorException {
+        String key = attributes(clinicalData);
+        Fragment fragment;
+        Upload upload;
+        boolean first = false;
+        synchronized (open) {
+            Document copy = documentBuilder.newDocument();
+            copy.appendChild(copy.importNode(odm, false)).appendChild(copy.importNode(clinicalData, true));
+            fragment = new Fragment(copy);
+            upload = open.get(key);
+            if (upload == null) {
+                upload = new Upload();
+                open.put(key, upload);
+                first = true;
+            }
+            upload.fragments.add(fragment);
+            upload.subjects += Math.max(1, fragment.getSubjectCount());
+            if (upload.subjects >= maxSubjects) {
+                close(key, upload);
+            }
+        }
+        if (first) {
+            linger(key, upload);
+            flush(upload.fragments);
+        }
+        return fragment.await();
+    }
+
+    /**
+     * Wait for an upload to fill up or the linger time to pass, then close it
+     */
+    private void linger(String key, Upload upload) {
+        long deadline = System.currentTimeMillis() + lingerMillis;
+        synchronized (open) {
+            try {
+                long remaining;
+                while (!upload.closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    open.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!upload.closed) {
+                close(key, upload);
+            }
+        }
+    }
+
+    private void close(String key, Upload upload) {
+        open.remove(key);
+        upload.closed = true;
+        open.notifyAll();
+    }
+
+    /**
+     * Upload the fragments in one call, or one by one if that fails. Whatever
+     * happens, every fragment is done afterwards, so no thread waits forever.
+     */
+    private void flush(List<Fragment> collected) {
+        try {
+            upload(collected);
+        } finally {
+            for (Fragment fragment : collected) {
+                if (!fragment.isDone()) {
+                    fragment.done(new OCConnectorException("Upload of ClinicalData did not complete."), 0);
+                }
+            }
+        }
+    }
+
+    private void upload(List<Fragment> collected) {
+        if (collected.size() > 1) {
+            Document merged;
+            synchronized (open) {
+                Document first = collected.get(0).document;
+                merged = documentBuilder.newDocument();
+                Node clinicalData = merged.appendChild(merged.importNode(first.getDocumentElement(), false))
+                        .appendChild(merged.importNode(first.getDocumentElement().getFirstChild(), false));
+                for (Fragment fragment : collected) {
+                    Node source = fragment.document.getDocumentElement().getFirstChild();
+                    for (Node node = source.getFirstChild(); node != null; node = node.getNextSibling()) {
+                        clinicalData.appendChild(merged.importNode(node, true));
+                    }
+                }
+            }
+            try {
+                long nanos = upload(merged);
+                for (Fragment fragment : collected) {
+                    fragment.done(null, nanos);
+                }
+                synchronized (open) {
+                    fragments += collected.size();
+                }
+                logger.info("Uploaded " + collected.size() + " ClinicalData in a single call");
+                return;
+            } catch (OCConnectorException e) {
+                if (e.isTransportFailure()) {
+                    logger.warn("Combined upload of " + collected.size() + " ClinicalData failed: "
+                            + e.getMessage());
+                    failAll(collected, e);
+                    return;
+                }
+                logger.info("Combined upload of " + collected.size() + " ClinicalData was rejected, uploading "
+                        + "them one by one: " + e.getMessage());
+                synchronized (open) {
+                    fallbacks++;
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Combined upload of " + collected.size() + " ClinicalData failed", e);
+                failAll(collected, new OCConnectorException(e.getMessage(), e));
+                return;
+            }
+        }
+        for (Fragment fragment : collected) {
+            try {
+                fragment.done(null, upload(fragment.document));
+            } catch (OCConnectorException e) {
+                fragment.done(e, 0);
+            } catch (RuntimeException e) {
+                fragment.done(new OCConnectorException(e.getMessage(), e), 0);
+            }
+            synchronized (open) {
+                fragments++;
+            }
+        }
+    }
+
+    /**
+     * Fail all fragments of a combined upload with the same exception
+     */
+    private void failAll(List<Fragment> collected, OCConnectorException e) {
+        for (Fragment fragment : collected) {
+            fragment.done(e, 0);
+        }
+        synchronized (open) {
+            fragments += collected.size();
+        }
+    }
+
+    /**
+     * Upload a document in one dataImport() call
+     *
+     * @return time taken in nanoseconds
+     */
+    private long upload(Document document) throws OCConnectorException {
+        long nanos;
+        OperationTimer timer = Metrics.start(Metrics.COMPONENT_RESOLVER, "coalescedUpload", connector.getBaseURL());
+        try {
+            connector.importODM(new ClinicalODM(document, false).toWireString());
+        } catch (OCConnectorException e) {
+            timer.failed();
+            throw e;
+        } finally {
+            nanos = timer.stop();
+        }
+        synchronized (open) {
+            uploads++;
+        }
+        return nanos;
+    }
+
+    /**
+     * The attributes of an element, by which ClinicalData are combined
+     */
+    private static String attributes(Node element) {
+        StringBuilder sb = new StringBuilder(element.getNodeName());
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attr = attributes.item(i);
+            sb.append(' ').append(attr.getNodeName()).append("=\"").append(attr.getNodeValue()).append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return time to wait for more data to upload with the first
+     */
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * @return maximum number of SubjectData in a combined upload
+     */
+    public int getMaxSubjects() {
+        return maxSubjects;
+    }
+
+    /**
+     * @return number of dataImport() calls made
+     */
+    public long getUploads() {
+        synchronized (open) {
+            return uploads;
+        }
+    }
+
+    /**
+     * @return number of ClinicalData uploaded, or failed to upload
+     */
+    public long getFragments() {
+        synchronized (open) {
+            return fragments;
+        }
+    }
+
+    /**
+     * @return number of combined uploads that failed, after which the
+     * ClinicalData were uploaded one by one
+     */
+    public long getFallbacks() {
+        synchronized (open) {
+            return fallbacks;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (open) {
+            return "uploads: " + uploads + ", ClinicalData: " + fragments + ", fallbacks: " + fallbacks;
+        }
+    }
+
+    /**
+     * ClinicalData collected for a combined upload
+     */
+    private static class Upload {
+
+        private final List<Fragment> fragments = new ArrayList<Fragment>();
+        private int subjects;
+        private boolean closed;
+    }
+
+    /**
+     * A ClinicalData (in an ODM document of its own) and the outcome of its
+     * upload
+     */
+    private static class Fragment {
+
+        private final Document document;
+        private final CountDownLatch uploaded = new CountDownLatch(1);
+        private volatile OCConnectorException failure;
+        private volatile long nanos;
+
+        Fragment(Document document) {
+            this.document = document;
+        }
+
+        int getSubjectCount() {
+            int count = 0;
+            for (Node node = document.getDocumentElement().getFirstChild().getFirstChild(); node != null;
+                    node = node.getNextSibling()) {
+                if (node.getNodeType() == Node.ELEMENT_NODE) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void done(OCConnectorException failure, long nanos) {
+            this.failure = failure;
+            this.nanos = nanos;
+            uploaded.countDown();
+        }
+
+        boolean isDone() {
+            return uploaded.getCount() == 0;
+        }
+
+        /**
+         * @return time taken by the upload of the fragment in nanoseconds
+         */
+        long await() throws OCConnectorException {
+            try {
+                uploaded.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OCConnectorException("Interrupted while waiting for upload.", e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of the work done while importing an ODM file: subjects
+ * created, subject OIDs resolved, events scheduled and chunks uploaded. The
+ * journal file is named after a hash of the server and the input, so a rerun
+ * of a failed import of the same file finds it and skips the work recorded.
+ * Every record is a single tab separated line ending in a CRC32 checksum of
+ * the record, written and flushed as soon as the work is done. A record cut
+ * short by a crash (no line end, or a checksum that does not match) is
+ * ignored, and cut off the file before new records are appended.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class ImportJournal {
+
+    private static final Logger logger = LogManager.getLogger(ImportJournal.class);
+    private static final String CREATED = "created";
+    private static final String SUBJECT = "subject";
+    private static final String EVENT = "event";
+    private static final String UPLOAD = "upload";
+    /**
+     * journal file
+     */
+    private final File file;
+    /**
+     * created subjects, keyed by study OID + subject handle
+     */
+    private final Set<String> created = new HashSet<String>();
+    /**
+     * resolved subject OIDs, keyed by study OID + subject handle
+     */
+    private final Map<String, String> subjects = new HashMap<String, String>();
+    /**
+     * scheduled events, keyed by study OID + subject handle + event OID
+     */
+    private final Set<String> events = new HashSet<String>();
+    /**
+     * uploaded chunks
+     */
+    private final Set<String> uploads = new HashSet<String>();
+    private Writer writer;
+
+    /**
+     * Open (or create) a journal file, reading the records it holds
+     *
+     * @param file the journal file
+     * @throws OCConnectorException if the journal cannot be read or opened
+     * for writing
+     */
+    public ImportJournal(File file) throws OCConnectorException {
+        this.file = file;
+        try {
+            if (file.exists()) {
+                long length = read();
+                logger.info("Resuming from journal " + file + ": " + subjects.size() + " subjects, "
+                        + events.size() + " events, " + uploads.size() + " uploads done");
+                if (length < file.length()) {
+                    logger.warn("Cutting off the incomplete last record of journal " + file);
+                    truncate(length);
+                }
+            }
+            writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        } catch (IOException e) {
+            throw new OCConnectorException("Cannot open import journal " + file, e);
+        }
+    }
+
+    /**
+     * Open (or create) the journal for an import
+     *
+     * @param directory directory holding the journals
+     * @param baseURL OpenClinica web services URL imported into
+     * @param input the (raw) input imported
+     * @return the journal
+     * @throws OCConnectorException
+     */
+    public static ImportJournal open(File directory, String baseURL, byte[] input) throws OCConnectorException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new OCConnectorException("Cannot create journal directory " + directory);
+        }
+        return new ImportJournal(new File(directory, key(baseURL, input) + ".journal"));
+    }
+
+    /**
+     * The key of an import: a hash of the server and the input
+     *
+     * @param baseURL OpenClinica web services URL
+     * @param input the (raw) input
+     * @return hex SHA1 hash
+     * @throws OCConnectorException
+     */
+    public static String key(String baseURL, byte[] input) throws OCConnectorException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            md.update(baseURL.getBytes("UTF-8"));
+            md.update((byte) 0);
+            return new BigInteger(1, md.digest(input)).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new OCConnectorException("Cannot digest input", e);
+        } catch (IOException e) {
+            throw new OCConnectorException("Cannot digest input", e);
+        }
+    }
+
+    /**
+     * Read the records of the journal file
+     *
+     * @return the length of the file up to the end of the last good record
+     * @throws IOException
+     */
+    private long read() throws IOException {
+        byte[] bytes = readFile();
+        long length = 0;
+        int start = 0;
+        for (int end = 0; end < bytes.length; end++) {
+            if (bytes[end] == '\n') {
+                String line = new String(bytes, start, end - start, "UTF-8");
+                if (apply(line)) {
+                    length = end + 1;
+                } else {
+                    logger.warn("Ignoring journal line '" + line + "'");
+                }
+                start = end + 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Take in a record read from the journal file
+     *
+     * @param line the record, without line end
+     * @return false if the record is invalid
+     */
+    private boolean apply(String line) {
+        int tab = line.lastIndexOf('\t');
+        if (tab < 0 || !line.substring(tab + 1).equals(checksum(line.substring(0, tab)))) {
+            return false;
+        }
+        String[] fields = line.substring(0, tab).split("\t", -1);
+        if (CREATED.equals(fields[0]) && fields.length == 3) {
+            created.add(key(fields[1], fields[2]));
+        } else if (SUBJECT.equals(fields[0]) && fields.length == 4) {
+            subjects.put(key(fields[1], fields[2]), unescape(fields[3]));
+        } else if (EVENT.equals(fields[0]) && fields.length == 4) {
+            events.add(key(fields[1], fields[2], fields[3]));
+        } else if (UPLOAD.equals(fields[0]) && fields.length == 2) {
+            uploads.add(fields[1]);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private byte[] readFile() throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean isCreated(String studyOID, String subject) {
+        return created.contains(key(escape(studyOID), escape(subject)));
+    }
+
+    /**
+     * @return the OID of a subject resolved before, null if none
+     */
+    public synchronized String getSubjectOID(String studyOID, String subject) {
+        return subjects.get(key(escape(studyOID), escape(subject)));
+    }
+
+    public synchronized boolean isScheduled(String studyOID, String subject, String eventOID) {
+        return events.contains(key(escape(studyOID), escape(subject), escape(eventOID)));
+    }
+
+    public synchronized boolean isUploaded(String chunk) {
+        return uploads.contains(escape(chunk));
+    }
+
+    public synchronized void created(String studyOID, String subject) throws OCConnectorException {
+        String key = key(escape(studyOID), escape(subject));
+        created.add(key);
+        append(CREATED + '\t' + key);
+    }
+
+    public synchronized void resolved(String studyOID, String subject, String subjectOID)
+            throws OCConnectorException {
+        String key = key(escape(studyOID), escape(subject));
+        subjects.put(key, subjectOID);
+        append(SUBJECT + '\t' + key + '\t' + escape(subjectOID));
+    }
+
+    public synchronized void scheduled(String studyOID, String subject, String eventOID)
+            throws OCConnectorException {
+        String key = key(escape(studyOID), escape(subject), escape(eventOID));
+        events.add(key);
+        append(EVENT + '\t' + key);
+    }
+
+    public synchronized void uploaded(String chunk) throws OCConnectorException {
+        uploads.add(escape(chunk));
+        append(UPLOAD + '\t' + escape(chunk));
+    }
+
+    /**
+     * Close the journal file
+     */
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close import journal " + file, e);
+        }
+    }
+
+    private void append(String record) throws OCConnectorException {
+        try {
+            writer.write(record);
+            writer.write('\t');
+            writer.write(checksum(record));
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            throw new OCConnectorException("Cannot write import journal " + file, e);
+        }
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(record.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String key(String... fields) {
+        StringBuilder sb = new StringBuilder(fields[0]);
+        for (int i = 1; i < fields.length; i++) {
+            sb.append('\t').append(fields[i]);
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        return s == null ? "" : s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.types.Study;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Checks clinical data against the metadata of its study before it is
+ * uploaded: every StudyEventOID, FormOID, ItemGroupOID and ItemOID must be
+ * defined, and referred to by the definition it is nested in, and every item
+ * value must match the data type of its item. OpenClinica rejects a whole
+ * dataImport() call for a single bad value, so subjects failing the check are
+ * better kept out of the upload. The metadata of each study is fetched once
+ * and kept as a MetadataIndex until the cache is cleared.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class ItemValidator {
+
+    private static final Logger logger = LogManager.getLogger(ItemValidator.class);
+    private static final Pattern INTEGER = Pattern.compile("[-+]?\\d+");
+    private static final Pattern FLOAT = Pattern.compile("[-+]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][-+]?\\d+)?");
+    private static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+    private static final Pattern PARTIAL_DATE = Pattern.compile("\\d{4}(-\\d{2}(-\\d{2})?)?");
+    private static final Pattern TIME = Pattern.compile("([01]\\d|2[0-3]):[0-5]\\d(:[0-5]\\d(\\.\\d+)?)?");
+    private static final Pattern BOOLEAN = Pattern.compile("true|false|1|0", Pattern.CASE_INSENSITIVE);
+    /**
+     * OC web services connector
+     */
+    private final OCWebServices connector;
+    /**
+     * metadata indexes, keyed by study OID
+     */
+    private final Map<String, MetadataIndex> indexes = new HashMap<String, MetadataIndex>();
+
+    /**
+     * Constructor.
+     *
+     * @param connector OpenClinica web services to fetch the metadata from
+     */
+    public ItemValidator(OCWebServices connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Get the metadata index of a study, fetching the metadata if not cached
+     *
+     * @param study the study
+     * @return the index
+     * @throws OCConnectorException if the metadata cannot be fetched
+     */
+    public MetadataIndex getIndex(Study study) throws OCConnectorException {
+        synchronized (indexes) {
+            MetadataIndex index = indexes.get(study.getStudyOID());
+            if (index == null) {
+                index = connector.fetchStudyMetadata(study).getIndex();
+                logger.info("Metadata of " + study.getStudyOID() + ": " + index);
+                indexes.put(study.getStudyOID(), index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Forget all metadata fetched
+     */
+    public void clearCache() {
+        synchronized (indexes) {
+            indexes.clear();
+        }
+    }
+
+    /**
+     * Check a SubjectData element and everything nested in it
+     *
+     * @param subjectData the SubjectData element
+     * @param index metadata index of its study
+     * @return the problems found, empty if none
+     */
+    public List<String> validate(Node subjectData, MetadataIndex index) {
+        List<String> problems = new ArrayList<String>();
+        for (Element eventData : XMLUtils.children(subjectData, "StudyEventData")) {
+            String eventOID = eventData.getAttribute("StudyEventOID");
+            MetadataIndex.StudyEventDef event = index.getStudyEvent(eventOID);
+            if (event == null) {
+                problems.add("StudyEventOID " + eventOID + " is not defined");
+                continue;
+            }
+            for (Element formData : XMLUtils.children(eventData, "FormData")) {
+                String formOID = formData.getAttribute("FormOID");
+                MetadataIndex.FormDef form = index.getForm(formOID);
+                if (form == null || !event.hasChild(formOID)) {
+                    problems.add("FormOID " + formOID + " is not defined in " + eventOID);
+                    continue;
+                }
+                for (Element groupData : XMLUtils.children(formData, "ItemGroupData")) {
+                    String groupOID = groupData.getAttribute("ItemGroupOID");
+                    MetadataIndex.ItemGroupDef group = index.getItemGroup(groupOID);
+                    if (group == null || !form.hasChild(groupOID)) {
+                        problems.add("ItemGroupOID " + groupOID + " is not defined in " + formOID);
+                        continue;
+                    }
+                    for (Element itemData : XMLUtils.children(groupData, "ItemData")) {
+                        String itemOID = itemData.getAttribute("ItemOID");
+                        MetadataIndex.ItemDef item = index.getItem(itemOID);
+                        if (item == null || !group.hasChild(itemOID)) {
+                            problems.add("ItemOID " + itemOID + " is not defined in " + groupOID);
+                        } else if (!isValid(item.getDataType(), itemData.getAttribute("Value"))) {
+                            problems.add("ItemOID " + itemOID + ": '" + itemData.getAttribute("Value")
+                                    + "' is not a valid " + item.getDataType());
+                        }
+                    }
+                }
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Check a value against an ODM data type. Empty values and data types not
+     * checked (text, string, ...) are valid.
+     *
+     * @param dataType ODM data type
+     * @param value the value
+     * @return true if valid
+     */
+    static boolean isValid(String dataType, String value) {
+        if (value.length() == 0) {
+            return true;
+        } else if ("integer".equals(dataType)) {
+            return INTEGER.matcher(value).matches();
+        } else if ("float".equals(dataType) || "double".equals(dataType)) {
+            return FLOAT.matcher(value).matches();
+        } else if ("date".equals(dataType)) {
+            return DATE.matcher(value).matches() && isDate(value);
+        } else if ("partialDate".equals(dataType) || "pdate".equals(dataType)) {
+            return PARTIAL_DATE.matcher(value).matches() && isDate(value);
+        } else if ("time".equals(dataType)) {
+            return TIME.matcher(value).matches();
+        } else if ("datetime".equals(dataType)) {
+            int t = value.indexOf('T');
+            return t > 0 && DATE.matcher(value.substring(0, t)).matches() && isDate(value.substring(0, t))
+                    && TIME.matcher(value.substring(t + 1)).matches();
+        } else if ("boolean".equals(dataType)) {
+            return BOOLEAN.matcher(value).matches();
+        }
+        return true;
+    }
+
+    /**
+     * Check the month and day of a (partial) yyyy-MM-dd date
+     */
+    private static boolean isDate(String value) {
+        if (value.length() < 7) {
+            return true;
+        }
+        int year = Integer.parseInt(value.substring(0, 4));
+        int month = Integer.parseInt(value.substring(5, 7));
+        if (month < 1 || month > 12) {
+            return false;
+        }
+        if (value.length() < 10) {
+            return true;
+        }
+        int day = Integer.parseInt(value.substring(8, 10));
+        int days = month == 2 ? (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28)
+                : (month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31);
+        return day >= 1 && day <= days;
+    }
+}
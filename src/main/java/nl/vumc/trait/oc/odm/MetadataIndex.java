@@ -0,0 +1,348 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The study event, form, item group and item definitions of study metadata,
+ * by OID. The index is built from the metadata document in a single pass and
+ * is not changed afterwards; it keeps no references to the document. Each
+ * definition knows the OIDs of the definitions it refers to (children, in
+ * document order) and of the definitions referring to it (parents).
+ *
+ * When a document defines the same OID more than once (e.g. for several
+ * studies) the first definition is indexed. OpenClinica returns the metadata
+ * of a single study.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class MetadataIndex {
+
+    private final List<String> studyOIDs = new ArrayList<String>();
+    private final List<String> protocol = new ArrayList<String>();
+    private final Map<String, StudyEventDef> studyEvents = new LinkedHashMap<String, StudyEventDef>();
+    private final Map<String, FormDef> forms = new LinkedHashMap<String, FormDef>();
+    private final Map<String, ItemGroupDef> itemGroups = new LinkedHashMap<String, ItemGroupDef>();
+    private final Map<String, ItemDef> items = new LinkedHashMap<String, ItemDef>();
+
+    /**
+     * Index the metadata of an ODM document
+     *
+     * @param odm ODM metadata document
+     */
+    MetadataIndex(Document odm) {
+        for (Element study : XMLUtils.children(odm.getDocumentElement(), "Study")) {
+            studyOIDs.add(study.getAttribute("OID"));
+            for (Element version : XMLUtils.children(study, "MetaDataVersion")) {
+                index(version);
+            }
+        }
+        link(studyEvents.values(), forms);
+        link(forms.values(), itemGroups);
+        link(itemGroups.values(), items);
+    }
+
+    private void index(Element version) {
+        for (Node node = version.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element element = (Element) node;
+            String name = element.getLocalName();
+            String oid = element.getAttribute("OID");
+            if ("Protocol".equals(name)) {
+                for (Element ref : XMLUtils.children(element, "StudyEventRef")) {
+                    protocol.add(ref.getAttribute("StudyEventOID"));
+                }
+            } else if ("StudyEventDef".equals(name) && !studyEvents.containsKey(oid)) {
+                StudyEventDef def = new StudyEventDef(element);
+                addRefs(def, element, "FormRef", "FormOID");
+                studyEvents.put(oid, def);
+            } else if ("FormDef".equals(name) && !forms.containsKey(oid)) {
+                FormDef def = new FormDef(element);
+                addRefs(def, element, "ItemGroupRef", "ItemGroupOID");
+                forms.put(oid, def);
+            } else if ("ItemGroupDef".equals(name) && !itemGroups.containsKey(oid)) {
+                ItemGroupDef def = new ItemGroupDef(element);
+                addRefs(def, element, "ItemRef", "ItemOID");
+                itemGroups.put(oid, def);
+            } else if ("ItemDef".equals(name) && !items.containsKey(oid)) {
+                items.put(oid, new ItemDef(element));
+            }
+        }
+    }
+
+    private static void addRefs(Definition def, Element element, String refName, String oidName) {
+        for (Element ref : XMLUtils.children(element, refName)) {
+            String oid = ref.getAttribute(oidName);
+            def.children.add(oid);
+            def.childSet.add(oid);
+        }
+    }
+
+    /**
+     * Register each parent with the children it refers to
+     */
+    private static void link(Collection<? extends Definition> parents, Map<String, ? extends Definition> children) {
+        for (Definition parent : parents) {
+            for (String oid : parent.children) {
+                Definition child = children.get(oid);
+                if (child != null && !child.parents.contains(parent.oid)) {
+                    child.parents.add(parent.oid);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the OIDs of the studies in the metadata, in document order
+     */
+    public List<String> getStudyOIDs() {
+        return Collections.unmodifiableList(studyOIDs);
+    }
+
+    /**
+     * @return the study event OIDs in protocol order
+     */
+    public List<String> getProtocol() {
+        return Collections.unmodifiableList(protocol);
+    }
+
+    /**
+     * @param oid study event OID
+     * @return the definition, null if not defined
+     */
+    public StudyEventDef getStudyEvent(String oid) {
+        return studyEvents.get(oid);
+    }
+
+    /**
+     * @param oid form OID
+     * @return the definition, null if not defined
+     */
+    public FormDef getForm(String oid) {
+        return forms.get(oid);
+    }
+
+    /**
+     * @param oid item group OID
+     * @return the definition, null if not defined
+     */
+    public ItemGroupDef getItemGroup(String oid) {
+        return itemGroups.get(oid);
+    }
+
+    /**
+     * @param oid item OID
+     * @return the definition, null if not defined
+     */
+    public ItemDef getItem(String oid) {
+        return items.get(oid);
+    }
+
+    public Collection<StudyEventDef> getStudyEvents() {
+        return Collections.unmodifiableCollection(studyEvents.values());
+    }
+
+    public Collection<FormDef> getForms() {
+        return Collections.unmodifiableCollection(forms.values());
+    }
+
+    public Collection<ItemGroupDef> getItemGroups() {
+        return Collections.unmodifiableCollection(itemGroups.values());
+    }
+
+    public Collection<ItemDef> getItems() {
+        return Collections.unmodifiableCollection(items.values());
+    }
+
+    @Override
+    public String toString() {
+        return "studies: " + studyOIDs.size() + ", events: " + studyEvents.size() + ", forms: " + forms.size()
+                + ", item groups: " + itemGroups.size() + ", items: " + items.size();
+    }
+
+    /**
+     * A definition with an OID and a name
+     */
+    public abstract static class Definition {
+
+        private final String oid;
+        private final String name;
+        private final List<String> children = new ArrayList<String>();
+        private final Set<String> childSet = new HashSet<String>();
+        private final List<String> parents = new ArrayList<String>();
+
+        Definition(Element element) {
+            oid = element.getAttribute("OID");
+            name = element.getAttribute("Name");
+        }
+
+        public String getOID() {
+            return oid;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the OIDs of the definitions referred to, in document order
+         */
+        public List<String> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        /**
+         * @param oid OID of a definition
+         * @return true if this definition refers to it
+         */
+        public boolean hasChild(String oid) {
+            return childSet.contains(oid);
+        }
+
+        /**
+         * @return the OIDs of the definitions referring to this one
+         */
+        public List<String> getParents() {
+            return Collections.unmodifiableList(parents);
+        }
+
+        @Override
+        public String toString() {
+            return oid;
+        }
+    }
+
+    /**
+     * A StudyEventDef, its children are forms
+     */
+    public static class StudyEventDef extends Definition {
+
+        private final boolean repeating;
+        private final String type;
+
+        StudyEventDef(Element element) {
+            super(element);
+            repeating = "Yes".equals(element.getAttribute("Repeating"));
+            type = element.getAttribute("Type");
+        }
+
+        public boolean isRepeating() {
+            return repeating;
+        }
+
+        /**
+         * @return Scheduled, Unscheduled or Common
+         */
+        public String getType() {
+            return type;
+        }
+    }
+
+    /**
+     * A FormDef, its children are item groups and its parents study events
+     */
+    public static class FormDef extends Definition {
+
+        private final boolean repeating;
+
+        FormDef(Element element) {
+            super(element);
+            repeating = "Yes".equals(element.getAttribute("Repeating"));
+        }
+
+        public boolean isRepeating() {
+            return repeating;
+        }
+    }
+
+    /**
+     * An ItemGroupDef, its children are items and its parents forms
+     */
+    public static class ItemGroupDef extends Definition {
+
+        private final boolean repeating;
+
+        ItemGroupDef(Element element) {
+            super(element);
+            repeating = "Yes".equals(element.getAttribute("Repeating"));
+        }
+
+        public boolean isRepeating() {
+            return repeating;
+        }
+    }
+
+    /**
+     * An ItemDef, its parents are item groups
+     */
+    public static class ItemDef extends Definition {
+
+        private final String dataType;
+        private final String comment;
+        private final String responseType;
+
+        ItemDef(Element element) {
+            super(element);
+            dataType = element.getAttribute("DataType");
+            comment = element.getAttribute("Comment");
+            String response = "";
+            for (Element details : XMLUtils.children(element, "ItemDetails")) {
+                for (Element present : XMLUtils.children(details, "ItemPresentInForm")) {
+                    for (Element itemResponse : XMLUtils.children(present, "ItemResponse")) {
+                        if (response.length() == 0) {
+                            response = itemResponse.getAttribute("ResponseType");
+                        }
+                    }
+                }
+            }
+            responseType = response;
+        }
+
+        /**
+         * @return the ODM data type (text, integer, float, date, ...)
+         */
+        public String getDataType() {
+            return dataType;
+        }
+
+        public String getComment() {
+            return comment;
+        }
+
+        /**
+         * @return the OpenClinica response type (text, radio, ...), empty if
+         * not given
+         */
+        public String getResponseType() {
+            return responseType;
+        }
+    }
+}
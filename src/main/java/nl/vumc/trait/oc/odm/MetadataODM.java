@@ -18,6 +18,11 @@
 
 package nl.vumc.trait.oc.odm;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMResult;
@@ -27,6 +32,8 @@ import javax.xml.xpath.XPathExpressionException;
 import nl.vumc.trait.oc.connect.OCConnectorException;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
@@ -42,6 +49,30 @@ public class MetadataODM extends AbstractODM {
 	 */
 	private final String ODM_XSLT = "/nl/vumc/trait/oc/transformations/MetaODMToTemplate.xslt";
 
+	/**
+	 * Maximum number of generated templates kept in memory
+	 */
+	private static final int TEMPLATE_CACHE_SIZE = 32;
+
+	/**
+	 * Generated templates by study, metadata version and metadata digest,
+	 * least recently used first
+	 */
+	private static final Map<String, Document> templates = new LinkedHashMap<String, Document>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Document> eldest) {
+			return size() > TEMPLATE_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * OID index of the metadata, created on first use
+	 */
+	private MetadataIndex index;
+
 	/**
 	 * Construct a new MetadataODM from a DOM Document
 	 * 
@@ -62,22 +93,105 @@ public class MetadataODM extends AbstractODM {
 		super(odm);
 	}
 
+	@Override
+	public synchronized void setOdm(Document odm) {
+		super.setOdm(odm);
+		index = null;
+	}
+
+	/**
+	 * Get the index of the event, form, item group and item definitions by
+	 * OID. The index is created on first use and holds no references to the
+	 * DOM Document, so it may be kept after the MetadataODM is discarded.
+	 * @return the metadata index
+	 */
+	public synchronized MetadataIndex getIndex() {
+		if (index == null) {
+			index = new MetadataIndex(getOdm());
+		}
+		return index;
+	}
+
 	/**
-	 * Transform ODM metadata into a template for ODM data loading
+	 * Transform ODM metadata into a template for ODM data loading. Templates
+	 * are cached per study and metadata version; the metadata itself is part
+	 * of the key, as OpenClinica does not change the MetaDataVersion OID when
+	 * CRFs are added or modified. Every call returns a copy the caller may
+	 * modify.
 	 * @return the resulting template DOM Document
 	 * @throws OCConnectorException 
 	 */
-	public ClinicalODM getClinicalTemplate() throws OCConnectorException {		
+	public ClinicalODM getClinicalTemplate() throws OCConnectorException {
+		String key = getTemplateKey();
+		Document template;
+		synchronized (templates) {
+			template = templates.get(key);
+		}
+		if (template == null) {
+			template = transformToTemplate();
+			synchronized (templates) {
+				templates.put(key, template);
+			}
+		}
+		Document result = documentBuilder.newDocument();
+		synchronized (template) { // DOM reads are not guaranteed thread-safe
+			result.appendChild(result.importNode(template.getDocumentElement(), true));
+		}
+		return new ClinicalODM(result, false);
+	}
+
+	/**
+	 * Remove all generated templates from the cache.
+	 */
+	public static void flushTemplates() {
+		synchronized (templates) {
+			templates.clear();
+		}
+	}
+
+	/**
+	 * Run the template stylesheet on this metadata
+	 * @return the template DOM Document
+	 * @throws OCConnectorException
+	 */
+	private Document transformToTemplate() throws OCConnectorException {
 		Document result = documentBuilder.newDocument();
 		try {
 			Transformer transformer = TransformerCache.newTransformer(ODM_XSLT);
 			transformer.transform(new DOMSource(getOdm()), new DOMResult(result));
-			return new ClinicalODM(result, false);
+			return result;
 		} 
 		catch (TransformerException te) {
 			throw new OCConnectorException(te);
 		}
 	}
+
+	/**
+	 * Template cache key: the study and metadata version OIDs followed by a
+	 * SHA-1 digest of the serialized metadata.
+	 * @return the cache key
+	 * @throws OCConnectorException
+	 */
+	private String getTemplateKey() throws OCConnectorException {
+		StringBuilder key = new StringBuilder();
+		NodeList versions = evalXPath("/cdisc:ODM/cdisc:Study/cdisc:MetaDataVersion");
+		for (int i = 0; i < versions.getLength(); ++i) {
+			Node version = versions.item(i);
+			key.append(((Element) version.getParentNode()).getAttribute("OID")).append('/');
+			key.append(((Element) version).getAttribute("OID")).append(' ');
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(toWireString().getBytes("UTF-8"));
+			for (byte b : digest) {
+				key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new OCConnectorException("Cannot digest ODM.", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new OCConnectorException("Cannot digest ODM.", e);
+		}
+		return key.toString();
+	}
 	
 	public NodeList evalXPath(String xPathExperssion) throws OCConnectorException {
 		try {
@@ -6,21 +6,58 @@
 
 package nl.vumc.trait.oc.odm;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
+ * Resolves the ODM namespace to the bundled OpenClinica ODM schema. The
+ * schema is read from the classpath once; its system id is the classpath URL,
+ * so the schemas it includes resolve next to it.
  *
  * @author Jacob Rousseau
  */
 public class OCWSEntityResolver implements EntityResolver {
 
+    private static final String SCHEMA = "OpenClinica-ODM1-3-0-OC2-0.xsd";
+    private static byte[] schema;
+    private static String schemaSystemId;
+
     public InputSource resolveEntity(String publicID, String systemID)
-        throws SAXException {
-        if (systemID.equals("http://www.cdisc.org/ns/odm/v1.3")) {
-			return new InputSource(OCWSEntityResolver.class.getClassLoader().getResourceAsStream("OpenClinica-ODM1-3-0-OC2-0.xsd"));            
-        }       
+        throws SAXException, IOException {
+        if (SchemaValidator.ODM_NS.equals(systemID)) {
+            InputSource source = new InputSource(new ByteArrayInputStream(getSchema()));
+            source.setSystemId(schemaSystemId);
+            return source;
+        }
         return null;
     }
+
+    private static synchronized byte[] getSchema() throws IOException {
+        if (schema == null) {
+            URL url = OCWSEntityResolver.class.getClassLoader().getResource(SCHEMA);
+            if (url == null) {
+                throw new IOException(SCHEMA + " not found on the classpath");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = url.openStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            schema = out.toByteArray();
+            schemaSystemId = url.toExternalForm();
+        }
+        return schema;
+    }
 }
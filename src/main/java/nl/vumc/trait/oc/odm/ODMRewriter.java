@@ -0,0 +1,249 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Rewrites clinical ODM in a single walk over the document. Depending on how
+ * it is set up, it removes StudyEventData elements flagged
+ * Mirth:ScheduleOnly, strips Mirth attributes and '&lt;VALUE&gt;' template
+ * placeholders, and writes resolved OIDs into SubjectKey and StudyOID
+ * attributes. Each of these used to be a '//' XPath query of its own, every
+ * one of them visiting the whole document.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class ODMRewriter {
+
+    /**
+     * Mirth namespace
+     */
+    public static final String MIRTH_NS = "http://www.vumc.nl/trait/odm/mirth/v0.1";
+    /**
+     * OpenClinica ODM extensions namespace
+     */
+    public static final String OPENCLINICA_NS = "http://www.openclinica.org/ns/odm_ext_v130/v3.1";
+    /**
+     * Value of empty template slots
+     */
+    public static final String PLACEHOLDER = "<VALUE>";
+    private boolean pruneScheduleOnly;
+    private boolean stripMirth;
+    private boolean stripPlaceholders;
+    private boolean stripRepeatKeyPlaceholders;
+    private final Map<Attr, String> values = new IdentityHashMap<Attr, String>();
+    private int prunedEvents;
+    private int removedAttributes;
+    private int rewrittenAttributes;
+
+    /**
+     * A rewriter stripping the attributes extraClean() strips: Mirth
+     * attributes and all '&lt;VALUE&gt;' placeholders
+     *
+     * @return the rewriter
+     */
+    public static ODMRewriter forUpload() {
+        ODMRewriter rewriter = new ODMRewriter();
+        rewriter.setStripMirth(true);
+        rewriter.setStripPlaceholders(true);
+        rewriter.setStripRepeatKeyPlaceholders(true);
+        return rewriter;
+    }
+
+    /**
+     * Remove StudyEventData elements with Mirth:ScheduleOnly set to true
+     *
+     * @param pruneScheduleOnly true to remove them
+     */
+    public void setPruneScheduleOnly(boolean pruneScheduleOnly) {
+        this.pruneScheduleOnly = pruneScheduleOnly;
+    }
+
+    /**
+     * Remove all attributes in the Mirth namespace
+     *
+     * @param stripMirth true to remove them
+     */
+    public void setStripMirth(boolean stripMirth) {
+        this.stripMirth = stripMirth;
+    }
+
+    /**
+     * Remove OpenClinica attributes with a '&lt;VALUE&gt;' placeholder value
+     *
+     * @param stripPlaceholders true to remove them
+     */
+    public void setStripPlaceholders(boolean stripPlaceholders) {
+        this.stripPlaceholders = stripPlaceholders;
+    }
+
+    /**
+     * Remove StudyEventRepeatKey and ItemGroupRepeatKey attributes with a
+     * '&lt;VALUE&gt;' placeholder value
+     *
+     * @param stripRepeatKeyPlaceholders true to remove them
+     */
+    public void setStripRepeatKeyPlaceholders(boolean stripRepeatKeyPlaceholders) {
+        this.stripRepeatKeyPlaceholders = stripRepeatKeyPlaceholders;
+    }
+
+    /**
+     * Write the OIDs resolved by a plan into the attributes they were planned
+     * from, see ResolutionPlan.rewrite(). Only attributes within the node
+     * rewritten are written.
+     *
+     * @param plan the executed plan
+     */
+    public void setValues(ResolutionPlan plan) {
+        values.clear();
+        values.putAll(plan.getRewrites());
+    }
+
+    /**
+     * Rewrite a node and everything in it
+     *
+     * @param node a document or element
+     * @return the node, for convenience
+     */
+    public Node rewrite(Node node) {
+        Element root = node.getNodeType() == Node.DOCUMENT_NODE ? ((Document) node).getDocumentElement()
+                : (Element) node;
+        if (root != null) {
+            visit(root);
+        }
+        return node;
+    }
+
+    private void visit(Element element) {
+        rewriteAttributes(element);
+        Node child = element.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                if (pruneScheduleOnly && isScheduleOnly((Element) child)) {
+                    element.removeChild(child);
+                    prunedEvents++;
+                } else {
+                    visit((Element) child);
+                }
+            }
+            child = next;
+        }
+    }
+
+    private void rewriteAttributes(Element element) {
+        NamedNodeMap attributes = element.getAttributes();
+        List<Attr> remove = null;
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attr = (Attr) attributes.item(i);
+            if (!values.isEmpty() && values.containsKey(attr)) {
+                attr.setNodeValue(values.get(attr));
+                rewrittenAttributes++;
+            } else if (strip(attr)) {
+                if (remove == null) {
+                    remove = new ArrayList<Attr>();
+                }
+                remove.add(attr);
+            }
+        }
+        if (remove != null) {
+            for (Attr attr : remove) {
+                element.removeAttributeNode(attr);
+                removedAttributes++;
+            }
+        }
+    }
+
+    private boolean strip(Attr attr) {
+        String ns = namespace(attr);
+        if (stripMirth && MIRTH_NS.equals(ns)) {
+            return true;
+        } else if (!PLACEHOLDER.equals(attr.getValue())) {
+            return false;
+        } else if (stripPlaceholders && OPENCLINICA_NS.equals(ns)) {
+            return true;
+        }
+        String name = XMLUtils.localName(attr);
+        return stripRepeatKeyPlaceholders && ns == null
+                && ("StudyEventRepeatKey".equals(name) || "ItemGroupRepeatKey".equals(name));
+    }
+
+    private static boolean isScheduleOnly(Element element) {
+        if (!"StudyEventData".equals(XMLUtils.localName(element))) {
+            return false;
+        }
+        String value = element.getAttributeNS(MIRTH_NS, "ScheduleOnly");
+        if (value.length() == 0) {
+            value = element.getAttribute("Mirth:ScheduleOnly");
+        }
+        return "true".equalsIgnoreCase(value);
+    }
+
+    /**
+     * Namespace of an attribute, taken from its prefix in documents built
+     * without namespace support
+     */
+    private static String namespace(Attr attr) {
+        if (attr.getNamespaceURI() != null || attr.getLocalName() != null) {
+            return attr.getNamespaceURI();
+        }
+        String name = attr.getName();
+        if (name.startsWith("Mirth:")) {
+            return MIRTH_NS;
+        } else if (name.startsWith("OpenClinica:")) {
+            return OPENCLINICA_NS;
+        }
+        return null;
+    }
+
+    /**
+     * @return number of StudyEventData elements removed
+     */
+    public int getPrunedEvents() {
+        return prunedEvents;
+    }
+
+    /**
+     * @return number of attributes removed
+     */
+    public int getRemovedAttributes() {
+        return removedAttributes;
+    }
+
+    /**
+     * @return number of attributes given a resolved OID
+     */
+    public int getRewrittenAttributes() {
+        return rewrittenAttributes;
+    }
+
+    @Override
+    public String toString() {
+        return "events pruned: " + prunedEvents + ", attributes removed: " + removedAttributes
+                + ", attributes rewritten: " + rewrittenAttributes;
+    }
+}
@@ -0,0 +1,464 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import nl.vumc.trait.oc.types.Study;
+import nl.vumc.trait.oc.types.StudySubject;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Node;
+
+/**
+ * What it takes to resolve a clinical ODM document: the studies it refers to,
+ * the subjects to look up or create and the events to schedule. A plan is
+ * built from the document without any web service calls, each study, subject
+ * and event appearing only once however often the document mentions it. The
+ * attributes to be rewritten are kept with the plan, so that the resolved
+ * OIDs can be written back in one go.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class ResolutionPlan {
+
+    /**
+     * planned studies, keyed by identifier (OID or label)
+     */
+    private final Map<String, PlannedStudy> studies = new LinkedHashMap<String, PlannedStudy>();
+    /**
+     * number of web service calls made to look up the studies
+     */
+    private int lookupCalls;
+    /**
+     * whether the subjects of the studies were loaded while planning
+     */
+    private boolean populated;
+    /**
+     * number of dataImport() calls, as estimated by the resolver
+     */
+    private int uploads;
+    /**
+     * number of bytes uploaded, as estimated by the resolver
+     */
+    private long uploadBytes;
+
+    /**
+     * Add a study reference, or return the one planned before
+     *
+     * @param identifier study OID or label as found in the document
+     * @param byOID true if identifier is an OID
+     * @return planned study
+     */
+    PlannedStudy addStudy(String identifier, boolean byOID) {
+        String key = (byOID ? "OID:" : "label:") + identifier;
+        PlannedStudy study = studies.get(key);
+        if (study == null) {
+            study = new PlannedStudy(identifier, byOID);
+            studies.put(key, study);
+        }
+        return study;
+    }
+
+    /**
+     * Planned studies, in document order
+     *
+     * @return the studies
+     */
+    public Collection<PlannedStudy> getStudies() {
+        return studies.values();
+    }
+
+    /**
+     * Planned subjects of all studies, in document order
+     *
+     * @return the subjects
+     */
+    public List<PlannedSubject> getSubjects() {
+        List<PlannedSubject> result = new ArrayList<PlannedSubject>();
+        for (PlannedStudy study : studies.values()) {
+            result.addAll(study.getSubjects());
+        }
+        return result;
+    }
+
+    /**
+     * @return number of subjects that will be created
+     */
+    public int getCreateCount() {
+        int count = 0;
+        for (PlannedSubject subject : getSubjects()) {
+            if (subject.needsCreate()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of events that will be scheduled
+     */
+    public int getScheduleCount() {
+        int count = 0;
+        for (PlannedSubject subject : getSubjects()) {
+            for (PlannedEvent event : subject.getEvents()) {
+                if (event.needsSchedule()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of web service calls made to look up the studies
+     */
+    public int getLookupCallCount() {
+        return lookupCalls;
+    }
+
+    void addLookupCalls(int calls) {
+        lookupCalls += calls;
+    }
+
+    /**
+     * Whether the subjects of the studies were loaded while planning. If not,
+     * a subject to be created may exist already, which is checked before it
+     * is created.
+     *
+     * @return true if the subjects were loaded
+     */
+    public boolean isPopulated() {
+        return populated;
+    }
+
+    void setPopulated(boolean populated) {
+        this.populated = populated;
+    }
+
+    /**
+     * @return number of dataImport() calls, 0 unless estimated
+     */
+    public int getUploadCount() {
+        return uploads;
+    }
+
+    /**
+     * @return number of ODM bytes uploaded, 0 unless estimated
+     */
+    public long getUploadBytes() {
+        return uploadBytes;
+    }
+
+    void addUpload(long bytes) {
+        uploads++;
+        uploadBytes += bytes;
+    }
+
+    /**
+     * Number of web service calls it takes to execute the plan and upload
+     * the data: a create per new subject, an OID lookup per subject, a
+     * schedule per event and a dataImport per upload. Unless the subjects
+     * were loaded, new subjects are looked up before they are created as
+     * well.
+     *
+     * @return number of calls
+     */
+    public int getExecutionCallCount() {
+        return getCreateCount() * (populated ? 1 : 2) + getSubjects().size() + getScheduleCount() + uploads;
+    }
+
+    /**
+     * Human readable summary of the plan, one figure per line
+     *
+     * @return the summary
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("studies:          ").append(studies.size()).append('\n');
+        sb.append("subjects:         ").append(getSubjects().size()).append('\n');
+        sb.append("subjects created: ").append(getCreateCount()).append('\n');
+        sb.append("events scheduled: ").append(getScheduleCount()).append('\n');
+        sb.append("uploads:          ").append(uploads).append('\n');
+        sb.append("upload bytes:     ").append(uploadBytes).append('\n');
+        sb.append("lookup calls:     ").append(lookupCalls).append('\n');
+        sb.append("execution calls:  ").append(getExecutionCallCount());
+        return sb.toString();
+    }
+
+    /**
+     * Write the resolved study and subject OIDs into the attributes they were
+     * planned from
+     */
+    public void rewrite() {
+        for (Map.Entry<Attr, String> rewrite : getRewrites().entrySet()) {
+            rewrite.getKey().setNodeValue(rewrite.getValue());
+        }
+    }
+
+    /**
+     * The study and subject attributes the plan was built from and the
+     * resolved OIDs to write into them
+     *
+     * @return resolved OIDs by attribute
+     */
+    public Map<Attr, String> getRewrites() {
+        Map<Attr, String> rewrites = new IdentityHashMap<Attr, String>();
+        for (PlannedStudy study : studies.values()) {
+            for (Attr attr : study.attributes) {
+                rewrites.put(attr, study.getStudy().getStudyOID());
+            }
+            for (PlannedSubject subject : study.getSubjects()) {
+                for (Attr attr : subject.attributes) {
+                    rewrites.put(attr, subject.getSubjectOID());
+                }
+            }
+        }
+        return rewrites;
+    }
+
+    @Override
+    public String toString() {
+        return "studies: " + studies.size() + ", subjects: " + getSubjects().size() + ", creates: "
+                + getCreateCount() + ", schedules: " + getScheduleCount();
+    }
+
+    /**
+     * A study referred to by one or more ClinicalData elements
+     */
+    public static class PlannedStudy {
+
+        private final String identifier;
+        private final boolean byOID;
+        private final List<Attr> attributes = new ArrayList<Attr>();
+        private final Map<String, PlannedSubject> subjects = new LinkedHashMap<String, PlannedSubject>();
+        private Study study;
+
+        PlannedStudy(String identifier, boolean byOID) {
+            this.identifier = identifier;
+            this.byOID = byOID;
+        }
+
+        /**
+         * Add a subject reference, or return the one planned before
+         *
+         * @param handle subject label or OID as found in the document
+         * @param subjectData the SubjectData element
+         * @return planned subject
+         */
+        PlannedSubject addSubject(String handle, Node subjectData) {
+            PlannedSubject subject = subjects.get(handle);
+            if (subject == null) {
+                subject = new PlannedSubject(this, handle, subjectData);
+                subjects.put(handle, subject);
+            }
+            return subject;
+        }
+
+        void addAttribute(Attr attr) {
+            attributes.add(attr);
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public boolean isByOID() {
+            return byOID;
+        }
+
+        /**
+         * @return the resolved study, null until resolved
+         */
+        public Study getStudy() {
+            return study;
+        }
+
+        void setStudy(Study study) {
+            this.study = study;
+        }
+
+        public Collection<PlannedSubject> getSubjects() {
+            return subjects.values();
+        }
+    }
+
+    /**
+     * A subject referred to by one or more SubjectData elements
+     */
+    public static class PlannedSubject {
+
+        private final PlannedStudy study;
+        private final String handle;
+        private final Node subjectData;
+        private final List<Attr> attributes = new ArrayList<Attr>();
+        private final Map<String, PlannedEvent> events = new LinkedHashMap<String, PlannedEvent>();
+        private boolean create;
+        private boolean existing;
+        private StudySubject subject;
+        private String subjectOID;
+
+        PlannedSubject(PlannedStudy study, String handle, Node subjectData) {
+            this.study = study;
+            this.handle = handle;
+            this.subjectData = subjectData;
+        }
+
+        /**
+         * Add an event reference, or return the one planned before
+         *
+         * @param eventOID study event definition OID
+         * @return planned event
+         */
+        PlannedEvent addEvent(String eventOID) {
+            PlannedEvent event = events.get(eventOID);
+            if (event == null) {
+                event = new PlannedEvent(eventOID);
+                events.put(eventOID, event);
+            }
+            return event;
+        }
+
+        void addAttribute(Attr attr) {
+            attributes.add(attr);
+        }
+
+        public PlannedStudy getPlannedStudy() {
+            return study;
+        }
+
+        public String getHandle() {
+            return handle;
+        }
+
+        /**
+         * @return the (first) SubjectData element the subject was planned from
+         */
+        public Node getSubjectData() {
+            return subjectData;
+        }
+
+        public boolean isCreate() {
+            return create;
+        }
+
+        void setCreate(boolean create) {
+            this.create = create;
+        }
+
+        /**
+         * @return true if the subject is known to exist in OpenClinica already
+         */
+        public boolean isExisting() {
+            return existing;
+        }
+
+        void setExisting(boolean existing) {
+            this.existing = existing;
+        }
+
+        /**
+         * @return true if the subject will be created
+         */
+        public boolean needsCreate() {
+            return create && !existing;
+        }
+
+        public StudySubject getSubject() {
+            return subject;
+        }
+
+        void setSubject(StudySubject subject) {
+            this.subject = subject;
+        }
+
+        /**
+         * @return the resolved subject OID, null until resolved
+         */
+        public String getSubjectOID() {
+            return subjectOID;
+        }
+
+        void setSubjectOID(String subjectOID) {
+            this.subjectOID = subjectOID;
+        }
+
+        public Collection<PlannedEvent> getEvents() {
+            return events.values();
+        }
+    }
+
+    /**
+     * An event referred to by one or more StudyEventData elements of a subject
+     */
+    public static class PlannedEvent {
+
+        private final String eventOID;
+        private boolean create;
+        private boolean scheduled;
+        private String startDate;
+
+        PlannedEvent(String eventOID) {
+            this.eventOID = eventOID;
+        }
+
+        public String getEventOID() {
+            return eventOID;
+        }
+
+        public boolean isCreate() {
+            return create;
+        }
+
+        void setCreate(boolean create) {
+            this.create = create;
+        }
+
+        /**
+         * @return true if the event is known to be scheduled already
+         */
+        public boolean isScheduled() {
+            return scheduled;
+        }
+
+        void setScheduled(boolean scheduled) {
+            this.scheduled = scheduled;
+        }
+
+        /**
+         * @return true if the event will be scheduled
+         */
+        public boolean needsSchedule() {
+            return !scheduled;
+        }
+
+        /**
+         * @return start date as found in the document, null if absent
+         */
+        public String getStartDate() {
+            return startDate;
+        }
+
+        void setStartDate(String startDate) {
+            this.startDate = startDate;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.types.Study;
+import org.w3c.dom.Document;
+
+/**
+ * Resolves and imports clinical ODM documents, any number at a time. The
+ * service holds what documents share: the connector, the studies looked up
+ * (with their event definitions and, once loaded, subjects) and the upload
+ * settings. Each document gets a resolver of its own, see newContext(), which
+ * keeps the state of that document only, so a warm service can serve
+ * concurrent documents.
+ *
+ * Documents are independent as far as the service is concerned. Documents
+ * creating the same new subject, or scheduling events for the same subject,
+ * at the same time are not; they should be processed one after the other,
+ * e.g. by giving the service subject lanes (see setLanes()).
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class ResolverService {
+
+    /**
+     * OC web services connector
+     */
+    private final OCWebServices connector;
+    /**
+     * study index shared by all documents. Study objects, keyed by study name
+     * + site name
+     */
+    private final ConcurrentMap<String, Study> studies = new ConcurrentHashMap<String, Study>();
+    /**
+     * number of subjects of a document resolved in parallel
+     */
+    private volatile int parallelism = 1;
+    /**
+     * sizes uploads, null to upload each ClinicalData in a call of its own
+     */
+    private volatile AdaptiveChunkSizer chunkSizer;
+    /**
+     * checks subjects against the study metadata before upload, null for no
+     * checks
+     */
+    private volatile ItemValidator validator;
+    /**
+     * combines the uploads of concurrent documents, null for none
+     */
+    private volatile ImportCoalescer coalescer;
+    /**
+     * lanes to process documents in, by subject, null to process documents in
+     * the calling thread
+     */
+    private volatile SubjectLanes lanes;
+
+    /**
+     * Create a service
+     *
+     * @param connector OpenClinica web services
+     */
+    public ResolverService(OCWebServices connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Create the resolver for a single document. It shares the studies and
+     * settings of the service and is to be used by one thread at a time.
+     *
+     * @param odm the document, not cleaned yet
+     * @return the resolver
+     * @throws OCConnectorException
+     */
+    public ClinicalODMResolver newContext(Document odm) throws OCConnectorException {
+        return new ClinicalODMResolver(odm, this);
+    }
+
+    /**
+     * Resolve and import a document, see
+     * ClinicalODMResolver.resolveOdmDocument() and importClinicalData(). With
+     * lanes, the document is processed in the lane of its subject, after the
+     * documents for that subject submitted before.
+     *
+     * @param odm the document, not cleaned yet
+     * @return the resolved document, as a String
+     * @throws ODMException
+     * @throws OCConnectorException
+     */
+    public String process(final Document odm) throws ODMException, OCConnectorException {
+        SubjectLanes current = lanes;
+        if (current == null) {
+            return processNow(odm);
+        }
+        return current.execute(SubjectLanes.key(odm), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return processNow(odm);
+            }
+        });
+    }
+
+    private String processNow(Document odm) throws ODMException, OCConnectorException {
+        ClinicalODMResolver context = newContext(odm);
+        context.resolveOdmDocument();
+        String resolved = context.toString();
+        context.importClinicalData();
+        return resolved;
+    }
+
+    /**
+     * Forget all studies (and metadata) looked up. Documents being resolved
+     * keep the studies they have.
+     */
+    public void clearCache() {
+        studies.clear();
+        ItemValidator current = validator;
+        if (current != null) {
+            current.clearCache();
+        }
+    }
+
+    /**
+     * @return the studies looked up
+     */
+    public Collection<Study> getStudies() {
+        return studies.values();
+    }
+
+    ConcurrentMap<String, Study> getStudyIndex() {
+        return studies;
+    }
+
+    /**
+     * @return web service connector
+     */
+    public OCWebServices getConnector() {
+        return connector;
+    }
+
+    /**
+     * @return parallelism within a document, 1 for none
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of subjects of a document resolved in parallel, see
+     * ClinicalODMResolver.setParallelism()
+     *
+     * @param parallelism parallelism, 1 (the default) for none
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return the chunk sizer, null if none
+     */
+    public AdaptiveChunkSizer getChunkSizer() {
+        return chunkSizer;
+    }
+
+    /**
+     * Size uploads with a chunk sizer, shared by all documents, see
+     * ClinicalODMResolver.setChunkSizer()
+     *
+     * @param chunkSizer the chunk sizer, null for one upload per ClinicalData
+     */
+    public void setChunkSizer(AdaptiveChunkSizer chunkSizer) {
+        this.chunkSizer = chunkSizer;
+    }
+
+    /**
+     * @return the validator, null if none
+     */
+    public ItemValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Check every subject against the metadata of its study before upload,
+     * see ClinicalODMResolver.setValidator()
+     *
+     * @param validator the validator, null (the default) for no checks
+     */
+    public void setValidator(ItemValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * @return the coalescer, null if none
+     */
+    public ImportCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Combine the uploads of concurrent documents, see
+     * ClinicalODMResolver.setCoalescer()
+     *
+     * @param coalescer the coalescer, null (the default) for none
+     */
+    public void setCoalescer(ImportCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * @return the subject lanes, null if none
+     */
+    public SubjectLanes getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Process documents in subject lanes: documents for different subjects
+     * concurrently, documents for the same subject one after the other, see
+     * process(). The lanes are not shut down by the service.
+     *
+     * @param lanes the lanes, null (the default) to process documents in the
+     * calling thread
+     */
+    public void setLanes(SubjectLanes lanes) {
+        this.lanes = lanes;
+    }
+
+    @Override
+    public String toString() {
+        return "studies: " + studies.keySet() + ", parallelism: " + parallelism
+                + (coalescer == null ? "" : ", coalescing: " + coalescer)
+                + (lanes == null ? "" : ", " + lanes);
+    }
+}
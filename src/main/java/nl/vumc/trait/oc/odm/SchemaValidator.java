@@ -0,0 +1,427 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.Attributes;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Validates ODM against the bundled OpenClinica ODM 1.3 schema
+ * (OpenClinica-ODM1-3-0-OC2-0.xsd and the schemas it includes). The schema is
+ * compiled once and shared; it is thread-safe, the validators created from it
+ * are not, so every validation gets a validator of its own. Input is
+ * validated as it is parsed, without building a DOM Document.
+ *
+ * ODM as delivered by the Mirth channels has no namespace: elements without a
+ * namespace are taken to be in the ODM namespace and Mirth attributes are
+ * ignored. A ClinicalData element may be validated on its own.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class SchemaValidator {
+
+    private static final Logger logger = LogManager.getLogger(SchemaValidator.class);
+    public static final String ODM_NS = "http://www.cdisc.org/ns/odm/v1.3";
+    private static final String MIRTH_NS = "http://www.vumc.nl/trait/odm/mirth/v0.1";
+    /**
+     * the schema, relative to the root of the classpath
+     */
+    private static final String SCHEMA = "OpenClinica-ODM1-3-0-OC2-0.xsd";
+    /**
+     * maximum number of problems reported per document
+     */
+    public static final int DEFAULT_MAX_PROBLEMS = 100;
+    /**
+     * the compiled schema, null until first used
+     */
+    private static Schema schema;
+    private final SAXParserFactory parserFactory;
+    private final int maxProblems;
+
+    /**
+     * Validator reporting at most DEFAULT_MAX_PROBLEMS problems per document
+     */
+    public SchemaValidator() {
+        this(DEFAULT_MAX_PROBLEMS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxProblems maximum number of problems reported per document
+     */
+    public SchemaValidator(int maxProblems) {
+        this.maxProblems = maxProblems;
+        parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware(true);
+    }
+
+    /**
+     * Get the compiled schema, compiling it on first use
+     *
+     * @return the schema
+     * @throws OCConnectorException if the schema cannot be compiled
+     */
+    public static synchronized Schema getSchema() throws OCConnectorException {
+        if (schema == null) {
+            long start = System.nanoTime();
+            try {
+                SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                factory.setResourceResolver(new ClasspathResourceResolver());
+                schema = factory.newSchema(new StreamSource(open(SCHEMA), "classpath:/" + SCHEMA));
+            } catch (SAXException e) {
+                throw new OCConnectorException("Cannot compile ODM schema.", e);
+            }
+            logger.info("Compiled " + SCHEMA + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        return schema;
+    }
+
+    /**
+     * Validate ODM read from a stream. The stream is not closed.
+     *
+     * @param in ODM input
+     * @param systemId system id of the input (e.g. its file name), used in
+     * the problems reported, may be null
+     * @return the problems found, empty if valid
+     * @throws OCConnectorException if the input cannot be read
+     */
+    public List<String> validate(InputStream in, String systemId) throws OCConnectorException {
+        Problems problems = new Problems();
+        try {
+            XMLReader reader;
+            synchronized (parserFactory) {
+                reader = parserFactory.newSAXParser().getXMLReader();
+            }
+            OdmNamespaceFilter filter = new OdmNamespaceFilter(newValidatorHandler(problems));
+            filter.setParent(reader);
+            InputSource source = new InputSource(in);
+            source.setSystemId(systemId);
+            filter.parse(source);
+        } catch (SAXParseException e) {
+            problems.add(e);
+        } catch (SAXException e) {
+            throw new OCConnectorException("Cannot validate ODM.", e);
+        } catch (ParserConfigurationException e) {
+            throw new OCConnectorException("Cannot validate ODM.", e);
+        } catch (IOException e) {
+            throw new OCConnectorException("Cannot read ODM.", e);
+        }
+        return problems.list;
+    }
+
+    /**
+     * Validate an ODM file
+     *
+     * @param file the file
+     * @return the problems found, empty if valid
+     * @throws OCConnectorException if the file cannot be read
+     */
+    public List<String> validate(File file) throws OCConnectorException {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+            try {
+                return validate(in, file.getPath());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new OCConnectorException("Cannot read " + file, e);
+        }
+    }
+
+    /**
+     * Validate serialized ODM
+     *
+     * @param odm the ODM bytes
+     * @return the problems found, empty if valid
+     * @throws OCConnectorException
+     */
+    public List<String> validate(byte[] odm) throws OCConnectorException {
+        return validate(new ByteArrayInputStream(odm), null);
+    }
+
+    /**
+     * Validate a DOM node: an ODM Document, or an element such as ClinicalData
+     *
+     * @param node the node
+     * @return the problems found, empty if valid
+     * @throws OCConnectorException
+     */
+    public List<String> validate(Node node) throws OCConnectorException {
+        Problems problems = new Problems();
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.transform(new DOMSource(node), new SAXResult(new OdmNamespaceFilter(newValidatorHandler(problems))));
+        } catch (TransformerException e) {
+            if (!(e.getException() instanceof SAXParseException)) {
+                throw new OCConnectorException("Cannot validate ODM.", e);
+            }
+            problems.add((SAXParseException) e.getException());
+        }
+        return problems.list;
+    }
+
+    /**
+     * Validate files in parallel
+     *
+     * @param files the files
+     * @param threads number of files validated at the same time
+     * @return the problems found per file, in the order given
+     * @throws OCConnectorException if a file cannot be read
+     */
+    public Map<File, List<String>> validate(List<File> files, int threads) throws OCConnectorException {
+        List<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+        for (final File file : files) {
+            tasks.add(new Callable<List<String>>() {
+
+                @Override
+                public List<String> call() throws Exception {
+                    return validate(file);
+                }
+            });
+        }
+        List<List<String>> results = invokeAll(tasks, threads);
+        Map<File, List<String>> result = new LinkedHashMap<File, List<String>>();
+        for (int i = 0; i < files.size(); ++i) {
+            result.put(files.get(i), results.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Validate each ClinicalData element of a document on its own, in
+     * parallel. The elements are serialized by the calling thread, as a DOM
+     * is not safe to read from several threads.
+     *
+     * @param odm clinical ODM
+     * @param threads number of ClinicalData elements validated at the same
+     * time
+     * @return the problems found per ClinicalData element, in document order
+     * @throws OCConnectorException
+     */
+    public List<List<String>> validateClinicalData(AbstractODM odm, int threads) throws OCConnectorException {
+        NodeList clinicalDatas = odm.getOdm().getElementsByTagNameNS("*", "ClinicalData");
+        List<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            for (int i = 0; i < clinicalDatas.getLength(); ++i) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                transformer.transform(new DOMSource(clinicalDatas.item(i)), new StreamResult(out));
+                final byte[] chunk = out.toByteArray();
+                tasks.add(new Callable<List<String>>() {
+
+                    @Override
+                    public List<String> call() throws Exception {
+                        return validate(chunk);
+                    }
+                });
+            }
+        } catch (TransformerException e) {
+            throw new OCConnectorException("Cannot serialize ODM.", e);
+        }
+        return invokeAll(tasks, threads);
+    }
+
+    private ValidatorHandler newValidatorHandler(Problems problems) throws OCConnectorException {
+        ValidatorHandler handler = getSchema().newValidatorHandler();
+        handler.setErrorHandler(problems);
+        return handler;
+    }
+
+    /**
+     * Run tasks on a pool of threads, or on the calling thread if a single
+     * thread is asked for
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks, int threads) throws OCConnectorException {
+        List<T> results = new ArrayList<T>();
+        if (threads <= 1 || tasks.size() <= 1) {
+            try {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } catch (OCConnectorException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new OCConnectorException("Cannot validate ODM.", e);
+            }
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OCConnectorException("Validation interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OCConnectorException) {
+                throw (OCConnectorException) e.getCause();
+            }
+            throw new OCConnectorException("Cannot validate ODM.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private static InputStream open(String resource) {
+        return SchemaValidator.class.getClassLoader().getResourceAsStream(resource);
+    }
+
+    /**
+     * Collects validation errors, up to maxProblems
+     */
+    private class Problems implements ErrorHandler {
+
+        private final List<String> list = new ArrayList<String>();
+
+        void add(SAXParseException e) {
+            if (list.size() < maxProblems) {
+                list.add((e.getSystemId() != null ? e.getSystemId() + ":" : "") + e.getLineNumber() + ":"
+                        + e.getColumnNumber() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void warning(SAXParseException e) {
+        }
+
+        @Override
+        public void error(SAXParseException e) {
+            add(e);
+        }
+
+        @Override
+        public void fatalError(SAXParseException e) throws SAXException {
+            throw e;
+        }
+    }
+
+    /**
+     * Puts elements without a namespace in the ODM namespace and drops the
+     * Mirth attributes, passing everything on to a validator
+     */
+    private static class OdmNamespaceFilter extends XMLFilterImpl {
+
+        OdmNamespaceFilter(ValidatorHandler handler) {
+            setContentHandler(handler);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            AttributesImpl filtered = new AttributesImpl();
+            for (int i = 0; i < atts.getLength(); ++i) {
+                if (!MIRTH_NS.equals(atts.getURI(i)) && !atts.getQName(i).startsWith("xmlns")) {
+                    filtered.addAttribute(atts.getURI(i), atts.getLocalName(i), atts.getQName(i), atts.getType(i),
+                            atts.getValue(i));
+                }
+            }
+            super.startElement(uri.length() == 0 ? ODM_NS : uri, localName, qName, filtered);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            super.endElement(uri.length() == 0 ? ODM_NS : uri, localName, qName);
+        }
+    }
+
+    /**
+     * Resolves the schemas included and imported by the OpenClinica schema
+     * from the root of the classpath, by file name
+     */
+    private static class ClasspathResourceResolver implements LSResourceResolver {
+
+        private final DOMImplementationLS ls;
+
+        ClasspathResourceResolver() throws OCConnectorException {
+            try {
+                ls = (DOMImplementationLS) DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                        .getDOMImplementation();
+            } catch (ParserConfigurationException e) {
+                throw new OCConnectorException("Cannot compile ODM schema.", e);
+            }
+        }
+
+        @Override
+        public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId,
+                String baseURI) {
+            if (systemId == null) {
+                return null;
+            }
+            String name = systemId.substring(systemId.lastIndexOf('/') + 1);
+            InputStream in = open(name);
+            if (in == null) {
+                logger.warn("Schema " + systemId + " not found on the classpath");
+                return null;
+            }
+            LSInput input = ls.createLSInput();
+            input.setByteStream(in);
+            input.setSystemId("classpath:/" + name);
+            input.setPublicId(publicId);
+            return input;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.odm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A fixed number of serial lanes to resolve and import documents on. Work is
+ * assigned to a lane by its key, the study and SubjectKey of the subject it is
+ * about (see key()): work on different subjects runs concurrently, work on the
+ * same subject runs in a single lane, one after the other and in the order it
+ * was submitted. Creating a subject, scheduling its events and importing its
+ * data therefore never race with, or overtake, earlier work on that subject.
+ *
+ * Keys are taken from the documents as they are delivered, before OIDs are
+ * resolved, so a subject should be referred to the same way (label or OID)
+ * throughout. A document with several subjects is keyed by its first one;
+ * split() breaks such a document up into a document per subject, partition()
+ * into a document per lane.
+ *
+ * @author Arjan van der Velde (a.vandervelde (at) xs4all.nl)
+ */
+public class SubjectLanes {
+
+    /**
+     * one single-threaded executor per lane
+     */
+    private final ExecutorService[] lanes;
+    /**
+     * work submitted per lane
+     */
+    private final AtomicLongArray submitted;
+    /**
+     * used by split(); guarded by itself
+     */
+    private final DocumentBuilder documentBuilder;
+
+    /**
+     * Create lanes
+     *
+     * @param lanes number of lanes, i.e. number of subjects worked on
+     * concurrently
+     * @throws ODMException
+     */
+    public SubjectLanes(int lanes) throws ODMException {
+        this.lanes = new ExecutorService[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = Executors.newSingleThreadExecutor();
+        }
+        submitted = new AtomicLongArray(this.lanes.length);
+        try {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true); // <- important!
+            documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            shutdown();
+            throw new ODMException("Cannot instantiate SubjectLanes.", e);
+        }
+    }
+
+    /**
+     * Queue work in the lane of a key
+     *
+     * @param <V> result type
+     * @param key lane key, see key()
+     * @param task the work
+     * @return the result, once the work is done
+     */
+    public <V> Future<V> submit(String key, Callable<V> task) {
+        int lane = getLane(key);
+        submitted.incrementAndGet(lane);
+        return lanes[lane].submit(task);
+    }
+
+    /**
+     * Do work in the lane of a key and wait for it. Not to be called from a
+     * lane.
+     *
+     * @param <V> result type
+     * @param key lane key, see key()
+     * @param task the work
+     * @return the result of the work
+     * @throws ODMException as thrown by the work
+     * @throws OCConnectorException as thrown by the work, or if interrupted
+     * while waiting for it
+     */
+    public <V> V execute(String key, Callable<V> task) throws ODMException, OCConnectorException {
+        return await(submit(key, task));
+    }
+
+    /**
+     * Wait for work submitted to a lane and return its result
+     *
+     * @param <V> result type
+     * @param result as returned by submit()
+     * @return the result of the work
+     * @throws ODMException as thrown by the work
+     * @throws OCConnectorException as thrown by the work, or if interrupted
+     * while waiting for it
+     */
+    public static <V> V await(Future<V> result) throws ODMException, OCConnectorException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OCConnectorException("Interrupted while waiting for a lane.", e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof ODMException) {
+                throw (ODMException) t;
+            } else if (t instanceof OCConnectorException) {
+                throw (OCConnectorException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new OCConnectorException(t.getMessage(), t);
+        }
+    }
+
+    /**
+     * @param key lane key
+     * @return the lane the key is assigned to
+     */
+    public int getLane(String key) {
+        return (key == null ? 0 : key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * The lane key of a document: the StudyOID of its first ClinicalData and
+     * the SubjectKey of its first SubjectData
+     *
+     * @param odm the document, not cleaned yet
+     * @return the key, "" for a document without subjects
+     */
+    public static String key(Document odm) {
+        for (Element clinicalData : XMLUtils.children(odm.getDocumentElement(), "ClinicalData")) {
+            for (Element subjectData : XMLUtils.children(clinicalData, "SubjectData")) {
+                return key(clinicalData, subjectData);
+            }
+        }
+        return "";
+    }
+
+    private static String key(Element clinicalData, Element subjectData) {
+        return clinicalData.getAttribute("StudyOID") + "\n" + subjectData.getAttribute("SubjectKey");
+    }
+
+    /**
+     * Split a document into a document per SubjectData, in document order.
+     * Each holds a copy of the ODM and ClinicalData elements (attributes
+     * only) and of the SubjectData.
+     *
+     * @param odm the document, not cleaned yet
+     * @return the documents, the document itself if it holds a single
+     * subject or none
+     */
+    public List<Document> split(Document odm) {
+        List<Document> documents = new ArrayList<Document>();
+        Element root = odm.getDocumentElement();
+        synchronized (documentBuilder) {
+            for (Element clinicalData : XMLUtils.children(root, "ClinicalData")) {
+                for (Element subjectData : XMLUtils.children(clinicalData, "SubjectData")) {
+                    Document document = documentBuilder.newDocument();
+                    document.appendChild(document.importNode(root, false))
+                            .appendChild(document.importNode(clinicalData, false))
+                            .appendChild(document.importNode(subjectData, true));
+                    documents.add(document);
+                }
+            }
+        }
+        if (documents.size() <= 1) {
+            documents.clear();
+            documents.add(odm);
+        }
+        return documents;
+    }
+
+    /**
+     * Split a document into a document per lane, holding the SubjectData
+     * assigned to that lane in document order. A lane can then resolve and
+     * import its subjects as one document, in chunks, rather than one by one.
+     * Each holds a copy of the ODM element, and of the ClinicalData elements
+     * (attributes only) its subjects are in. The lane key of each document is
+     * that of its lane.
+     *
+     * @param odm the document, not cleaned yet
+     * @return the documents, by lane; the document itself if its subjects are
+     * all assigned to one lane, or it has none
+     */
+    public List<Document> partition(Document odm) {
+        Document[] documents = new Document[lanes.length];
+        Element[] sources = new Element[lanes.length];
+        Element[] copies = new Element[lanes.length];
+        Element root = odm.getDocumentElement();
+        synchronized (documentBuilder) {
+            for (Element clinicalData : XMLUtils.children(root, "ClinicalData")) {
+                for (Element subjectData : XMLUtils.children(clinicalData, "SubjectData")) {
+                    int lane = getLane(key(clinicalData, subjectData));
+                    Document document = documents[lane];
+                    if (document == null) {
+                        document = documentBuilder.newDocument();
+                        document.appendChild(document.importNode(root, false));
+                        documents[lane] = document;
+                    }
+                    if (sources[lane] != clinicalData) { // next ClinicalData
+                        sources[lane] = clinicalData;
+                        copies[lane] = (Element) document.getDocumentElement().appendChild(
+                                document.importNode(clinicalData, false));
+                    }
+                    copies[lane].appendChild(document.importNode(subjectData, true));
+                }
+            }
+        }
+        List<Document> result = new ArrayList<Document>();
+        for (Document document : documents) {
+            if (document != null) {
+                result.add(document);
+            }
+        }
+        if (result.size() <= 1) {
+            result.clear();
+            result.add(odm);
+        }
+        return result;
+    }
+
+    /**
+     * Stop the lanes once the work submitted is done
+     */
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            if (lane != null) {
+                lane.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return number of lanes
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return amount of work submitted to all lanes
+     */
+    public long getSubmitted() {
+        long total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            total += submitted.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "lanes: " + lanes.length + ", submitted: " + submitted;
+    }
+}
@@ -17,10 +17,12 @@ import javax.xml.transform.stream.StreamSource;
  * Inspired by the code found at:
  * http://docstore.mik.ua/orelly/xml/jxslt/ch05_04.htm
  *
+ * The compiled stylesheets (Templates) are cached, a Transformer is not
+ * thread-safe and is created for every call.
  */
 public class TransformerCache {
 
-    private static Map<String, Transformer> cache = new HashMap<String, Transformer>();
+    private static Map<String, Templates> cache = new HashMap<String, Templates>();
 
     /**
      * Flush all cached stylesheets from memory, emptying the cache.
@@ -39,25 +41,35 @@ public class TransformerCache {
     }
 
     /**
-     * Creates a new transformer and adds it to the cache
+     * Returns the compiled stylesheet, compiling and caching it on first use.
      *
      * @param xsltFileName the file name of an XSLT stylesheet.
-     * @return a transformation context for the given stylesheet.
+     * @return the compiled stylesheet.
      */
-    public static synchronized Transformer newTransformer(String xsltFileName)
+    public static synchronized Templates newTemplates(String xsltFileName)
             throws TransformerConfigurationException {
-        Transformer transformer = cache.get(xsltFileName);
-        // create and put a new transformer in the cache
-        if (transformer == null) {
+        Templates templates = cache.get(xsltFileName);
+        // compile and put the stylesheet in the cache
+        if (templates == null) {
             InputStream xslInput = TransformerCache.class.getResourceAsStream(xsltFileName);
 
             TransformerFactory transformerFactory = TransformerFactory.newInstance();
             transformerFactory.setURIResolver(new ClasspathResourceURIResolver());
-            Templates templateCompiler = transformerFactory.newTemplates(new StreamSource(xslInput));
-            transformer = templateCompiler.newTransformer();
-            cache.put(xsltFileName, transformer);
+            templates = transformerFactory.newTemplates(new StreamSource(xslInput));
+            cache.put(xsltFileName, templates);
         }
-        return transformer;
+        return templates;
+    }
+
+    /**
+     * Creates a new transformer from the cached, compiled stylesheet.
+     *
+     * @param xsltFileName the file name of an XSLT stylesheet.
+     * @return a transformation context for the given stylesheet.
+     */
+    public static Transformer newTransformer(String xsltFileName)
+            throws TransformerConfigurationException {
+        return newTemplates(xsltFileName).newTransformer();
     }
 
     private TransformerCache() {
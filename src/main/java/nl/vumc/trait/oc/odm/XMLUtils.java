@@ -8,6 +8,8 @@ package nl.vumc.trait.oc.odm;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -17,9 +19,11 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import nl.vumc.trait.oc.connect.OCConnectorException;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -34,30 +38,30 @@ public class XMLUtils {
 	private static final Logger logger = LogManager.getLogger(XMLUtils.class);
 
 	/**
-	 * Document Builder Factory, set to be namespace aware in default
-	 * constructor
+	 * Document Builder validating against the ODM schema, created on first use
 	 */
-	private static final DocumentBuilderFactory documentBuilderFactory;
+	private static DocumentBuilder documentBuilder;
+
 	/**
-	 * Document Builder
+	 * Get the validating document builder, creating it on first use. The
+	 * compiled ODM schema of SchemaValidator is used rather than having
+	 * every parse load the schema named by the document.
 	 */
-	private static final DocumentBuilder documentBuilder;
-
-	static {
-		try {
-			System.setProperty("jaxp.debug", "1");
-
-			documentBuilderFactory = DocumentBuilderFactory.newInstance();
-			documentBuilderFactory.setValidating(true);
-			documentBuilderFactory.setNamespaceAware(true); // <- important!
-			documentBuilderFactory.setXIncludeAware(true);
-			documentBuilderFactory.setAttribute("http://java.sun.com/xml/jaxp/properties/schemaLanguage", "http://www.w3.org/2001/XMLSchema");
-
-			documentBuilder = documentBuilderFactory.newDocumentBuilder();
-
-		} catch (ParserConfigurationException pce) {
-			throw new IllegalStateException(pce);
+	private static synchronized DocumentBuilder getDocumentBuilder() throws SAXException {
+		if (documentBuilder == null) {
+			try {
+				DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+				documentBuilderFactory.setNamespaceAware(true); // <- important!
+				documentBuilderFactory.setXIncludeAware(true);
+				documentBuilderFactory.setSchema(SchemaValidator.getSchema());
+				documentBuilder = documentBuilderFactory.newDocumentBuilder();
+			} catch (ParserConfigurationException pce) {
+				throw new IllegalStateException(pce);
+			} catch (OCConnectorException e) {
+				throw new SAXException(e);
+			}
 		}
+		return documentBuilder;
 	}
 
 	public static String nodeToString(Node node) {
@@ -72,6 +76,36 @@ public class XMLUtils {
 		return sw.toString();
 	}
 
+	/**
+	 * The child elements of a node with a certain local name. Unlike an XPath
+	 * query this only visits the children, whatever the size of the document
+	 * the node is part of.
+	 *
+	 * @param parent the node
+	 * @param localName local name of the elements
+	 * @return the elements, in document order
+	 */
+	public static List<Element> children(Node parent, String localName) {
+		List<Element> result = new ArrayList<Element>();
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() == Node.ELEMENT_NODE && localName.equals(localName(node))) {
+				result.add((Element) node);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The local name of a node, or its qualified name in documents built
+	 * without namespace support
+	 *
+	 * @param node the node
+	 * @return the name
+	 */
+	public static String localName(Node node) {
+		return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+	}
+
 	/**
 	 * Parses a string and converts it to a {@link Document}
 	 *
@@ -81,8 +115,10 @@ public class XMLUtils {
 	 * @throws IOException if a problem occurs creating the return document
 	 */
 	public static Document buildDocument(String xmlInput) throws SAXException, IOException {
-
-		return documentBuilder.parse(new InputSource(new StringReader(xmlInput)));
+		DocumentBuilder builder = getDocumentBuilder();
+		synchronized (builder) {
+			return builder.parse(new InputSource(new StringReader(xmlInput)));
+		}
 	}
 
 }
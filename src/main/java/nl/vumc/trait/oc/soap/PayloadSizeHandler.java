@@ -0,0 +1,160 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.soap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.namespace.QName;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+import nl.vumc.trait.oc.metrics.Metrics;
+import nl.vumc.trait.oc.metrics.MetricsRegistry;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Records the size of SOAP requests and responses as payload size of the web
+ * service operation ("ws" component, operation
+ * <code>&lt;service&gt;.&lt;wsdl operation&gt;</code>, i.e. "data.import"). Should be the last handler in the
+ * chain, so that it sees outgoing messages after and incoming messages before
+ * the other handlers have rewritten them. The size is that of the serialized
+ * message (excluding HTTP headers); the serialization is only counted, not
+ * buffered. The size on the wire is recorded as well ("wire" component): for
+ * a message sent or received gzipped, the size of the message compressed,
+ * counted in the same pass. Sizes are only measured when switched on with
+ * Metrics.setPayloadSizes().
+ */
+public class PayloadSizeHandler implements SOAPHandler<SOAPMessageContext> {
+
+    private static final Logger logger = LogManager.getLogger(PayloadSizeHandler.class);
+    private final String service;
+    private final String server;
+
+    /**
+     * Create the handler
+     *
+     * @param service name of the service of the binding, i.e. "studySubject"
+     * @param server server base URL of the binding
+     */
+    public PayloadSizeHandler(String service, String server) {
+        this.service = service;
+        this.server = server;
+    }
+
+    @Override
+    public boolean handleMessage(SOAPMessageContext context) {
+        MetricsRegistry registry = Metrics.getRegistry();
+        if (registry == Metrics.NONE || !Metrics.isPayloadSizes()) {
+            return true;
+        }
+        boolean request = Boolean.TRUE.equals(context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY));
+        QName operation = (QName) context.get(MessageContext.WSDL_OPERATION);
+        String name = service + '.' + (operation == null ? "unknown" : operation.getLocalPart());
+        try {
+            CountingOutputStream compressed = null;
+            GZIPOutputStream gzip = null;
+            if (isCompressed(context, request)) {
+                compressed = new CountingOutputStream(null);
+                gzip = new GZIPOutputStream(compressed);
+            }
+            CountingOutputStream out = new CountingOutputStream(gzip);
+            context.getMessage().writeTo(out);
+            registry.recordPayloadSize(Metrics.COMPONENT_WS, name, server, request, out.count);
+            long wire = out.count;
+            if (gzip != null) {
+                gzip.finish();
+                wire = compressed.count;
+            }
+            registry.recordPayloadSize(Metrics.COMPONENT_WIRE, name, server, request, wire);
+        } catch (Exception e) {
+            logger.debug("Cannot determine message size: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Check the HTTP headers of a message for gzip content encoding
+     *
+     * @param context message context
+     * @param request true for a request, false for a response
+     * @return true if the message travels compressed
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean isCompressed(SOAPMessageContext context, boolean request) {
+        Map<String, List<String>> headers = (Map<String, List<String>>) context.get(request
+                ? MessageContext.HTTP_REQUEST_HEADERS : MessageContext.HTTP_RESPONSE_HEADERS);
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if ("Content-Encoding".equalsIgnoreCase(header.getKey()) && header.getValue() != null
+                        && header.getValue().toString().contains("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean handleFault(SOAPMessageContext context) {
+        return true;
+    }
+
+    @Override
+    public void close(MessageContext context) {
+    }
+
+    @Override
+    public Set<QName> getHeaders() {
+        return null;
+    }
+
+    /**
+     * Output stream that counts, passing the bytes on to another stream (if
+     * any)
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream next;
+        long count;
+
+        CountingOutputStream(OutputStream next) {
+            this.next = next;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+            if (next != null) {
+                next.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (next != null) {
+                next.write(b, off, len);
+            }
+        }
+    }
+}
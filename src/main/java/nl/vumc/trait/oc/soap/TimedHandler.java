@@ -0,0 +1,102 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.soap;
+
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+import nl.vumc.trait.oc.metrics.Metrics;
+import nl.vumc.trait.oc.metrics.OperationTimer;
+
+/**
+ * Decorator timing another SOAP handler. Time spent in handleMessage() and
+ * handleFault() is recorded as operation
+ * <code>&lt;handler class&gt;.request</code> or
+ * <code>&lt;handler class&gt;.response</code> of component "handler".
+ */
+public class TimedHandler implements SOAPHandler<SOAPMessageContext> {
+
+    private final SOAPHandler<SOAPMessageContext> handler;
+    private final String server;
+    private final String name;
+
+    /**
+     * Wrap a handler
+     *
+     * @param handler the handler to time
+     * @param server server base URL the handler's binding talks to
+     */
+    public TimedHandler(SOAPHandler<SOAPMessageContext> handler, String server) {
+        this.handler = handler;
+        this.server = server;
+        this.name = handler.getClass().getSimpleName();
+    }
+
+    @Override
+    public boolean handleMessage(SOAPMessageContext context) {
+        OperationTimer timer = start(context);
+        try {
+            return handler.handleMessage(context);
+        } catch (RuntimeException e) {
+            timer.failed();
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Override
+    public boolean handleFault(SOAPMessageContext context) {
+        OperationTimer timer = start(context);
+        try {
+            return handler.handleFault(context);
+        } catch (RuntimeException e) {
+            timer.failed();
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Override
+    public void close(MessageContext context) {
+        handler.close(context);
+    }
+
+    @Override
+    public Set<QName> getHeaders() {
+        return handler.getHeaders();
+    }
+
+    /**
+     * Get the wrapped handler
+     *
+     * @return the handler being timed
+     */
+    public SOAPHandler<SOAPMessageContext> getHandler() {
+        return handler;
+    }
+
+    private OperationTimer start(SOAPMessageContext context) {
+        Boolean outbound = (Boolean) context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY);
+        return Metrics.start(Metrics.COMPONENT_HANDLER,
+                name + (Boolean.TRUE.equals(outbound) ? ".request" : ".response"), server);
+    }
+}
@@ -59,6 +59,16 @@ IF "X%1%" == "X--extract" (
 	REM studies
 	shift
 	java -cp %JARFILE% nl.vumc.trait.oc.main.ListStudies "$OC_URL" "$OC_USER" "$OC_PASSWORD" "$@"
+ ) ELSE ( 
+ IF "X%1%" == "X--watch" (
+	REM watch
+	shift
+	java -cp %JARFILE% nl.vumc.trait.oc.main.WatchODM "$OC_URL" "$OC_USER" "$OC_PASSWORD" "$@"
+ ) ELSE ( 
+ IF "X%1%" == "X--validate" (
+	REM validate
+	shift
+	java -cp %JARFILE% nl.vumc.trait.oc.main.ValidateODM "$OC_URL" "$OC_USER" "$OC_PASSWORD" "$@"
 ) ELSE (
-	echo Usage: `basename $0` ^< --extract | --import | --subjects | --clean | --studies ^> ^[ -h | --help ^] ^<command specific options^>
-)))))
+	echo Usage: `basename $0` ^< --extract | --import | --subjects | --clean | --studies | --watch | --validate ^> ^[ -h | --help ^] ^<command specific options^>
+)))))))
@@ -58,8 +58,16 @@ elif [ "X$1" = "X--studies" ]; then
 	# studies
 	shift
 	java -cp "$JARFILE" nl.vumc.trait.oc.main.ListStudies "$OC_URL" "$OC_USER" "$OC_PASSWORD" "$@"
+elif [ "X$1" = "X--watch" ]; then
+	# watch
+	shift
+	java -cp "$JARFILE" nl.vumc.trait.oc.main.WatchODM "$OC_URL" "$OC_USER" "$OC_PASSWORD" "$@"
+elif [ "X$1" = "X--validate" ]; then
+	# validate
+	shift
+	java -cp "$JARFILE" nl.vumc.trait.oc.main.ValidateODM "$OC_URL" "$OC_USER" "$OC_PASSWORD" "$@"
 else
-	echo "Usage: `basename $0` < --extract | --import | --subjects | --clean | --studies > [ -h | --help ] <command specific options>"
+	echo "Usage: `basename $0` < --extract | --import | --subjects | --clean | --studies | --watch | --validate > [ -h | --help ] <command specific options>"
 fi
 
 
@@ -0,0 +1,152 @@
+package nl.vumc.trait.oc.connect;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.management.ObjectName;
+import junit.framework.Assert;
+import nl.vumc.trait.oc.metrics.JmxMetricsRegistry;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedConditions;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import org.junit.Test;
+import org.openclinica.ws.data.v1.ImportResponse;
+
+/**
+ * Limits on the calls to a server: in flight, per second, and adapted to
+ * failures.
+ */
+public class RequestGovernorTest {
+
+    private static final String ODM = "<ODM/>";
+
+    @Test
+    public void testMaxInFlight() throws Exception {
+        final InMemoryWebServices connector = connector("mem://governed-in-flight/",
+                new SimulatedConditions().setLatencyMillis(100));
+        RequestGovernor governor = connector.getGovernor();
+        try {
+            governor.setLimit("data.import", 2, 0, false);
+            final OperationLimiter limiter = governor.getLimiter("data.import");
+            ExecutorService executor = Executors.newFixedThreadPool(6);
+            long start = System.currentTimeMillis();
+            int maxInFlight = 0;
+            try {
+                List<Future<ImportResponse>> results = new ArrayList<Future<ImportResponse>>();
+                for (int i = 0; i < 6; i++) {
+                    results.add(executor.submit(new Callable<ImportResponse>() {
+                        @Override
+                        public ImportResponse call() throws Exception {
+                            return connector.importODM(ODM);
+                        }
+                    }));
+                }
+                for (Future<ImportResponse> result : results) {
+                    while (!result.isDone()) {
+                        maxInFlight = Math.max(maxInFlight, limiter.getInFlight());
+                        Thread.sleep(5);
+                    }
+                    result.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start >= 300); // three rounds of two
+            Assert.assertEquals(2, maxInFlight);
+            Assert.assertEquals(6, limiter.getAcquired());
+            Assert.assertEquals(4, limiter.getThrottled());
+            Assert.assertEquals(0, limiter.getInFlight());
+            Assert.assertEquals(0, limiter.getQueueDepth());
+            Assert.assertEquals(2, ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(
+                    JmxMetricsRegistry.DOMAIN + ":type=" + ObjectName.quote("governor") + ",server="
+                    + ObjectName.quote("mem://governed-in-flight/") + ",name=" + ObjectName.quote("data.import")),
+                    "MaxInFlight"));
+        } finally {
+            governor.clear();
+        }
+    }
+
+    @Test
+    public void testPermitsPerSecond() throws Exception {
+        InMemoryWebServices connector = connector("mem://governed-rate/", new SimulatedConditions());
+        RequestGovernor governor = connector.getGovernor();
+        try {
+            governor.setLimit(RequestGovernor.ALL_OPERATIONS, 0, 10, false);
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 15; i++) { // a burst of 10, then 10 per second
+                connector.importODM(ODM);
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start >= 400);
+            Assert.assertEquals(15, governor.getLimiter(RequestGovernor.ALL_OPERATIONS).getAcquired());
+        } finally {
+            governor.clear();
+        }
+        Assert.assertTrue(governor.getLimiters().isEmpty());
+    }
+
+    @Test
+    public void testLimitsLoweredOnFailures() throws Exception {
+        SimulatedConditions conditions = new SimulatedConditions().setErrorRate(1.0);
+        InMemoryWebServices connector = connector("mem://governed-adaptive/", conditions);
+        RequestGovernor governor = connector.getGovernor();
+        try {
+            governor.setLimit("data.import", 8, 100);
+            OperationLimiter limiter = governor.getLimiter("data.import");
+            for (int i = 0; i < 10; i++) {
+                try {
+                    connector.importODM(ODM);
+                    Assert.fail("expected an OCConnectorException");
+                } catch (OCConnectorException e) {
+                    // expected
+                }
+            }
+            Assert.assertEquals(1, limiter.getReductions()); // once per second at most
+            Assert.assertEquals(4, limiter.getMaxInFlight());
+            Assert.assertEquals(50.0, limiter.getPermitsPerSecond(), 0.001);
+
+            conditions.setErrorRate(0);
+            for (int i = 0; i < 40; i++) {
+                connector.importODM(ODM);
+            }
+            Assert.assertEquals(8, limiter.getMaxInFlight());
+            Assert.assertEquals(100.0, limiter.getPermitsPerSecond(), 0.001);
+        } finally {
+            governor.clear();
+        }
+    }
+
+    @Test
+    public void testRejectedCallsDoNotLowerLimits() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        model.rejectImportsContaining("ODM");
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        connector.setCredentials(new ConnectInfo("mem://governed-rejected/", "simulated", "simulated"));
+        RequestGovernor governor = connector.getGovernor();
+        try {
+            governor.setLimit("data.import", 8, 100);
+            OperationLimiter limiter = governor.getLimiter("data.import");
+            for (int i = 0; i < 10; i++) {
+                try {
+                    connector.importODM(ODM);
+                    Assert.fail("expected an OCConnectorException");
+                } catch (OCConnectorException e) {
+                    Assert.assertFalse(e.isTransportFailure());
+                }
+            }
+            Assert.assertEquals(0, limiter.getReductions());
+            Assert.assertEquals(8, limiter.getMaxInFlight());
+        } finally {
+            governor.clear();
+        }
+    }
+
+    private static InMemoryWebServices connector(String baseURL, SimulatedConditions conditions) throws Exception {
+        InMemoryWebServices connector = new InMemoryWebServices(new SimulatedOpenClinica(), conditions);
+        connector.setCredentials(new ConnectInfo(baseURL, "simulated", "simulated"));
+        return connector;
+    }
+}
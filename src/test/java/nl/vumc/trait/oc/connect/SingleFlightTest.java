@@ -0,0 +1,111 @@
+package nl.vumc.trait.oc.connect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedConditions;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.types.Study;
+import org.junit.Test;
+
+/**
+ * Coalescing of concurrent identical calls.
+ */
+public class SingleFlightTest {
+
+    private static final int THREADS = 6;
+
+    @Test
+    public void testConcurrentCallsShareOneCall() throws Exception {
+        final SingleFlight<Integer> flights = new SingleFlight<Integer>();
+        final AtomicInteger made = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return flights.execute("key", new Callable<Integer>() {
+                            @Override
+                            public Integer call() throws Exception {
+                                while (flights.getShared() < THREADS - 1) { // until all others have joined
+                                    Thread.sleep(5);
+                                }
+                                return made.incrementAndGet();
+                            }
+                        });
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(Integer.valueOf(1), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, made.get());
+        Assert.assertEquals(1, flights.getCalls());
+
+        // not in flight any more: called again
+        Assert.assertEquals(Integer.valueOf(2), flights.execute("key", new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return made.incrementAndGet();
+            }
+        }));
+    }
+
+    @Test
+    public void testExceptionIsRethrown() throws Exception {
+        SingleFlight<Integer> flights = new SingleFlight<Integer>();
+        try {
+            flights.execute("key", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    throw new OCConnectorException("failed");
+                }
+            });
+            Assert.fail("expected an OCConnectorException");
+        } catch (OCConnectorException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testConcurrentSubjectListsCoalesced() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        model.addStudy("ST1", "S_ST1", "Study 1");
+        model.addSubject("ST1", "SS1");
+        final InMemoryWebServices connector = new InMemoryWebServices(model,
+                new SimulatedConditions().setLatencyMillis(500));
+        final Study study = connector.findStudy("ST1", false);
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        return connector.listAllByStudy(study).getStudySubjects().getStudySubject().size();
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(Integer.valueOf(1), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, model.getCallCount("listAllByStudy"));
+    }
+}
@@ -0,0 +1,80 @@
+package nl.vumc.trait.oc.connect;
+
+import junit.framework.Assert;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.types.Study;
+import org.junit.Test;
+
+/**
+ * Study and site lookups through the cached study directory.
+ */
+public class StudyDirectoryTest {
+
+    @Test
+    public void testFind() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        model.addStudy("ST1", "S_ST1", "Study 1");
+        model.addSite("ST1", "ST1-A", "S_ST1_A", "Site A");
+        model.addStudy("ST2", "S_ST2", "Study 2");
+        StudyDirectory directory = new StudyDirectory(model.listAllStudies());
+
+        Study study = directory.find("S_ST2", true);
+        Assert.assertEquals("ST2", study.getStudyName());
+        Assert.assertFalse(study.hasSiteName());
+        Study site = directory.find("ST1-A", false);
+        Assert.assertEquals("ST1", site.getStudyName());
+        Assert.assertEquals("ST1-A", site.getSiteName());
+        Assert.assertEquals("S_ST1_A", site.getStudyOID());
+        Assert.assertEquals("S_ST1_A", directory.find("S_ST1_A", true).getStudyOID());
+        Assert.assertNotSame(study, directory.find("S_ST2", true));
+        Assert.assertNull(directory.find("ST1", true));
+    }
+
+    @Test
+    public void testStudiesListedOnce() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        model.addStudy("ST1", "S_ST1", "Study 1");
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+
+        Assert.assertFalse(connector.hasStudyDirectory());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("S_ST1", connector.findStudy("ST1", false).getStudyOID());
+        }
+        Assert.assertEquals(1, model.getCallCount("listAllStudies"));
+        Assert.assertTrue(connector.hasStudyDirectory());
+
+        // a study added since is found by listing the studies again
+        model.addStudy("ST2", "S_ST2", "Study 2");
+        Assert.assertEquals("ST2", connector.findStudy("S_ST2", true).getStudyName());
+        Assert.assertEquals(2, model.getCallCount("listAllStudies"));
+        try {
+            connector.findStudy("ST3", false);
+            Assert.fail("ST3 does not exist");
+        } catch (OCConnectorException e) {
+            // expected
+        }
+        Assert.assertEquals(3, model.getCallCount("listAllStudies"));
+
+        connector.setStudyDirectoryTTL(0);
+        connector.findStudy("ST1", false);
+        Assert.assertEquals(4, model.getCallCount("listAllStudies"));
+    }
+
+    @Test
+    public void testDirectoryNotSharedAcrossCredentials() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        model.addStudy("ST1", "S_ST1", "Study 1");
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+
+        connector.findStudy("ST1", false);
+        Assert.assertTrue(connector.hasStudyDirectory());
+        connector.setCredentials(new ConnectInfo("mem://simulated/", "other", "other"));
+        Assert.assertFalse(connector.hasStudyDirectory());
+        connector.findStudy("ST1", false);
+        Assert.assertEquals(2, model.getCallCount("listAllStudies"));
+
+        connector.clearCaches();
+        Assert.assertFalse(connector.hasStudyDirectory());
+    }
+}
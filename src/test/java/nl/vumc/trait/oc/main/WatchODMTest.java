@@ -0,0 +1,84 @@
+package nl.vumc.trait.oc.main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import junit.framework.Assert;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Spool directory imports.
+ */
+public class WatchODMTest {
+
+    private File spool;
+
+    @Before
+    public void setUp() throws Exception {
+        spool = File.createTempFile("spool", "");
+        spool.delete();
+        spool.mkdirs();
+        new File(spool, "done").mkdirs();
+        new File(spool, "failed").mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(spool);
+    }
+
+    @Test
+    public void testImportedAndFailedFilesAreMoved() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 4, 1, 2);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        write(new File(spool, "a.xml"), synthetic.clinicalData());
+        write(new File(spool, "b.xml"), "<ODM>");
+        write(new File(spool, "c.tmp"), synthetic.clinicalData());
+
+        WatchODM watch = new WatchODM();
+        watch.setupOptions();
+        watch.processArgs(new String[]{"-b", connector.getBaseURL(), "-u", "user", "-p", "secret",
+                    "-d", spool.getPath(), "--interval", "0"});
+        List<File> pending = watch.pending();
+        Assert.assertEquals(2, pending.size());
+        Assert.assertTrue(watch.pending().isEmpty()); // in progress
+        for (File file : pending) {
+            watch.process(file, connector);
+        }
+
+        Assert.assertTrue(new File(spool, "done/a.xml").isFile());
+        Assert.assertTrue(new File(spool, "failed/b.xml").isFile());
+        Assert.assertTrue(new File(spool, "failed/b.xml.error").isFile());
+        Assert.assertTrue(new File(spool, "c.tmp").isFile());
+        Assert.assertEquals(4, model.getCallCount("create"));
+        Assert.assertEquals(1, model.getCallCount("listAllStudies"));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        file.setLastModified(System.currentTimeMillis() - 1000);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
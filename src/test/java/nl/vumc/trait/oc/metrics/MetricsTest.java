@@ -0,0 +1,89 @@
+package nl.vumc.trait.oc.metrics;
+
+import junit.framework.Assert;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that web service calls and resolver phases end up in the registry.
+ */
+public class MetricsTest {
+
+    private JmxMetricsRegistry registry;
+    private MetricsRegistry previous;
+
+    @Before
+    public void setUp() {
+        previous = Metrics.getRegistry();
+        registry = new JmxMetricsRegistry(false);
+        Metrics.setRegistry(registry);
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setRegistry(previous);
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(5050, histogram.getSum());
+        Assert.assertEquals(100, histogram.getMax());
+        // bucket bounds are powers of two, never below the real value
+        Assert.assertTrue(histogram.getPercentile(50) >= 50);
+        Assert.assertTrue(histogram.getPercentile(50) < 128);
+        Assert.assertEquals(100, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testResolverRecordsOperationsAndPhases() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 4, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String server = connector.getBaseURL();
+
+        ClinicalODMResolver resolver = new ClinicalODMResolver(synthetic.clinicalData(), connector, false);
+        resolver.resolveOdmDocument();
+        resolver.importClinicalData();
+
+        Assert.assertEquals(1, registry.getStats(Metrics.COMPONENT_WS, "study.listAll", server).getCount());
+        Assert.assertEquals(4, registry.getStats(Metrics.COMPONENT_WS, "studySubject.create", server).getCount());
+        Assert.assertEquals(8, registry.getStats(Metrics.COMPONENT_WS, "event.schedule", server).getCount());
+        Assert.assertEquals(4, registry.getStats(Metrics.COMPONENT_WS, "data.import", server).getCount());
+        Assert.assertEquals(4, registry.getStats(Metrics.COMPONENT_RESOLVER, "subjectResolution", server).getCount());
+        Assert.assertEquals(8, registry.getStats(Metrics.COMPONENT_RESOLVER, "scheduling", server).getCount());
+        Assert.assertEquals(1, registry.getStats(Metrics.COMPONENT_RESOLVER, "clean", server).getCount());
+        OperationStats upload = registry.getStats(Metrics.COMPONENT_RESOLVER, "upload", server);
+        Assert.assertEquals(4, upload.getCount());
+        Assert.assertEquals(0, upload.getErrors());
+        Assert.assertTrue(upload.getMaxLatencyMillis() >= upload.getMedianLatencyMillis());
+    }
+
+    @Test
+    public void testFailedCallIsCounted() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        new SyntheticODM(1, 1, 1, 1).populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        connector.getConditions().setErrorRate(1.0);
+        try {
+            connector.listAllStudies();
+            Assert.fail("expected an OCConnectorException");
+        } catch (OCConnectorException e) {
+            // expected
+        }
+        OperationStats stats = registry.getStats(Metrics.COMPONENT_WS, "study.listAll", connector.getBaseURL());
+        Assert.assertEquals(1, stats.getCount());
+        Assert.assertEquals(1, stats.getErrors());
+    }
+}
@@ -0,0 +1,103 @@
+package nl.vumc.trait.oc.odm;
+
+import junit.framework.Assert;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.junit.Test;
+
+/**
+ * Chunk sizing of uploads.
+ */
+public class AdaptiveChunkSizerTest {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void testConvergesOnTargetTime() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(100, 1, 100000, 1000);
+        // 2 ms per item: 500 items take the target second
+        for (int i = 0; i < 20; i++) {
+            int items = sizer.getChunkItems();
+            sizer.success(items, items * 2 * MILLIS);
+        }
+        Assert.assertEquals(500, sizer.getChunkItems(), 5);
+    }
+
+    @Test
+    public void testFailureHalvesAndCaps() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1000, 1, 100000, 1000);
+        sizer.failure(1000);
+        Assert.assertEquals(500, sizer.getChunkItems());
+        // fast uploads grow the chunk again, but not beyond what failed
+        sizer.success(500, MILLIS);
+        Assert.assertTrue(sizer.getChunkItems() < 1000);
+        Assert.assertEquals(1, sizer.getFailures());
+    }
+
+    @Test
+    public void testSubjectsAreMergedIntoChunks() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 10, 2, 5);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        ClinicalODMResolver resolver = new ClinicalODMResolver(synthetic.clinicalData(), connector, false);
+        resolver.setChunkSizer(new AdaptiveChunkSizer(20, 1, 1000, 5000));
+        resolver.resolveOdmDocument();
+        int uploads = resolver.importClinicalData();
+
+        Assert.assertTrue(uploads > 1 && uploads < 10);
+        Assert.assertEquals(uploads, model.getImports().size());
+        int subjects = 0;
+        for (String upload : model.getImports()) {
+            subjects += upload.split("<SubjectData").length - 1;
+            Assert.assertEquals(1, upload.split("<ClinicalData").length - 1);
+        }
+        Assert.assertEquals(10, subjects);
+    }
+
+    @Test
+    public void testFailedChunkIsRetriedSmaller() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 8, 2, 5);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        ClinicalODMResolver resolver = new ClinicalODMResolver(synthetic.clinicalData(), connector, false);
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1000, 1, 1000, 5000);
+        resolver.setChunkSizer(sizer);
+        resolver.resolveOdmDocument();
+        connector.getConditions().setErrorOperation("dataImport").setErrorAfter(0);
+        try {
+            resolver.importClinicalData();
+            Assert.fail("expected an OCConnectorException");
+        } catch (OCConnectorException e) {
+            // expected: even a single subject fails
+        }
+        // 8 subjects, then 4, 2 and 1
+        Assert.assertEquals(4, sizer.getFailures());
+        Assert.assertEquals(0, model.getImports().size());
+    }
+
+    @Test
+    public void testRejectedChunkIsNotRetried() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 8, 2, 5);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        ClinicalODMResolver resolver = new ClinicalODMResolver(synthetic.clinicalData(), connector, false);
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1000, 1, 1000, 5000);
+        resolver.setChunkSizer(sizer);
+        resolver.resolveOdmDocument();
+        model.rejectImportsContaining("<SubjectData");
+        try {
+            resolver.importClinicalData();
+            Assert.fail("expected an OCConnectorException");
+        } catch (OCConnectorException e) {
+            Assert.assertFalse(e.isTransportFailure());
+        }
+        Assert.assertEquals(1, model.getCallCount("dataImport"));
+        Assert.assertEquals(0, sizer.getFailures());
+        Assert.assertEquals(1000, sizer.getChunkItems());
+    }
+}
@@ -9,7 +9,13 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import junit.framework.Assert;
 import nl.vumc.trait.oc.connect.ConnectInfo;
+import nl.vumc.trait.oc.connect.OCConnectorException;
 import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import nl.vumc.trait.oc.types.Study;
+import nl.vumc.trait.oc.types.StudySubject;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.w3c.dom.Document;
@@ -46,4 +52,301 @@ public class ClinicalODMResolverTest {
                 new ClinicalODMResolver(odmDocument, connector);
         Assert.assertEquals(resolverUnderTest.resolveOdmDocument(), 2);
     }
+
+    @Test
+    public void testResolveAndImportAgainstSimulator() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(2, 3, 2, 8);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+
+        ClinicalODMResolver resolverUnderTest =
+                new ClinicalODMResolver(synthetic.clinicalData(), connector, false);
+        Assert.assertEquals(2, resolverUnderTest.resolveOdmDocument());
+        Assert.assertEquals(3, model.getSubjectCount(SyntheticODM.studyIdentifier(0)));
+        Assert.assertEquals(6, model.getScheduledEventCount(SyntheticODM.studyIdentifier(1)));
+        String resolved = resolverUnderTest.toString();
+        Assert.assertTrue(resolved.contains("StudyOID=\"" + SyntheticODM.studyOID(1) + "\""));
+        Assert.assertFalse(resolved.contains("SubjectKey=\"" + SyntheticODM.subjectLabel(0, 0) + "\""));
+
+        Assert.assertEquals(6, resolverUnderTest.importClinicalData());
+        Assert.assertEquals(6, model.getImports().size());
+        Assert.assertFalse(model.getImports().get(0).contains("Mirth:"));
+        Assert.assertFalse(model.getImports().get(0).contains("&lt;VALUE&gt;"));
+    }
+
+    @Test
+    public void testPlanDeduplicatesWithoutSideEffects() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(2, 3, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        // every ClinicalData (one per subject) twice
+        String odm = synthetic.clinicalData();
+        int start = odm.indexOf("<ClinicalData");
+        int end = odm.indexOf("</ODM>");
+        odm = odm.substring(0, end) + odm.substring(start, end) + odm.substring(end);
+
+        ClinicalODMResolver resolverUnderTest = new ClinicalODMResolver(odm, connector, false);
+        ResolutionPlan plan = resolverUnderTest.plan();
+        Assert.assertEquals(2, plan.getStudies().size());
+        Assert.assertEquals(6, plan.getSubjects().size());
+        Assert.assertEquals(6, plan.getCreateCount());
+        Assert.assertEquals(12, plan.getScheduleCount());
+        Assert.assertEquals(0, model.getCallCount("create"));
+        Assert.assertEquals(0, model.getCallCount("schedule"));
+        resolverUnderTest.estimateImport(plan);
+        Assert.assertEquals(12, plan.getUploadCount());
+        Assert.assertTrue(plan.getUploadBytes() > 0);
+        Assert.assertEquals(3, plan.getLookupCallCount());
+        Assert.assertFalse(plan.isPopulated());
+        Assert.assertEquals(6 + 6 + 6 + 12 + 12, plan.getExecutionCallCount());
+        Assert.assertEquals(0, model.getImports().size());
+        Assert.assertTrue(resolverUnderTest.toString().contains("Mirth:Create"));
+
+        resolverUnderTest.execute(plan);
+        Assert.assertEquals(6, model.getCallCount("create"));
+        Assert.assertEquals(12, model.getCallCount("schedule"));
+        Assert.assertEquals(1, model.getCallCount("listAllStudies"));
+        Assert.assertEquals(2, model.getCallCount("listAllEventDefinitions"));
+        Assert.assertFalse(resolverUnderTest.toString().contains("SubjectKey=\"" + SyntheticODM.subjectLabel(1, 2) + "\""));
+    }
+
+    @Test
+    public void testValidationFailsBeforeSideEffects() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 3, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = synthetic.clinicalData();
+        int last = odm.lastIndexOf("<StudyEventData Mirth:Create=\"true\"");
+        odm = odm.substring(0, last) + "<StudyEventData Mirth:Create=\"false\""
+                + odm.substring(last + "<StudyEventData Mirth:Create=\"true\"".length());
+
+        ClinicalODMResolver resolverUnderTest = new ClinicalODMResolver(odm, connector, false);
+        try {
+            resolverUnderTest.resolveOdmDocument();
+            Assert.fail("expected an ODMException");
+        } catch (ODMException e) {
+            // expected
+        }
+        Assert.assertEquals(0, model.getCallCount("create"));
+        Assert.assertEquals(0, model.getSubjectCount(SyntheticODM.studyIdentifier(0)));
+    }
+
+    @Test
+    public void testExistingSubjectsAreNotCreatedAgain() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 3, 1, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = synthetic.clinicalData();
+
+        new ClinicalODMResolver(odm, connector, false).resolveOdmDocument();
+        Assert.assertEquals(3, model.getCallCount("create"));
+        // without a consistency check the subjects are not listed, but looked up before creating them
+        new ClinicalODMResolver(odm, connector, false).resolveOdmDocument();
+        Assert.assertEquals(3, model.getCallCount("create"));
+        Assert.assertEquals(3, model.getSubjectCount(SyntheticODM.studyIdentifier(0)));
+    }
+
+    @Test
+    public void testParallelResolveWithConsistencyCheck() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(2, 5, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = synthetic.clinicalData().replace("Mirth:PreliminaryConsistencyCheck=\"false\"",
+                "Mirth:PreliminaryConsistencyCheck=\"true\"");
+
+        ClinicalODMResolver resolverUnderTest = new ClinicalODMResolver(odm, connector, false);
+        resolverUnderTest.setParallelism(4);
+        Assert.assertEquals(1, resolverUnderTest.resolveOdmDocument());
+        Assert.assertEquals(5, model.getSubjectCount(SyntheticODM.studyIdentifier(1)));
+        Assert.assertEquals(10, model.getScheduledEventCount(SyntheticODM.studyIdentifier(1)));
+
+        // the same document again: subjects and events exist and are reused
+        ClinicalODMResolver again = new ClinicalODMResolver(odm, connector, false);
+        again.setParallelism(4);
+        again.resolveOdmDocument();
+        Assert.assertEquals(10, model.getCallCount("create"));
+        Assert.assertEquals(20, model.getCallCount("schedule"));
+    }
+
+    @Test
+    public void testSubjectsFailingValidationAreQuarantined() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 4, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = synthetic.clinicalData();
+        odm = replaceInSubject(odm, SyntheticODM.subjectLabel(0, 1), "Value=\"1\"", "Value=\"one\"");
+        odm = replaceInSubject(odm, SyntheticODM.subjectLabel(0, 2), SyntheticODM.itemOID(1, 0), "I_UNKNOWN");
+
+        ClinicalODMResolver resolverUnderTest = new ClinicalODMResolver(odm, connector, false);
+        resolverUnderTest.setChunkSizer(new AdaptiveChunkSizer());
+        resolverUnderTest.setValidator(new ItemValidator(connector));
+        resolverUnderTest.resolveOdmDocument();
+        Assert.assertEquals(1, resolverUnderTest.importClinicalData());
+        Assert.assertEquals(2, resolverUnderTest.getQuarantinedCount());
+        Assert.assertEquals(1, model.getCallCount("getMetadata"));
+        String uploaded = model.getImports().get(0);
+        Assert.assertEquals(2, uploaded.split("<SubjectData").length - 1);
+        Assert.assertFalse(uploaded.contains("I_UNKNOWN"));
+        String quarantine = resolverUnderTest.getQuarantine().toString();
+        Assert.assertEquals(2, quarantine.split("<SubjectData").length - 1);
+        Assert.assertTrue(quarantine.contains("'one' is not a valid integer"));
+        Assert.assertTrue(quarantine.contains("ItemOID I_UNKNOWN is not defined"));
+    }
+
+    @Test
+    public void testValidationPerClinicalData() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 3, 1, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = replaceInSubject(synthetic.clinicalData(), SyntheticODM.subjectLabel(0, 0),
+                SyntheticODM.formOID(0), "F_UNKNOWN");
+
+        ClinicalODMResolver resolverUnderTest = new ClinicalODMResolver(odm, connector, false);
+        resolverUnderTest.setValidator(new ItemValidator(connector));
+        resolverUnderTest.resolveOdmDocument();
+        Assert.assertEquals(2, resolverUnderTest.importClinicalData());
+        Assert.assertEquals(1, resolverUnderTest.getQuarantinedCount());
+        Assert.assertEquals(2, model.getImports().size());
+    }
+
+    @Test
+    public void testScheduleOnlySubjectIsNotUploaded() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 3, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = replaceInSubject(synthetic.clinicalData(), SyntheticODM.subjectLabel(0, 1),
+                "<StudyEventData ", "<StudyEventData Mirth:ScheduleOnly=\"true\" ");
+
+        ClinicalODMResolver resolverUnderTest = new ClinicalODMResolver(odm, connector, false);
+        resolverUnderTest.resolveOdmDocument();
+        Assert.assertEquals(6, model.getScheduledEventCount(SyntheticODM.studyIdentifier(0)));
+        // resolving only writes the OIDs, the upload is cleaned
+        String resolved = resolverUnderTest.toString();
+        Assert.assertTrue(resolved.contains("Mirth:ScheduleOnly=\"true\""));
+        Assert.assertTrue(resolved.contains("StudyEventRepeatKey=\"&lt;VALUE&gt;\""));
+        Assert.assertEquals(2, resolverUnderTest.importClinicalData());
+        Assert.assertEquals(2, model.getImports().size());
+        for (String upload : model.getImports()) {
+            Assert.assertFalse(upload.contains("Mirth:"));
+            Assert.assertFalse(upload.contains("RepeatKey=\"&lt;VALUE&gt;\""));
+        }
+    }
+
+    @Test
+    public void testScheduleOnlyEventIsNotUploadedAfterConsistencyCheck() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 3, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = replaceInSubject(synthetic.clinicalData().replace("Mirth:PreliminaryConsistencyCheck=\"false\"",
+                "Mirth:PreliminaryConsistencyCheck=\"true\""), SyntheticODM.subjectLabel(0, 1),
+                "<StudyEventData ", "<StudyEventData Mirth:ScheduleOnly=\"true\" ");
+
+        ClinicalODMResolver resolverUnderTest = new ClinicalODMResolver(odm, connector, false);
+        resolverUnderTest.resolveOdmDocument();
+        // resolving only writes the OIDs, the upload is cleaned in a single pass
+        String resolved = resolverUnderTest.toString();
+        Assert.assertTrue(resolved.contains("Mirth:ScheduleOnly=\"true\""));
+        Assert.assertTrue(resolved.contains("StudyEventRepeatKey=\"&lt;VALUE&gt;\""));
+        Assert.assertEquals(6, model.getScheduledEventCount(SyntheticODM.studyIdentifier(0)));
+        Assert.assertEquals(2, resolverUnderTest.importClinicalData());
+        Assert.assertEquals(2, model.getImports().size());
+        for (String upload : model.getImports()) {
+            Assert.assertFalse(upload.contains("Mirth:"));
+        }
+    }
+
+    @Test
+    public void testEventDefinitionsSharedAcrossResolvers() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 2, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = synthetic.clinicalData().replace("Mirth:PreliminaryConsistencyCheck=\"false\"",
+                "Mirth:PreliminaryConsistencyCheck=\"true\"");
+
+        new ClinicalODMResolver(odm, connector, false).resolveOdmDocument();
+        new ClinicalODMResolver(odm, connector, false).resolveOdmDocument();
+        Assert.assertEquals(1, model.getCallCount("listAllEventDefinitions"));
+        Assert.assertEquals(4, model.getScheduledEventCount(SyntheticODM.studyIdentifier(0)));
+
+        // an event defined since is found by fetching the definitions again
+        model.addEventDefinition(SyntheticODM.studyIdentifier(0), "SE_NEW", "New event");
+        new ClinicalODMResolver(odm.replace(SyntheticODM.eventOID(1), "SE_NEW"), connector, false)
+                .resolveOdmDocument();
+        Assert.assertEquals(2, model.getCallCount("listAllEventDefinitions"));
+        Assert.assertEquals(6, model.getScheduledEventCount(SyntheticODM.studyIdentifier(0)));
+    }
+
+    @Test
+    public void testExistingSubjectsAreLookedUpOnce() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 3, 1, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = synthetic.clinicalData();
+
+        new ClinicalODMResolver(odm, connector, false).resolveOdmDocument();
+        Assert.assertEquals(3, model.getCallCount("create"));
+        Assert.assertEquals(6, model.getCallCount("isStudySubject")); // before and after creating
+        // a new resolver finds the subjects without creating or looking them up again
+        new ClinicalODMResolver(odm, connector, false).resolveOdmDocument();
+        Assert.assertEquals(3, model.getCallCount("create"));
+        Assert.assertEquals(6, model.getCallCount("isStudySubject"));
+
+        connector.setSubjectLookupTTL(0);
+        new ClinicalODMResolver(odm, connector, false).resolveOdmDocument();
+        Assert.assertEquals(3, model.getCallCount("create"));
+        Assert.assertEquals(9, model.getCallCount("isStudySubject"));
+    }
+
+    @Test
+    public void testOnlySubjectsNotFoundAreCached() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 1, 1, 1);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+
+        StudySubject missing = subject(SyntheticODM.studyIdentifier(0), "missing");
+        Assert.assertNull(connector.findSubjectOID(missing));
+        Assert.assertNull(connector.findSubjectOID(missing));
+        Assert.assertEquals(1, model.getCallCount("isStudySubject"));
+
+        // any other error, here an unknown study, is asked again
+        StudySubject unknownStudy = subject("UNKNOWN", "missing");
+        for (int i = 0; i < 2; i++) {
+            try {
+                connector.findSubjectOID(unknownStudy);
+                Assert.fail("an unknown study should not look like a missing subject");
+            } catch (OCConnectorException e) {
+                Assert.assertTrue(e.getMessage().contains("Study does not exist"));
+            }
+        }
+        Assert.assertEquals(3, model.getCallCount("isStudySubject"));
+    }
+
+    private static StudySubject subject(String studyIdentifier, String label) {
+        Study study = new Study();
+        study.setStudyName(studyIdentifier);
+        StudySubject subject = new StudySubject(study);
+        subject.setStudySubjectLabel(label);
+        return subject;
+    }
+
+    /**
+     * Replace text within the SubjectData of a single subject
+     */
+    private static String replaceInSubject(String odm, String subjectLabel, String target, String replacement) {
+        int start = odm.indexOf("SubjectKey=\"" + subjectLabel + "\"");
+        int end = odm.indexOf("</SubjectData>", start);
+        return odm.substring(0, start) + odm.substring(start, end).replace(target, replacement) + odm.substring(end);
+    }
 }
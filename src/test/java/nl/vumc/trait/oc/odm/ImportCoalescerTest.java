@@ -0,0 +1,161 @@
+package nl.vumc.trait.oc.odm;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.Assert;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedConditions;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.junit.Test;
+import org.openclinica.ws.data.v1.ImportResponse;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Uploads of concurrent documents combined into a single dataImport() call.
+ */
+public class ImportCoalescerTest {
+
+    private static final int SUBJECTS = 8;
+
+    @Test
+    public void testConcurrentUploadsCombined() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        ImportCoalescer coalescer = process(model, new SimulatedConditions(), null);
+        Assert.assertEquals(1, coalescer.getUploads());
+        Assert.assertEquals(SUBJECTS, coalescer.getFragments());
+        Assert.assertEquals(0, coalescer.getFallbacks());
+        Assert.assertEquals(1, model.getImports().size());
+        for (int j = 0; j < SUBJECTS; j++) {
+            Assert.assertTrue(model.getImports().get(0).contains(
+                    "SubjectKey=\"SS_" + SyntheticODM.subjectLabel(0, j).replaceAll("[^A-Za-z0-9]", "").toUpperCase()));
+        }
+    }
+
+    @Test
+    public void testFailedUploadFailsOnItsOwn() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        model.rejectImportsContaining("REJECTED");
+        ImportCoalescer coalescer = process(model, new SimulatedConditions(), "REJECTED");
+        Assert.assertEquals(1, coalescer.getFallbacks());
+        Assert.assertEquals(SUBJECTS - 1, model.getImports().size());
+        Assert.assertEquals(SUBJECTS - 1, coalescer.getUploads());
+    }
+
+    @Test
+    public void testTimedOutUploadNotRepeated() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        SimulatedConditions conditions = new SimulatedConditions();
+        conditions.setErrorOperation("dataImport").setErrorAfter(0);
+        ImportCoalescer coalescer = process(model, conditions, null);
+        // OpenClinica may have imported a call that timed out: all fail, none is uploaded again
+        Assert.assertEquals(1, conditions.getInjectedErrors());
+        Assert.assertEquals(0, coalescer.getFallbacks());
+        Assert.assertEquals(SUBJECTS, coalescer.getFragments());
+        Assert.assertEquals(0, model.getImports().size());
+    }
+
+    @Test
+    public void testWaitersReleasedWhenUploadThrowsAnError() throws Exception {
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        SyntheticODM synthetic = new SyntheticODM(1, 2, 1, 2);
+        synthetic.populate(model);
+        final ImportCoalescer coalescer = new ImportCoalescer(new InMemoryWebServices(model) {
+            @Override
+            public ImportResponse importODM(String odm) throws OCConnectorException {
+                throw new AssertionError("upload failed badly");
+            }
+        }, 5000, 2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        int errors = 0;
+        int failures = 0;
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final String document : SyntheticODM.perClinicalData(synthetic.clinicalData())) {
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return coalescer.importODM(parse(document).getDocumentElement());
+                    }
+                }));
+            }
+            for (Future<Long> result : results) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    Assert.fail("expected the upload to fail");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof AssertionError) {
+                        errors++;
+                    } else if (e.getCause() instanceof OCConnectorException) {
+                        failures++;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, errors); // the thread that made the call
+        Assert.assertEquals(1, failures);
+    }
+
+    /**
+     * Process a document per subject on as many threads; the document of the
+     * fourth subject gets the given value, if any, and must fail. All fail if
+     * the conditions inject errors.
+     */
+    private static ImportCoalescer process(SimulatedOpenClinica model, SimulatedConditions conditions,
+            String value) throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, SUBJECTS, 1, 2);
+        synthetic.populate(model);
+        final ResolverService service = new ResolverService(new InMemoryWebServices(model, conditions));
+        ImportCoalescer coalescer = new ImportCoalescer(service.getConnector(), 5000, SUBJECTS);
+        service.setCoalescer(coalescer);
+        List<String> documents = SyntheticODM.perClinicalData(synthetic.clinicalData());
+        if (value != null) {
+            documents.set(3, documents.get(3).replaceFirst("Value=\"[^&\"]*\"", "Value=\"" + value + "\""));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(SUBJECTS);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (final String document : documents) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return service.process(parse(document));
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                    Assert.assertFalse(value != null && i == 3);
+                    Assert.assertEquals(-1, conditions.getErrorAfter());
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(value != null && i == 3 || conditions.getErrorAfter() >= 0);
+                    Assert.assertTrue(e.getCause() instanceof OCConnectorException);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return coalescer;
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
@@ -0,0 +1,122 @@
+package nl.vumc.trait.oc.odm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import junit.framework.Assert;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Resuming a failed import from its journal.
+ */
+public class ImportJournalTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testResumeSkipsWorkDone() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 6, 2, 4);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        InMemoryWebServices connector = new InMemoryWebServices(model);
+        String odm = synthetic.clinicalData();
+        byte[] input = odm.getBytes("UTF-8");
+
+        // the fourth upload fails
+        connector.getConditions().setErrorOperation("dataImport").setErrorAfter(3);
+        ImportJournal journal = ImportJournal.open(directory, connector.getBaseURL(), input);
+        ClinicalODMResolver resolver = new ClinicalODMResolver(odm, connector, false);
+        resolver.setJournal(journal);
+        resolver.resolveOdmDocument();
+        try {
+            resolver.importClinicalData();
+            Assert.fail("expected an OCConnectorException");
+        } catch (OCConnectorException e) {
+            // expected
+        } finally {
+            journal.close();
+        }
+        Assert.assertEquals(3, model.getImports().size());
+        long lookups = model.getCallCount("isStudySubject");
+
+        // rerun the same input
+        connector.getConditions().setErrorAfter(-1);
+        journal = ImportJournal.open(directory, connector.getBaseURL(), input);
+        resolver = new ClinicalODMResolver(odm, connector, false);
+        resolver.setJournal(journal);
+        resolver.resolveOdmDocument();
+        Assert.assertEquals(3, resolver.importClinicalData());
+        journal.close();
+
+        Assert.assertEquals(6, model.getCallCount("create"));
+        Assert.assertEquals(12, model.getCallCount("schedule"));
+        Assert.assertEquals(lookups, model.getCallCount("isStudySubject"));
+        Assert.assertEquals(6, model.getImports().size());
+        Assert.assertFalse(resolver.toString().contains("SubjectKey=\"" + SyntheticODM.subjectLabel(0, 5) + "\""));
+        Assert.assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void testTornLastRecordIsIgnoredAndCutOff() throws Exception {
+        byte[] input = "<ODM/>".getBytes("UTF-8");
+        ImportJournal journal = ImportJournal.open(directory, "http://a/", input);
+        journal.resolved("S_STUDY", "subject1", "SS_SUBJECT1");
+        journal.uploaded("chunk1");
+        journal.close();
+        File file = journal.getFile();
+        long length = file.length();
+
+        // a crash while writing the next record leaves it without checksum and line end
+        OutputStream out = new FileOutputStream(file, true);
+        out.write("subject\tS_STUDY\tsubject2\tSS_SUB".getBytes("UTF-8"));
+        out.close();
+        journal = ImportJournal.open(directory, "http://a/", input);
+        Assert.assertEquals("SS_SUBJECT1", journal.getSubjectOID("S_STUDY", "subject1"));
+        Assert.assertTrue(journal.isUploaded("chunk1"));
+        Assert.assertNull(journal.getSubjectOID("S_STUDY", "subject2"));
+        Assert.assertEquals(length, file.length());
+        journal.resolved("S_STUDY", "subject2", "SS_SUBJECT2");
+        journal.close();
+
+        // a complete line with a bad checksum is ignored as well
+        out = new FileOutputStream(file, true);
+        out.write("upload\tchunk2\t0\n".getBytes("UTF-8"));
+        out.close();
+        journal = ImportJournal.open(directory, "http://a/", input);
+        Assert.assertEquals("SS_SUBJECT2", journal.getSubjectOID("S_STUDY", "subject2"));
+        Assert.assertFalse(journal.isUploaded("chunk2"));
+        journal.close();
+    }
+
+    @Test
+    public void testKeyDependsOnServerAndInput() throws Exception {
+        byte[] input = "<ODM/>".getBytes("UTF-8");
+        Assert.assertEquals(ImportJournal.key("http://a/", input), ImportJournal.key("http://a/", input));
+        Assert.assertFalse(ImportJournal.key("http://a/", input).equals(ImportJournal.key("http://b/", input)));
+        Assert.assertFalse(ImportJournal.key("http://a/", input).equals(
+                ImportJournal.key("http://a/", "<ODM></ODM>".getBytes("UTF-8"))));
+    }
+}
@@ -0,0 +1,28 @@
+package nl.vumc.trait.oc.odm;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Item values checked against their data types.
+ */
+public class ItemValidatorTest {
+
+    @Test
+    public void testDataTypes() {
+        Assert.assertTrue(ItemValidator.isValid("integer", "-12"));
+        Assert.assertFalse(ItemValidator.isValid("integer", "1.5"));
+        Assert.assertTrue(ItemValidator.isValid("float", "1.5"));
+        Assert.assertTrue(ItemValidator.isValid("float", "2e3"));
+        Assert.assertFalse(ItemValidator.isValid("float", "1,5"));
+        Assert.assertTrue(ItemValidator.isValid("date", "2012-02-29"));
+        Assert.assertFalse(ItemValidator.isValid("date", "2013-02-29"));
+        Assert.assertFalse(ItemValidator.isValid("date", "01-03-2013"));
+        Assert.assertTrue(ItemValidator.isValid("partialDate", "2013-04"));
+        Assert.assertFalse(ItemValidator.isValid("partialDate", "2013-13"));
+        Assert.assertTrue(ItemValidator.isValid("datetime", "2013-04-01T12:30:00"));
+        Assert.assertFalse(ItemValidator.isValid("time", "25:00"));
+        Assert.assertTrue(ItemValidator.isValid("text", "anything"));
+        Assert.assertTrue(ItemValidator.isValid("integer", ""));
+    }
+}
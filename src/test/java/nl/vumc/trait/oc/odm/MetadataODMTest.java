@@ -0,0 +1,73 @@
+package nl.vumc.trait.oc.odm;
+
+import junit.framework.Assert;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+/**
+ * Data loading templates generated from study metadata.
+ */
+public class MetadataODMTest {
+
+    @Before
+    public void setUp() {
+        MetadataODM.flushTemplates();
+    }
+
+    @Test
+    public void testTemplateStructure() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 0, 3, 4);
+        ClinicalODM template = new MetadataODM(synthetic.metadata(0)).getClinicalTemplate();
+
+        Assert.assertEquals(1, count(template, "SubjectData"));
+        Assert.assertEquals(3, count(template, "StudyEventData"));
+        Assert.assertEquals(3, count(template, "FormData"));
+        Assert.assertEquals(3, count(template, "ItemGroupData"));
+        Assert.assertEquals(12, count(template, "ItemData"));
+        Element item = (Element) template.getOdm().getElementsByTagName("ItemData").item(0);
+        Assert.assertEquals(SyntheticODM.itemOID(0, 0), item.getAttribute("ItemOID"));
+        Assert.assertEquals("Item 0", item.getAttributeNS("http://www.vumc.nl/trait/odm/mirth/v0.1", "Comment"));
+    }
+
+    @Test
+    public void testCachedTemplatesAreCopies() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, 0, 2, 2);
+        ClinicalODM first = new MetadataODM(synthetic.metadata(0)).getClinicalTemplate();
+        String expected = first.toString();
+        first.getOdm().getDocumentElement().removeChild(first.getOdm().getDocumentElement().getFirstChild());
+
+        ClinicalODM second = new MetadataODM(synthetic.metadata(0)).getClinicalTemplate();
+        Assert.assertEquals(expected, second.toString());
+        Assert.assertNotSame(first.getOdm(), second.getOdm());
+
+        ClinicalODM changed = new MetadataODM(new SyntheticODM(1, 0, 2, 3).metadata(0)).getClinicalTemplate();
+        Assert.assertEquals(6, count(changed, "ItemData"));
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        MetadataODM metadata = new MetadataODM(new SyntheticODM(1, 0, 3, 4).metadata(0));
+        MetadataIndex index = metadata.getIndex();
+        Assert.assertSame(index, metadata.getIndex());
+
+        Assert.assertEquals(1, index.getStudyOIDs().size());
+        Assert.assertEquals(3, index.getProtocol().size());
+        Assert.assertEquals(12, index.getItems().size());
+        MetadataIndex.StudyEventDef event = index.getStudyEvent(index.getProtocol().get(1));
+        MetadataIndex.FormDef form = index.getForm(event.getChildren().get(0));
+        Assert.assertEquals(event.getOID(), form.getParents().get(0));
+        MetadataIndex.ItemGroupDef group = index.getItemGroup(form.getChildren().get(0));
+        Assert.assertEquals(4, group.getChildren().size());
+        MetadataIndex.ItemDef item = index.getItem(SyntheticODM.itemOID(1, 2));
+        Assert.assertEquals(group.getOID(), item.getParents().get(0));
+        Assert.assertEquals("Item 2", item.getComment());
+        Assert.assertFalse(item.getDataType().length() == 0);
+        Assert.assertNull(index.getItem("I_UNKNOWN"));
+    }
+
+    private static int count(ClinicalODM odm, String element) {
+        return odm.getOdm().getElementsByTagName(element).getLength();
+    }
+}
@@ -0,0 +1,92 @@
+package nl.vumc.trait.oc.odm;
+
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.Assert;
+import nl.vumc.trait.oc.types.Study;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Single pass rewriting of clinical ODM.
+ */
+public class ODMRewriterTest {
+
+    private static final String ODM = "<ODM xmlns:Mirth=\"http://www.vumc.nl/trait/odm/mirth/v0.1\""
+            + " xmlns:OpenClinica=\"http://www.openclinica.org/ns/odm_ext_v130/v3.1\""
+            + " Mirth:PreliminaryConsistencyCheck=\"false\">"
+            + "<ClinicalData StudyOID=\"S_1\" Mirth:TranslateOID=\"true\">"
+            + "<SubjectData SubjectKey=\"1\" OpenClinica:Sex=\"&lt;VALUE&gt;\" OpenClinica:DateOfBirth=\"2000-01-01\">"
+            + "<StudyEventData StudyEventOID=\"SE_1\" Mirth:ScheduleOnly=\"true\"/>"
+            + "<StudyEventData StudyEventOID=\"SE_2\" StudyEventRepeatKey=\"&lt;VALUE&gt;\" Mirth:Create=\"true\">"
+            + "<FormData FormOID=\"F_1\"><ItemGroupData ItemGroupOID=\"IG_1\" ItemGroupRepeatKey=\"&lt;VALUE&gt;\">"
+            + "<ItemData ItemOID=\"I_1\" Value=\"&lt;VALUE&gt;\"/></ItemGroupData></FormData></StudyEventData>"
+            + "</SubjectData></ClinicalData></ODM>";
+
+    @Test
+    public void testForUpload() throws Exception {
+        for (boolean namespaceAware : new boolean[]{true, false}) {
+            Document odm = parse(ODM, namespaceAware);
+            ODMRewriter rewriter = ODMRewriter.forUpload();
+            rewriter.setPruneScheduleOnly(true);
+            rewriter.rewrite(odm);
+
+            String result = XMLUtils.nodeToString(odm);
+            Assert.assertFalse(result, result.contains("Mirth:TranslateOID"));
+            Assert.assertFalse(result, result.contains("Mirth:Create"));
+            Assert.assertFalse(result, result.contains("RepeatKey"));
+            Assert.assertFalse(result, result.contains("OpenClinica:Sex"));
+            Assert.assertTrue(result, result.contains("OpenClinica:DateOfBirth=\"2000-01-01\""));
+            Assert.assertTrue(result, result.contains("Value=\"&lt;VALUE&gt;\""));
+            Assert.assertEquals(1, odm.getElementsByTagName("StudyEventData").getLength());
+            Assert.assertEquals(1, rewriter.getPrunedEvents());
+            Assert.assertEquals(6, rewriter.getRemovedAttributes());
+        }
+    }
+
+    @Test
+    public void testPlaceholdersOnly() throws Exception {
+        Document odm = parse(ODM, true);
+        ODMRewriter rewriter = new ODMRewriter();
+        rewriter.setStripPlaceholders(true);
+        rewriter.rewrite(odm.getDocumentElement());
+
+        String result = XMLUtils.nodeToString(odm);
+        Assert.assertFalse(result, result.contains("OpenClinica:Sex"));
+        Assert.assertTrue(result, result.contains("Mirth:ScheduleOnly"));
+        Assert.assertTrue(result, result.contains("StudyEventRepeatKey"));
+        Assert.assertEquals(2, odm.getElementsByTagName("StudyEventData").getLength());
+        Assert.assertEquals(1, rewriter.getRemovedAttributes());
+    }
+
+    @Test
+    public void testResolvedOIDsAreWritten() throws Exception {
+        Document odm = parse(ODM, true);
+        Element clinicalData = (Element) odm.getElementsByTagName("ClinicalData").item(0);
+        Element subjectData = (Element) odm.getElementsByTagName("SubjectData").item(0);
+        ResolutionPlan plan = new ResolutionPlan();
+        ResolutionPlan.PlannedStudy study = plan.addStudy("S_1", false);
+        study.addAttribute(clinicalData.getAttributeNode("StudyOID"));
+        Study resolved = new Study();
+        resolved.setStudyOID("S_RESOLVED");
+        study.setStudy(resolved);
+        ResolutionPlan.PlannedSubject subject = study.addSubject("1", subjectData);
+        subject.addAttribute(subjectData.getAttributeNode("SubjectKey"));
+        subject.setSubjectOID("SS_1");
+
+        ODMRewriter rewriter = ODMRewriter.forUpload();
+        rewriter.setValues(plan);
+        rewriter.rewrite(odm);
+        Assert.assertEquals("S_RESOLVED", clinicalData.getAttribute("StudyOID"));
+        Assert.assertEquals("SS_1", subjectData.getAttribute("SubjectKey"));
+        Assert.assertEquals(2, rewriter.getRewrittenAttributes());
+    }
+
+    private static Document parse(String xml, boolean namespaceAware) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
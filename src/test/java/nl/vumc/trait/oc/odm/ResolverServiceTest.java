@@ -0,0 +1,67 @@
+package nl.vumc.trait.oc.odm;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.Assert;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Concurrent documents resolved by a single, shared resolver service.
+ */
+public class ResolverServiceTest {
+
+    private static final int SUBJECTS = 16;
+
+    @Test
+    public void testConcurrentDocuments() throws Exception {
+        for (boolean check : new boolean[]{false, true}) {
+            SyntheticODM synthetic = new SyntheticODM(1, SUBJECTS, 2, 4);
+            SimulatedOpenClinica model = new SimulatedOpenClinica();
+            synthetic.populate(model);
+            final ResolverService service = new ResolverService(new InMemoryWebServices(model));
+            String odm = synthetic.clinicalData().replace("Mirth:PreliminaryConsistencyCheck=\"false\"",
+                    "Mirth:PreliminaryConsistencyCheck=\"" + check + "\"");
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<String>> results = new ArrayList<Future<String>>();
+                for (final String document : SyntheticODM.perClinicalData(odm)) {
+                    results.add(executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return service.process(parse(document));
+                        }
+                    }));
+                }
+                for (Future<String> result : results) {
+                    Assert.assertTrue(result.get().contains("StudyOID=\"" + SyntheticODM.studyOID(0) + "\""));
+                }
+            } finally {
+                executor.shutdown();
+            }
+            Assert.assertEquals(SUBJECTS, model.getCallCount("create"));
+            Assert.assertEquals(SUBJECTS, model.getSubjectCount(SyntheticODM.studyIdentifier(0)));
+            Assert.assertEquals(2 * SUBJECTS, model.getScheduledEventCount(SyntheticODM.studyIdentifier(0)));
+            Assert.assertEquals(SUBJECTS, model.getImports().size());
+            Assert.assertEquals(1, service.getStudies().size());
+            Assert.assertEquals(SUBJECTS, service.getStudies().iterator().next().getStudySubjects().size());
+        }
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
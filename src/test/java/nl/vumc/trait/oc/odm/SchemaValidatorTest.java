@@ -0,0 +1,71 @@
+package nl.vumc.trait.oc.odm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Schema validation of ODM documents, files and ClinicalData chunks.
+ */
+public class SchemaValidatorTest {
+
+    private static final String VALID = "<ODM xmlns=\"http://www.cdisc.org/ns/odm/v1.3\" FileOID=\"F1\""
+            + " FileType=\"Snapshot\" CreationDateTime=\"2012-01-01T00:00:00\" ODMVersion=\"1.3\">"
+            + "<ClinicalData StudyOID=\"S_1\" MetaDataVersionOID=\"v1.0.0\">"
+            + "<SubjectData SubjectKey=\"SS_1\"><StudyEventData StudyEventOID=\"SE_1\"/></SubjectData>"
+            + "</ClinicalData></ODM>";
+    private static final String INVALID = VALID.replace("<StudyEventData", "<StudyEventDatum");
+
+    @Test
+    public void testSchemaIsCompiledOnce() throws Exception {
+        Assert.assertSame(SchemaValidator.getSchema(), SchemaValidator.getSchema());
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        SchemaValidator validator = new SchemaValidator();
+        Assert.assertTrue(validator.validate(VALID.getBytes("UTF-8")).isEmpty());
+        List<String> problems = validator.validate(INVALID.getBytes("UTF-8"));
+        Assert.assertFalse(problems.isEmpty());
+        Assert.assertTrue(problems.get(0), problems.get(0).contains("StudyEventDatum"));
+        Assert.assertTrue(validator.validate(XMLUtils.buildDocument(VALID)).isEmpty());
+    }
+
+    @Test
+    public void testUnqualifiedOdmIsValidated() throws Exception {
+        String unqualified = VALID.replace(" xmlns=\"http://www.cdisc.org/ns/odm/v1.3\"",
+                " xmlns:mirth=\"http://www.vumc.nl/trait/odm/mirth/v0.1\"")
+                .replace("SubjectKey=\"SS_1\"", "SubjectKey=\"SS_1\" mirth:StudySubjectID=\"1\"");
+        Assert.assertTrue(new SchemaValidator().validate(unqualified.getBytes("UTF-8")).isEmpty());
+    }
+
+    @Test
+    public void testValidateInParallel() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 6; ++i) {
+            File file = File.createTempFile("odm", ".xml");
+            file.deleteOnExit();
+            OutputStream out = new FileOutputStream(file);
+            out.write((i % 3 == 1 ? INVALID : VALID).getBytes("UTF-8"));
+            out.close();
+            files.add(file);
+        }
+        Map<File, List<String>> results = new SchemaValidator().validate(files, 3);
+        Assert.assertEquals(files, new ArrayList<File>(results.keySet()));
+        for (int i = 0; i < files.size(); ++i) {
+            Assert.assertEquals(i % 3 == 1, !results.get(files.get(i)).isEmpty());
+        }
+
+        String two = VALID.replace("</ODM>", INVALID.substring(INVALID.indexOf("<ClinicalData")));
+        List<List<String>> chunks = new SchemaValidator().validateClinicalData(
+                new ClinicalODM(XMLUtils.buildDocument(two), false), 2);
+        Assert.assertEquals(2, chunks.size());
+        Assert.assertTrue(chunks.get(0).isEmpty());
+        Assert.assertFalse(chunks.get(1).isEmpty());
+    }
+}
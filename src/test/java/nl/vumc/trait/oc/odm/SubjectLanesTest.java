@@ -0,0 +1,164 @@
+package nl.vumc.trait.oc.odm;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.Assert;
+import nl.vumc.trait.oc.sim.InMemoryWebServices;
+import nl.vumc.trait.oc.sim.SimulatedOpenClinica;
+import nl.vumc.trait.oc.sim.SyntheticODM;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Subject lanes: work on a subject in order, different subjects concurrently.
+ */
+public class SubjectLanesTest {
+
+    private static final int SUBJECTS = 4;
+
+    @Test
+    public void testWorkOnASubjectStaysInOrder() throws Exception {
+        SubjectLanes lanes = new SubjectLanes(SUBJECTS);
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                for (int j = 0; j < SUBJECTS; j++) {
+                    final String work = "subject" + j + " " + i;
+                    results.add(lanes.submit("subject" + j, new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            Thread.sleep(1);
+                            done.add(work);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (Future<Void> result : results) {
+                SubjectLanes.await(result);
+            }
+        } finally {
+            lanes.shutdown();
+        }
+        Assert.assertEquals(10 * SUBJECTS, done.size());
+        for (int j = 0; j < SUBJECTS; j++) {
+            int next = 0;
+            for (String work : done) {
+                if (work.startsWith("subject" + j + " ")) {
+                    Assert.assertEquals("subject" + j + " " + next++, work);
+                }
+            }
+            Assert.assertEquals(10, next);
+        }
+        Assert.assertEquals(10 * SUBJECTS, lanes.getSubmitted());
+    }
+
+    @Test
+    public void testSplitPerSubject() throws Exception {
+        SubjectLanes lanes = new SubjectLanes(2);
+        try {
+            Document odm = parse(new SyntheticODM(2, SUBJECTS, 1, 2).clinicalData());
+            List<Document> documents = lanes.split(odm);
+            Assert.assertEquals(2 * SUBJECTS, documents.size());
+            Set<String> keys = new HashSet<String>();
+            for (Document document : documents) {
+                keys.add(SubjectLanes.key(document));
+                Assert.assertEquals(1, document.getElementsByTagName("SubjectData").getLength());
+                Assert.assertEquals("false",
+                        document.getDocumentElement().getAttribute("Mirth:PreliminaryConsistencyCheck"));
+            }
+            Assert.assertEquals(2 * SUBJECTS, keys.size());
+            Assert.assertTrue(keys.contains(SyntheticODM.studyIdentifier(1) + "\n" + SyntheticODM.subjectLabel(1, 0)));
+            // a document with a single subject is not copied
+            Assert.assertSame(documents.get(0), lanes.split(documents.get(0)).get(0));
+        } finally {
+            lanes.shutdown();
+        }
+    }
+
+    @Test
+    public void testPartitionByLane() throws Exception {
+        SubjectLanes lanes = new SubjectLanes(3);
+        try {
+            Document odm = parse(new SyntheticODM(2, SUBJECTS, 1, 2).clinicalData());
+            List<Document> documents = lanes.partition(odm);
+            Assert.assertTrue(documents.size() > 1);
+            Set<Integer> used = new HashSet<Integer>();
+            int subjects = 0;
+            for (Document document : documents) {
+                int lane = lanes.getLane(SubjectLanes.key(document));
+                Assert.assertTrue(used.add(lane));
+                NodeList clinicalDatas = document.getElementsByTagName("ClinicalData");
+                for (int i = 0; i < clinicalDatas.getLength(); i++) {
+                    Element clinicalData = (Element) clinicalDatas.item(i);
+                    NodeList subjectDatas = clinicalData.getElementsByTagName("SubjectData");
+                    for (int j = 0; j < subjectDatas.getLength(); j++) {
+                        Assert.assertEquals(lane, lanes.getLane(clinicalData.getAttribute("StudyOID") + "\n"
+                                + ((Element) subjectDatas.item(j)).getAttribute("SubjectKey")));
+                        subjects++;
+                    }
+                }
+            }
+            Assert.assertEquals(2 * SUBJECTS, subjects);
+        } finally {
+            lanes.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentDocumentsForTheSameSubject() throws Exception {
+        SyntheticODM synthetic = new SyntheticODM(1, SUBJECTS, 1, 2);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        final ResolverService service = new ResolverService(new InMemoryWebServices(model));
+        SubjectLanes lanes = new SubjectLanes(SUBJECTS);
+        service.setLanes(lanes);
+        List<String> documents = new ArrayList<String>();
+        for (String document : SyntheticODM.perClinicalData(synthetic.clinicalData())) {
+            documents.add(document);
+            documents.add(document);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(documents.size());
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (final String document : documents) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return service.process(parse(document));
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+            lanes.shutdown();
+        }
+        Assert.assertEquals(SUBJECTS, model.getCallCount("create"));
+        Assert.assertEquals(SUBJECTS, model.getSubjectCount(SyntheticODM.studyIdentifier(0)));
+        Assert.assertEquals(2 * SUBJECTS, model.getImports().size());
+        Assert.assertEquals(2 * SUBJECTS, lanes.getSubmitted());
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
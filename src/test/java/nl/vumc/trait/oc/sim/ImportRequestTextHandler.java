@@ -0,0 +1,85 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import java.util.Set;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.soap.SOAPBody;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+import nl.vumc.trait.oc.odm.XMLUtils;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Server side counterpart of ImportRequestHandler: the client sends the ODM
+ * as child elements of importRequest, while the data binding declares it as a
+ * String. This handler serializes the ODM element back into the text content
+ * of importRequest, so the endpoint receives the ODM as the client passed it.
+ */
+public class ImportRequestTextHandler implements SOAPHandler<SOAPMessageContext> {
+
+    private static final String IMPORT_ELEMENT_NS = "http://openclinica.org/ws/data/v1";
+    private static final String IMPORT_ELEMENT = "importRequest";
+
+    @Override
+    public boolean handleMessage(SOAPMessageContext context) {
+        Boolean outbound = (Boolean) context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY);
+        if (!outbound) {
+            try {
+                SOAPBody body = context.getMessage().getSOAPBody();
+                NodeList nodeList = body.getElementsByTagNameNS(IMPORT_ELEMENT_NS, IMPORT_ELEMENT);
+                if (nodeList.getLength() > 0) {
+                    Element importRequest = (Element) nodeList.item(0);
+                    Node odm = importRequest.getFirstChild();
+                    while (odm != null && odm.getNodeType() != Node.ELEMENT_NODE) {
+                        odm = odm.getNextSibling();
+                    }
+                    if (odm != null) {
+                        String text = XMLUtils.nodeToString(odm);
+                        importRequest.setTextContent(text);
+                        importRequest.setAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "xsi:type", "xs:string");
+                        importRequest.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:xs",
+                                XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                        context.getMessage().saveChanges();
+                    }
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot unwrap import request", e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean handleFault(SOAPMessageContext context) {
+        return true;
+    }
+
+    @Override
+    public void close(MessageContext context) {
+    }
+
+    @Override
+    public Set<QName> getHeaders() {
+        return null;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import nl.vumc.trait.oc.connect.ConnectInfo;
+import nl.vumc.trait.oc.connect.OCWebServices;
+
+/**
+ * OCWebServices whose bindings call straight into a SimulatedOpenClinica, no
+ * SOAP (and no SOAP handlers) involved. Used to measure and test the client
+ * side of the resolving and import code in isolation.
+ */
+public class InMemoryWebServices extends OCWebServices {
+
+    /**
+     * the model behind the bindings
+     */
+    private final SimulatedOpenClinica model;
+    /**
+     * latency, errors and throughput applied to every call
+     */
+    private final SimulatedConditions conditions;
+
+    /**
+     * Create a connector on top of a model, without latency or errors.
+     *
+     * @param model the simulated OpenClinica
+     * @throws DatatypeConfigurationException
+     */
+    public InMemoryWebServices(SimulatedOpenClinica model) throws DatatypeConfigurationException {
+        this(model, new SimulatedConditions());
+    }
+
+    /**
+     * Create a connector on top of a model.
+     *
+     * @param model the simulated OpenClinica
+     * @param conditions latency, errors and throughput to simulate
+     * @throws DatatypeConfigurationException
+     */
+    public InMemoryWebServices(SimulatedOpenClinica model, SimulatedConditions conditions)
+            throws DatatypeConfigurationException {
+        super();
+        this.model = model;
+        this.conditions = conditions;
+        setCredentials(new ConnectInfo("mem://simulated/", "simulated", "simulated"));
+        studyBinding = new SimulatedStudyWs(model, conditions);
+        studySubjectBinding = new SimulatedStudySubjectWs(model, conditions);
+        eventBinding = new SimulatedEventWs(model, conditions);
+        dataBinding = new SimulatedDataWs(model, conditions);
+        studyEventDefinitionBinding = new SimulatedStudyEventDefinitionWs(model, conditions);
+    }
+
+    /**
+     * Get the model behind the bindings
+     *
+     * @return the simulated OpenClinica
+     */
+    public SimulatedOpenClinica getModel() {
+        return model;
+    }
+
+    /**
+     * Get the simulated conditions
+     *
+     * @return latency, errors and throughput settings
+     */
+    public SimulatedConditions getConditions() {
+        return conditions;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.ws.WebServiceException;
+
+/**
+ * Operating conditions of a simulated OpenClinica: response latency, error
+ * injection and a throughput limit. Applied by the simulated bindings before
+ * every operation, so they hold for both the in-memory connector and the
+ * HTTP server. All settings may be changed while calls are in progress.
+ */
+public class SimulatedConditions {
+
+    /**
+     * fixed latency per call in milliseconds
+     */
+    private volatile long latencyMillis;
+    /**
+     * random extra latency per call, uniformly distributed in [0, jitter)
+     */
+    private volatile long jitterMillis;
+    /**
+     * probability [0, 1] that a call fails with a WebServiceException
+     */
+    private volatile double errorRate;
+    /**
+     * maximum number of calls per second over all operations, 0 for no limit
+     */
+    private volatile double maxCallsPerSecond;
+    /**
+     * operation to restrict error injection to, null for all operations
+     */
+    private volatile String errorOperation;
+    /**
+     * number of calls (of the error operation) to succeed before all fail, -1
+     * for no such limit
+     */
+    private volatile long errorAfter = -1;
+    private final AtomicLong errorOperationCalls = new AtomicLong();
+    /**
+     * whether the HTTP server accepts gzipped requests and gzips responses to
+     * clients asking for it
+     */
+    private volatile boolean compression;
+    /**
+     * the earliest time (System.nanoTime()) the next call may start
+     */
+    private long nextSlot;
+    private final Random random = new Random();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    /**
+     * Apply the conditions for a call: wait for a throughput slot, sleep for
+     * the configured latency and possibly fail.
+     *
+     * @param operation name of the operation called
+     * @throws WebServiceException when an error is injected
+     */
+    public void apply(String operation) {
+        throttle();
+        long latency = latencyMillis;
+        long jitter = jitterMillis;
+        if (jitter > 0) {
+            synchronized (random) {
+                latency += (long) (random.nextDouble() * jitter);
+            }
+        }
+        sleep(latency * 1000000L);
+        boolean errorCandidate = errorOperation == null || errorOperation.equals(operation);
+        long after = errorAfter;
+        if (after >= 0 && errorCandidate && errorOperationCalls.incrementAndGet() > after) {
+            injectedErrors.incrementAndGet();
+            throw new WebServiceException("Simulated failure of operation '" + operation + "'");
+        }
+        double rate = errorRate;
+        if (rate > 0 && errorCandidate) {
+            boolean fail;
+            synchronized (random) {
+                fail = random.nextDouble() < rate;
+            }
+            if (fail) {
+                injectedErrors.incrementAndGet();
+                throw new WebServiceException("Simulated failure of operation '" + operation + "'");
+            }
+        }
+    }
+
+    private void throttle() {
+        double limit = maxCallsPerSecond;
+        if (limit <= 0) {
+            return;
+        }
+        long interval = (long) (1000000000L / limit);
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextSlot < now) {
+                nextSlot = now;
+            }
+            wait = nextSlot - now;
+            nextSlot += interval;
+        }
+        sleep(wait);
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public SimulatedConditions setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    public SimulatedConditions setJitterMillis(long jitterMillis) {
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public SimulatedConditions setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public String getErrorOperation() {
+        return errorOperation;
+    }
+
+    /**
+     * Restrict error injection to one operation.
+     *
+     * @param errorOperation operation name as counted by
+     * SimulatedOpenClinica.getCallCount(), null for all operations
+     * @return this
+     */
+    public SimulatedConditions setErrorOperation(String errorOperation) {
+        this.errorOperation = errorOperation;
+        return this;
+    }
+
+    public long getErrorAfter() {
+        return errorAfter;
+    }
+
+    /**
+     * Let a number of calls (of the error operation, if set) succeed and fail
+     * all calls after that.
+     *
+     * @param errorAfter number of calls to succeed, -1 to switch off
+     * @return this
+     */
+    public SimulatedConditions setErrorAfter(long errorAfter) {
+        this.errorOperationCalls.set(0);
+        this.errorAfter = errorAfter;
+        return this;
+    }
+
+    public double getMaxCallsPerSecond() {
+        return maxCallsPerSecond;
+    }
+
+    public SimulatedConditions setMaxCallsPerSecond(double maxCallsPerSecond) {
+        this.maxCallsPerSecond = maxCallsPerSecond;
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public SimulatedConditions setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Number of errors injected so far
+     *
+     * @return number of injected errors
+     */
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+}
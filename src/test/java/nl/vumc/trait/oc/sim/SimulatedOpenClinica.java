@@ -0,0 +1,536 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.datatype.XMLGregorianCalendar;
+import nl.vumc.trait.oc.connect.OCConnector;
+import org.openclinica.ws.beans.EventType;
+import org.openclinica.ws.beans.EventsType;
+import org.openclinica.ws.beans.GenderType;
+import org.openclinica.ws.beans.ListStudySubjectsInStudyType;
+import org.openclinica.ws.beans.SiteRefType;
+import org.openclinica.ws.beans.SiteType;
+import org.openclinica.ws.beans.SitesType;
+import org.openclinica.ws.beans.StudiesType;
+import org.openclinica.ws.beans.StudyEventDefinitionType;
+import org.openclinica.ws.beans.StudyEventDefinitionsType;
+import org.openclinica.ws.beans.StudyRefType;
+import org.openclinica.ws.beans.StudySubjectType;
+import org.openclinica.ws.beans.StudySubjectWithEventsType;
+import org.openclinica.ws.beans.StudySubjectsType;
+import org.openclinica.ws.beans.StudyType;
+import org.openclinica.ws.beans.SubjectType;
+import org.openclinica.ws.data.v1.ImportResponse;
+import org.openclinica.ws.event.v1.ScheduleRequest;
+import org.openclinica.ws.event.v1.ScheduleResponse;
+import org.openclinica.ws.study.v1.GetMetadataRequest;
+import org.openclinica.ws.study.v1.GetMetadataResponse;
+import org.openclinica.ws.study.v1.ListAllResponse;
+import org.openclinica.ws.studyeventdefinition.v1.ListAllRequest;
+import org.openclinica.ws.studysubject.v1.CreateRequest;
+import org.openclinica.ws.studysubject.v1.CreateResponse;
+import org.openclinica.ws.studysubject.v1.IsStudySubjectRequest;
+import org.openclinica.ws.studysubject.v1.IsStudySubjectResponse;
+import org.openclinica.ws.studysubject.v1.ListAllByStudyResponse;
+
+/**
+ * In-memory model of an OpenClinica instance. Implements the web service
+ * operations used by OCWebServices on top of a handful of maps, so that the
+ * resolving and import code can be exercised without a live server. Every
+ * operation is counted per name; see getCallCount().
+ */
+public class SimulatedOpenClinica {
+
+    /**
+     * A study (or site) and everything registered for it.
+     */
+    private static class SimStudy {
+
+        String identifier;
+        String oid;
+        String name;
+        SimStudy parent;
+        final Map<String, SimStudy> sites = new LinkedHashMap<String, SimStudy>();
+        final Map<String, String> eventDefinitions = new LinkedHashMap<String, String>();
+        final Map<String, SimSubject> subjects = new LinkedHashMap<String, SimSubject>();
+        String metadata;
+    }
+
+    /**
+     * A study subject and its scheduled events.
+     */
+    private static class SimSubject {
+
+        String label;
+        String oid;
+        SimStudy site;
+        SubjectType subject;
+        XMLGregorianCalendar enrollmentDate;
+        final List<EventType> events = new ArrayList<EventType>();
+    }
+    /**
+     * studies by identifier
+     */
+    private final Map<String, SimStudy> studies = new LinkedHashMap<String, SimStudy>();
+    /**
+     * operation name to number of calls
+     */
+    private final ConcurrentHashMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+    /**
+     * ODM payloads received by dataImport()
+     */
+    private final List<String> imports = new ArrayList<String>();
+    /**
+     * dataImport() fails for payloads containing this text, null for none
+     */
+    private String rejectedImports;
+    /**
+     * number of subjects created, used to derive subject OIDs
+     */
+    private int subjectSequence;
+
+    /**
+     * Register a study.
+     *
+     * @param identifier study identifier (unique protocol ID)
+     * @param oid study OID
+     * @param name study name
+     */
+    public synchronized void addStudy(String identifier, String oid, String name) {
+        SimStudy study = new SimStudy();
+        study.identifier = identifier;
+        study.oid = oid;
+        study.name = name;
+        studies.put(identifier, study);
+    }
+
+    /**
+     * Register a site for an existing study.
+     *
+     * @param studyIdentifier identifier of the parent study
+     * @param identifier site identifier
+     * @param oid site OID
+     * @param name site name
+     */
+    public synchronized void addSite(String studyIdentifier, String identifier, String oid, String name) {
+        SimStudy parent = studies.get(studyIdentifier);
+        SimStudy site = new SimStudy();
+        site.identifier = identifier;
+        site.oid = oid;
+        site.name = name;
+        site.parent = parent;
+        parent.sites.put(identifier, site);
+    }
+
+    /**
+     * Register an event definition for a study.
+     *
+     * @param studyIdentifier study identifier
+     * @param eventOID event definition OID
+     * @param eventName event name
+     */
+    public synchronized void addEventDefinition(String studyIdentifier, String eventOID, String eventName) {
+        studies.get(studyIdentifier).eventDefinitions.put(eventOID, eventName);
+    }
+
+    /**
+     * Set the metadata ODM returned by getMetadata() for a study.
+     *
+     * @param studyIdentifier study identifier
+     * @param metadata metadata ODM as String
+     */
+    public synchronized void setMetadata(String studyIdentifier, String metadata) {
+        studies.get(studyIdentifier).metadata = metadata;
+    }
+
+    /**
+     * Register an existing subject.
+     *
+     * @param studyIdentifier study identifier
+     * @param label study subject label
+     */
+    public synchronized void addSubject(String studyIdentifier, String label) {
+        SimStudy study = studies.get(studyIdentifier);
+        SimSubject subject = new SimSubject();
+        subject.label = label;
+        subject.oid = nextSubjectOID(label);
+        subject.subject = new SubjectType();
+        subject.subject.setGender(GenderType.UNKNOWN);
+        study.subjects.put(label, subject);
+    }
+
+    /**
+     * Remove all subjects, scheduled events and received imports, keeping
+     * studies and definitions. Call counts are reset as well.
+     */
+    public synchronized void reset() {
+        for (SimStudy study : studies.values()) {
+            study.subjects.clear();
+        }
+        imports.clear();
+        calls.clear();
+    }
+
+    /**
+     * Number of calls made to a given operation.
+     *
+     * @param operation operation name, i.e. "isStudySubject"
+     * @return number of calls
+     */
+    public long getCallCount(String operation) {
+        AtomicLong count = calls.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Number of subjects known in a study (sites included).
+     *
+     * @param studyIdentifier study identifier
+     * @return number of subjects
+     */
+    public synchronized int getSubjectCount(String studyIdentifier) {
+        return studies.get(studyIdentifier).subjects.size();
+    }
+
+    /**
+     * Number of events scheduled in a study (sites included).
+     *
+     * @param studyIdentifier study identifier
+     * @return number of scheduled events
+     */
+    public synchronized int getScheduledEventCount(String studyIdentifier) {
+        int count = 0;
+        for (SimSubject subject : studies.get(studyIdentifier).subjects.values()) {
+            count += subject.events.size();
+        }
+        return count;
+    }
+
+    /**
+     * ODM payloads received so far
+     *
+     * @return copy of the list of payloads
+     */
+    public synchronized List<String> getImports() {
+        return new ArrayList<String>(imports);
+    }
+
+    // ================================================================================================================
+    // web service operations
+    /**
+     * study/v1 listAll
+     *
+     * @return all studies with their sites
+     */
+    public synchronized ListAllResponse listAllStudies() {
+        count("listAllStudies");
+        ListAllResponse response = new ListAllResponse();
+        StudiesType studiesType = new StudiesType();
+        for (SimStudy study : studies.values()) {
+            StudyType studyType = new StudyType();
+            studyType.setIdentifier(study.identifier);
+            studyType.setOid(study.oid);
+            studyType.setName(study.name);
+            if (!study.sites.isEmpty()) {
+                SitesType sitesType = new SitesType();
+                for (SimStudy site : study.sites.values()) {
+                    SiteType siteType = new SiteType();
+                    siteType.setIdentifier(site.identifier);
+                    siteType.setOid(site.oid);
+                    siteType.setName(site.name);
+                    sitesType.getSite().add(siteType);
+                }
+                studyType.setSites(sitesType);
+            }
+            studiesType.getStudy().add(studyType);
+        }
+        response.setStudies(studiesType);
+        response.setResult(OCConnector.STATUS_SUCCESS);
+        return response;
+    }
+
+    /**
+     * study/v1 getMetadata
+     *
+     * @param request request holding the study identifier
+     * @return metadata ODM for the study
+     */
+    public synchronized GetMetadataResponse getMetadata(GetMetadataRequest request) {
+        count("getMetadata");
+        GetMetadataResponse response = new GetMetadataResponse();
+        SimStudy study = studies.get(request.getStudyMetadata().getIdentifier());
+        if (study == null || study.metadata == null) {
+            return fail(response, response.getError(), "No metadata for study");
+        }
+        response.setOdm(study.metadata);
+        response.setResult(OCConnector.STATUS_SUCCESS);
+        return response;
+    }
+
+    /**
+     * studyEventDefinition/v1 listAll
+     *
+     * @param request request holding the study reference
+     * @return the event definitions of the study
+     */
+    public synchronized org.openclinica.ws.studyeventdefinition.v1.ListAllResponse listAllEventDefinitions(
+            ListAllRequest request) {
+        count("listAllEventDefinitions");
+        org.openclinica.ws.studyeventdefinition.v1.ListAllResponse response =
+                new org.openclinica.ws.studyeventdefinition.v1.ListAllResponse();
+        SimStudy study = studies.get(request.getStudyEventDefinitionListAll().getStudyRef().getIdentifier());
+        if (study == null) {
+            return fail(response, response.getError(), "Study does not exist");
+        }
+        StudyEventDefinitionsType definitions = new StudyEventDefinitionsType();
+        for (Map.Entry<String, String> entry : study.eventDefinitions.entrySet()) {
+            StudyEventDefinitionType definition = new StudyEventDefinitionType();
+            definition.setOid(entry.getKey());
+            definition.setName(entry.getValue());
+            definitions.getStudyEventDefinition().add(definition);
+        }
+        response.setStudyEventDefinitions(definitions);
+        response.setResult(OCConnector.STATUS_SUCCESS);
+        return response;
+    }
+
+    /**
+     * studySubject/v1 isStudySubject
+     *
+     * @param request request holding label and study reference
+     * @return response holding the subject OID, Fail if the study or subject is unknown
+     */
+    public synchronized IsStudySubjectResponse isStudySubject(IsStudySubjectRequest request) {
+        count("isStudySubject");
+        IsStudySubjectResponse response = new IsStudySubjectResponse();
+        StudySubjectType subjectType = request.getStudySubject();
+        if (findStudy(subjectType.getStudyRef()) == null) {
+            return fail(response, response.getError(), "Study does not exist");
+        }
+        SimSubject subject = findSubject(subjectType.getStudyRef(), subjectType.getLabel());
+        if (subject == null) {
+            return fail(response, response.getError(), "Study subject '" + subjectType.getLabel() + "' does not exist");
+        }
+        response.setStudySubjectOID(subject.oid);
+        response.setResult(OCConnector.STATUS_SUCCESS);
+        return response;
+    }
+
+    /**
+     * studySubject/v1 listAllByStudy
+     *
+     * @param request request holding the study reference
+     * @return all subjects of the study with their events
+     */
+    public synchronized ListAllByStudyResponse listAllByStudy(ListStudySubjectsInStudyType request) {
+        count("listAllByStudy");
+        ListAllByStudyResponse response = new ListAllByStudyResponse();
+        SimStudy study = findStudy(request.getStudyRef());
+        if (study == null) {
+            return fail(response, response.getError(), "Study does not exist");
+        }
+        StudySubjectsType subjectsType = new StudySubjectsType();
+        for (SimSubject subject : root(study).subjects.values()) {
+            if (study.parent != null && subject.site != study) {
+                continue;
+            }
+            StudySubjectWithEventsType subjectType = new StudySubjectWithEventsType();
+            subjectType.setLabel(subject.label);
+            subjectType.setEnrollmentDate(subject.enrollmentDate);
+            subjectType.setSubject(subject.subject);
+            EventsType events = new EventsType();
+            events.getEvent().addAll(subject.events);
+            subjectType.setEvents(events);
+            subjectsType.getStudySubject().add(subjectType);
+        }
+        response.setStudySubjects(subjectsType);
+        response.setResult(OCConnector.STATUS_SUCCESS);
+        return response;
+    }
+
+    /**
+     * studySubject/v1 create
+     *
+     * @param request request holding the subject(s) to create
+     * @return response holding the label of the (last) created subject
+     */
+    public synchronized CreateResponse create(CreateRequest request) {
+        count("create");
+        CreateResponse response = new CreateResponse();
+        for (StudySubjectType subjectType : request.getStudySubject()) {
+            SimStudy study = findStudy(subjectType.getStudyRef());
+            if (study == null) {
+                return fail(response, response.getError(), "Study does not exist");
+            }
+            if (subjectType.getLabel() == null || root(study).subjects.containsKey(subjectType.getLabel())) {
+                return fail(response, response.getError(), "Label '" + subjectType.getLabel() + "' already in use");
+            }
+            SimSubject subject = new SimSubject();
+            subject.label = subjectType.getLabel();
+            subject.oid = nextSubjectOID(subject.label);
+            subject.site = study.parent == null ? null : study;
+            subject.subject = subjectType.getSubject();
+            if (subject.subject.getGender() == null) {
+                subject.subject.setGender(GenderType.UNKNOWN);
+            }
+            subject.enrollmentDate = subjectType.getEnrollmentDate();
+            root(study).subjects.put(subject.label, subject);
+            response.setLabel(subject.label);
+        }
+        response.setResult(OCConnector.STATUS_SUCCESS);
+        return response;
+    }
+
+    /**
+     * event/v1 schedule
+     *
+     * @param request request holding the event(s) to schedule
+     * @return response describing the (last) scheduled event
+     */
+    public synchronized ScheduleResponse schedule(ScheduleRequest request) {
+        count("schedule");
+        ScheduleResponse response = new ScheduleResponse();
+        for (EventType event : request.getEvent()) {
+            SimSubject subject = findSubject(event.getStudyRef(), event.getStudySubjectRef().getLabel());
+            if (subject == null) {
+                return fail(response, response.getError(), "Study subject does not exist");
+            }
+            if (!root(findStudy(event.getStudyRef())).eventDefinitions.containsKey(event.getEventDefinitionOID())) {
+                return fail(response, response.getError(), "Event definition does not exist");
+            }
+            int ordinal = 1;
+            for (EventType scheduled : subject.events) {
+                if (scheduled.getEventDefinitionOID().equals(event.getEventDefinitionOID())) {
+                    ordinal++;
+                }
+            }
+            subject.events.add(event);
+            response.setEventDefinitionOID(event.getEventDefinitionOID());
+            response.setStudySubjectOID(subject.oid);
+            response.setStudyEventOrdinal(String.valueOf(ordinal));
+        }
+        response.setResult(OCConnector.STATUS_SUCCESS);
+        return response;
+    }
+
+    /**
+     * data/v1 dataImport
+     *
+     * @param odm the ODM as passed by the client (a String when called
+     * in-process)
+     * @return Success, or Fail if rejected, see rejectImportsContaining()
+     */
+    public synchronized ImportResponse dataImport(Object odm) {
+        count("dataImport");
+        ImportResponse response = new ImportResponse();
+        if (rejectedImports != null && String.valueOf(odm).contains(rejectedImports)) {
+            return fail(response, response.getError(), "Import rejected");
+        }
+        imports.add(String.valueOf(odm));
+        response.setResult(OCConnector.STATUS_SUCCESS);
+        return response;
+    }
+
+    /**
+     * Let dataImport() fail, without importing anything, for payloads
+     * containing the given text.
+     *
+     * @param text text to reject, null to accept all imports
+     */
+    public synchronized void rejectImportsContaining(String text) {
+        rejectedImports = text;
+    }
+
+    // ================================================================================================================
+    /**
+     * Resolve a study reference (with optional site reference) to a study or
+     * site. Sites may be referenced by identifier or OID.
+     *
+     * @param studyRef study reference
+     * @return study or site, null if unknown
+     */
+    private SimStudy findStudy(StudyRefType studyRef) {
+        SimStudy study = studies.get(studyRef.getIdentifier());
+        if (study == null) {
+            return null;
+        }
+        SiteRefType siteRef = studyRef.getSiteRef();
+        if (siteRef != null && siteRef.getIdentifier() != null) {
+            for (SimStudy site : study.sites.values()) {
+                if (site.identifier.equals(siteRef.getIdentifier()) || site.oid.equals(siteRef.getIdentifier())) {
+                    return site;
+                }
+            }
+            return null;
+        }
+        return study;
+    }
+
+    /**
+     * Look up a subject by label. Subjects are registered with their parent
+     * study; a site reference restricts the lookup to subjects of that site.
+     *
+     * @param studyRef study reference
+     * @param label study subject label
+     * @return the subject, null if unknown
+     */
+    private SimSubject findSubject(StudyRefType studyRef, String label) {
+        SimStudy study = findStudy(studyRef);
+        if (study == null) {
+            return null;
+        }
+        SimSubject subject = root(study).subjects.get(label);
+        if (subject != null && study.parent != null && subject.site != study) {
+            return null;
+        }
+        return subject;
+    }
+
+    private static SimStudy root(SimStudy study) {
+        return study.parent == null ? study : study.parent;
+    }
+
+    private String nextSubjectOID(String label) {
+        return "SS_" + label.replaceAll("[^A-Za-z0-9]", "").toUpperCase() + "_" + (++subjectSequence);
+    }
+
+    private void count(String operation) {
+        AtomicLong count = calls.get(operation);
+        if (count == null) {
+            calls.putIfAbsent(operation, new AtomicLong());
+            count = calls.get(operation);
+        }
+        count.incrementAndGet();
+    }
+
+    private static <T> T fail(T response, List<String> errors, String error) {
+        errors.add(error);
+        try {
+            response.getClass().getMethod("setResult", String.class).invoke(response, OCConnector.STATUS_FAIL);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return response;
+    }
+}
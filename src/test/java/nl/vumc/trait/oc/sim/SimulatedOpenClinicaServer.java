@@ -0,0 +1,256 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.ws.Endpoint;
+import javax.xml.ws.handler.Handler;
+import nl.vumc.trait.oc.connect.OCConnector;
+
+/**
+ * Embeddable HTTP server publishing the five OpenClinica web services on top
+ * of a SimulatedOpenClinica, using the JAX-WS endpoint support of the JDK.
+ * The services are published under the same paths as OpenClinica-ws so that
+ * OCWebServices can connect to getBaseURL() unchanged (SOAP handlers, WS
+ * security header and all). The WSDL locations used by OCConnector redirect
+ * to the generated WSDL of each endpoint.
+ *
+ * Latency, errors, throughput and gzip support are controlled through the
+ * SimulatedConditions; the number of requests handled concurrently is limited
+ * by the size of the server's thread pool.
+ */
+public class SimulatedOpenClinicaServer {
+
+    /**
+     * context root of the web services
+     */
+    public static final String CONTEXT_ROOT = "/OpenClinica-ws/";
+    private final SimulatedOpenClinica model;
+    private final SimulatedConditions conditions;
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private int threads = 8;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Create a server for a model, without latency or errors.
+     *
+     * @param model the simulated OpenClinica
+     */
+    public SimulatedOpenClinicaServer(SimulatedOpenClinica model) {
+        this(model, new SimulatedConditions());
+    }
+
+    /**
+     * Create a server for a model.
+     *
+     * @param model the simulated OpenClinica
+     * @param conditions latency, errors and throughput to simulate
+     */
+    public SimulatedOpenClinicaServer(SimulatedOpenClinica model, SimulatedConditions conditions) {
+        this.model = model;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Start listening on a free port of the loopback interface.
+     *
+     * @return base URL to pass to ConnectInfo
+     * @throws IOException
+     */
+    public synchronized String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        publish(OCConnector.URL_STUDY, new SimulatedStudyWs(model, conditions), null);
+        publish(OCConnector.URL_STUDYSUBJECT, new SimulatedStudySubjectWs(model, conditions), null);
+        publish(OCConnector.URL_EVENT, new SimulatedEventWs(model, conditions), null);
+        publish(OCConnector.URL_DATA, new SimulatedDataWs(model, conditions), new ImportRequestTextHandler());
+        publish(OCConnector.URL_STUDYEVENTDEF, new SimulatedStudyEventDefinitionWs(model, conditions), null);
+        server.start();
+        return getBaseURL();
+    }
+
+    /**
+     * Stop the server and its endpoints.
+     */
+    public synchronized void stop() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.stop();
+        }
+        endpoints.clear();
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * Publish an endpoint at the directory of a WSDL location and redirect
+     * the WSDL location to the endpoint's generated WSDL.
+     *
+     * @param wsdlLocation WSDL location relative to the base URL
+     * @param implementor the endpoint implementation
+     * @param handler server side SOAP handler, may be null
+     */
+    private void publish(String wsdlLocation, Object implementor, Handler<?> handler) {
+        final String path = CONTEXT_ROOT + wsdlLocation.substring(0, wsdlLocation.lastIndexOf('/'));
+        Endpoint endpoint = Endpoint.create(implementor);
+        if (handler != null) {
+            endpoint.getBinding().setHandlerChain(withHandler(endpoint.getBinding().getHandlerChain(), handler));
+        }
+        HttpContext context = server.createContext(path);
+        context.getFilters().add(new CompressionFilter());
+        endpoint.publish(context);
+        endpoints.add(endpoint);
+        server.createContext(CONTEXT_ROOT + wsdlLocation, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Location", path + "?wsdl");
+                exchange.sendResponseHeaders(302, -1);
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * Add a handler to a handler chain
+     *
+     * @param handlers the chain, as returned by Binding.getHandlerChain()
+     * @param handler the handler to add
+     * @return the chain
+     */
+    private static <L extends List<? super Handler<?>>> L withHandler(L handlers, Handler<?> handler) {
+        handlers.add(handler);
+        return handlers;
+    }
+
+    /**
+     * Decodes gzipped requests and gzips responses to clients accepting that,
+     * if the conditions say so. Without compression, a gzipped request is
+     * rejected (415) as it would be by a server lacking support.
+     */
+    private class CompressionFilter extends Filter {
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            boolean compressedRequest = contains(exchange.getRequestHeaders().get("Content-Encoding"), "gzip");
+            if (compressedRequest && !conditions.isCompression()) {
+                exchange.sendResponseHeaders(415, -1);
+                exchange.close();
+                return;
+            }
+            InputStream in = compressedRequest ? new GZIPInputStream(exchange.getRequestBody()) : null;
+            OutputStream out = null;
+            if (conditions.isCompression()
+                    && contains(exchange.getRequestHeaders().get("Accept-Encoding"), "gzip")) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                final OutputStream body = exchange.getResponseBody();
+                out = new FilterOutputStream(null) {
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        gzip().write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        gzip().write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        gzip().flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        gzip().close();
+                    }
+
+                    /**
+                     * the response body can only be written once the headers
+                     * are sent, so open the gzip stream on first use
+                     */
+                    private OutputStream gzip() throws IOException {
+                        if (this.out == null) {
+                            this.out = new GZIPOutputStream(body);
+                        }
+                        return this.out;
+                    }
+                };
+            }
+            if (in != null || out != null) {
+                exchange.setStreams(in, out);
+            }
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "gzip";
+        }
+
+        private boolean contains(List<String> values, String value) {
+            return values != null && values.toString().contains(value);
+        }
+    }
+
+    /**
+     * Base URL of the running server
+     *
+     * @return base URL, i.e. http://127.0.0.1:port/OpenClinica-ws/
+     */
+    public String getBaseURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + CONTEXT_ROOT;
+    }
+
+    /**
+     * Set the number of requests handled concurrently; effective on start()
+     *
+     * @param threads size of the request thread pool
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public SimulatedOpenClinica getModel() {
+        return model;
+    }
+
+    public SimulatedConditions getConditions() {
+        return conditions;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import junit.framework.Assert;
+import nl.vumc.trait.oc.connect.ConnectInfo;
+import nl.vumc.trait.oc.connect.OCConnector;
+import nl.vumc.trait.oc.connect.OCConnectorException;
+import nl.vumc.trait.oc.connect.OCWebServices;
+import nl.vumc.trait.oc.metrics.JmxMetricsRegistry;
+import nl.vumc.trait.oc.metrics.Metrics;
+import nl.vumc.trait.oc.metrics.MetricsRegistry;
+import nl.vumc.trait.oc.metrics.OperationStats;
+import nl.vumc.trait.oc.odm.ClinicalODMResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives OCWebServices over SOAP against the simulated OpenClinica server.
+ */
+public class SimulatedOpenClinicaServerTest {
+
+    private SyntheticODM synthetic;
+    private SimulatedOpenClinicaServer server;
+    private OCWebServices connector;
+
+    @Before
+    public void setUp() throws Exception {
+        synthetic = new SyntheticODM(2, 2, 2, 6);
+        SimulatedOpenClinica model = new SimulatedOpenClinica();
+        synthetic.populate(model);
+        server = new SimulatedOpenClinicaServer(model);
+        String baseURL = server.start();
+        connector = OCWebServices.getInstance(new ConnectInfo(baseURL, "simulated", "simulated"), false, true);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testResolveAndImportOverSoap() throws Exception {
+        ClinicalODMResolver resolver = new ClinicalODMResolver(synthetic.clinicalData(), connector, false);
+        resolver.resolveOdmDocument();
+        Assert.assertEquals(4, resolver.importClinicalData());
+        SimulatedOpenClinica model = server.getModel();
+        Assert.assertEquals(2, model.getSubjectCount(SyntheticODM.studyIdentifier(1)));
+        Assert.assertEquals(4, model.getScheduledEventCount(SyntheticODM.studyIdentifier(0)));
+        Assert.assertEquals(4, model.getImports().size());
+        Assert.assertTrue(model.getImports().get(0).contains(SyntheticODM.itemOID(0, 0)));
+        Assert.assertFalse(model.getImports().get(0).contains("&lt;VALUE&gt;"));
+    }
+
+    @Test
+    public void testInjectedErrors() throws Exception {
+        server.getConditions().setErrorRate(1.0).setErrorOperation("listAllStudies");
+        try {
+            connector.listAllStudies();
+            Assert.fail("Injected error expected");
+        } catch (OCConnectorException e) {
+            Assert.assertEquals(1, server.getConditions().getInjectedErrors());
+        }
+        server.getConditions().setErrorRate(0);
+        Assert.assertEquals(2, connector.fetchEventDefinitions(connector.findStudy(
+                SyntheticODM.studyIdentifier(0), false)).size());
+    }
+
+    @Test
+    public void testCompressionFallsBackWithoutServerSupport() throws Exception {
+        connector.setCompression(OCConnector.Compression.ON);
+        Assert.assertFalse(connector.isRequestCompression());
+        ClinicalODMResolver resolver = new ClinicalODMResolver(synthetic.clinicalData(), connector, false);
+        resolver.resolveOdmDocument();
+        Assert.assertEquals(4, resolver.importClinicalData());
+    }
+
+    @Test
+    public void testCompressedTransfers() throws Exception {
+        MetricsRegistry previous = Metrics.getRegistry();
+        JmxMetricsRegistry registry = new JmxMetricsRegistry(false);
+        Metrics.setRegistry(registry);
+        Metrics.setPayloadSizes(true);
+        try {
+            server.getConditions().setCompression(true);
+            connector.setCompression(OCConnector.Compression.ON);
+            Assert.assertTrue(connector.isRequestCompression());
+            long probes = server.getModel().getCallCount("listAllStudies");
+            connector.setCompression(OCConnector.Compression.ON); // known by now, not probed again
+            Assert.assertEquals(probes, server.getModel().getCallCount("listAllStudies"));
+            ClinicalODMResolver resolver = new ClinicalODMResolver(synthetic.clinicalData(), connector, false);
+            resolver.resolveOdmDocument();
+            Assert.assertEquals(4, resolver.importClinicalData());
+            Assert.assertEquals(4, server.getModel().getImports().size());
+            String server = connector.getBaseURL();
+            OperationStats plain = registry.getStats(Metrics.COMPONENT_WS, "data.import", server);
+            OperationStats wire = registry.getStats(Metrics.COMPONENT_WIRE, "data.import", server);
+            Assert.assertTrue(wire.getRequestSize().getSum() < plain.getRequestSize().getSum());
+            plain = registry.getStats(Metrics.COMPONENT_WS, "study.listAll", server);
+            wire = registry.getStats(Metrics.COMPONENT_WIRE, "study.listAll", server);
+            Assert.assertTrue(wire.getResponseSize().getSum() < plain.getResponseSize().getSum());
+        } finally {
+            Metrics.setPayloadSizes(false);
+            Metrics.setRegistry(previous);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import javax.jws.WebService;
+import org.openclinica.ws.beans.ListStudySubjectsInStudyType;
+import org.openclinica.ws.studysubject.v1.CreateRequest;
+import org.openclinica.ws.studysubject.v1.CreateResponse;
+import org.openclinica.ws.studysubject.v1.IsStudySubjectRequest;
+import org.openclinica.ws.studysubject.v1.IsStudySubjectResponse;
+import org.openclinica.ws.studysubject.v1.ListAllByStudyResponse;
+import org.openclinica.ws.studysubject.v1.Ws;
+
+/**
+ * studySubject/v1 binding backed by a SimulatedOpenClinica. Usable directly as a client
+ * binding or published as a JAX-WS endpoint.
+ */
+@WebService(endpointInterface = "org.openclinica.ws.studysubject.v1.Ws", targetNamespace = "http://openclinica.org/ws/studySubject/v1",
+        serviceName = "wsService", portName = "wsSoap11")
+public class SimulatedStudySubjectWs implements Ws {
+
+    private final SimulatedOpenClinica model;
+    private final SimulatedConditions conditions;
+
+    public SimulatedStudySubjectWs(SimulatedOpenClinica model, SimulatedConditions conditions) {
+        this.model = model;
+        this.conditions = conditions;
+    }
+
+    @Override
+    public IsStudySubjectResponse isStudySubject(IsStudySubjectRequest isStudySubjectRequest) {
+        conditions.apply("isStudySubject");
+        return model.isStudySubject(isStudySubjectRequest);
+    }
+
+    @Override
+    public ListAllByStudyResponse listAllByStudy(ListStudySubjectsInStudyType listAllByStudyRequest) {
+        conditions.apply("listAllByStudy");
+        return model.listAllByStudy(listAllByStudyRequest);
+    }
+
+    @Override
+    public CreateResponse create(CreateRequest createRequest) {
+        conditions.apply("create");
+        return model.create(createRequest);
+    }
+}
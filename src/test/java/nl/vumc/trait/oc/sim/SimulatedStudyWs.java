@@ -0,0 +1,53 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import javax.jws.WebService;
+import org.openclinica.ws.study.v1.GetMetadataRequest;
+import org.openclinica.ws.study.v1.GetMetadataResponse;
+import org.openclinica.ws.study.v1.ListAllResponse;
+import org.openclinica.ws.study.v1.Ws;
+
+/**
+ * study/v1 binding backed by a SimulatedOpenClinica. Usable directly as a client
+ * binding or published as a JAX-WS endpoint.
+ */
+@WebService(endpointInterface = "org.openclinica.ws.study.v1.Ws", targetNamespace = "http://openclinica.org/ws/study/v1",
+        serviceName = "wsService", portName = "wsSoap11")
+public class SimulatedStudyWs implements Ws {
+
+    private final SimulatedOpenClinica model;
+    private final SimulatedConditions conditions;
+
+    public SimulatedStudyWs(SimulatedOpenClinica model, SimulatedConditions conditions) {
+        this.model = model;
+        this.conditions = conditions;
+    }
+
+    @Override
+    public ListAllResponse listAll(Object listAllRequest) {
+        conditions.apply("listAllStudies");
+        return model.listAllStudies();
+    }
+
+    @Override
+    public GetMetadataResponse getMetadata(GetMetadataRequest getMetadataRequest) {
+        conditions.apply("getMetadata");
+        return model.getMetadata(getMetadataRequest);
+    }
+}
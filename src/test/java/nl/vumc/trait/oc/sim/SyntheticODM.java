@@ -0,0 +1,238 @@
+/*
+
+ Copyright 2012 VU Medical Center Amsterdam
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package nl.vumc.trait.oc.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generator of synthetic ODM of a configurable shape: studies x subjects x
+ * events x items. Produces clinical ODM in the form the Mirth channels
+ * deliver it (un-namespaced, Mirth attributes, labels instead of OIDs, some
+ * unfilled &lt;VALUE&gt; slots) together with matching study metadata, and
+ * can register the studies with a SimulatedOpenClinica.
+ */
+public class SyntheticODM {
+
+    private static final String NS_DECLARATIONS =
+            " xmlns:Mirth=\"http://www.vumc.nl/trait/odm/mirth/v0.1\""
+            + " xmlns:OpenClinica=\"http://www.openclinica.org/ns/odm_ext_v130/v3.1\"";
+    private static final String[] DATA_TYPES = {"text", "integer", "float", "date"};
+    private final int studies;
+    private final int subjects;
+    private final int events;
+    private final int items;
+
+    /**
+     * Describe the shape of the ODM to generate.
+     *
+     * @param studies number of studies
+     * @param subjects number of subjects per study
+     * @param events number of events per subject
+     * @param items number of items per event
+     */
+    public SyntheticODM(int studies, int subjects, int events, int items) {
+        this.studies = studies;
+        this.subjects = subjects;
+        this.events = events;
+        this.items = items;
+    }
+
+    public static String studyIdentifier(int study) {
+        return "SYN" + study;
+    }
+
+    public static String studyOID(int study) {
+        return "S_SYN" + study;
+    }
+
+    public static String subjectLabel(int study, int subject) {
+        return "SYN" + study + "-" + subject;
+    }
+
+    public static String eventOID(int event) {
+        return "SE_EVENT" + event;
+    }
+
+    public static String formOID(int event) {
+        return "F_FORM" + event;
+    }
+
+    public static String itemGroupOID(int event) {
+        return "IG_GROUP" + event;
+    }
+
+    public static String itemOID(int event, int item) {
+        return "I_EV" + event + "_ITEM" + item;
+    }
+
+    /**
+     * Clinical ODM: one ClinicalData per subject, subjects and events flagged
+     * for creation, every fourth item left unfilled.
+     *
+     * @return clinical ODM as String
+     */
+    public String clinicalData() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<ODM").append(NS_DECLARATIONS).append(" Mirth:PreliminaryConsistencyCheck=\"false\"");
+        sb.append(" ODMVersion=\"1.3\" FileOID=\"SYNTHETIC\" FileType=\"Snapshot\">\n");
+        for (int s = 0; s < studies; ++s) {
+            for (int j = 0; j < subjects; ++j) {
+                sb.append("  <ClinicalData Mirth:TranslateOID=\"true\" StudyOID=\"").append(studyIdentifier(s));
+                sb.append("\" MetaDataVersionOID=\"v1.0.0\">\n");
+                sb.append("    <SubjectData Mirth:Create=\"true\" Mirth:TranslateOID=\"true\" SubjectKey=\"");
+                sb.append(subjectLabel(s, j)).append("\" OpenClinica:Sex=\"").append(j % 2 == 0 ? "m" : "f");
+                sb.append("\" OpenClinica:DateOfRegistration=\"2013-01-01\" OpenClinica:DateOfBirth=\"&lt;VALUE&gt;\">\n");
+                for (int e = 0; e < events; ++e) {
+                    sb.append("      <StudyEventData Mirth:Create=\"true\" StudyEventOID=\"").append(eventOID(e));
+                    sb.append("\" OpenClinica:StartDate=\"2013-02-01\" StudyEventRepeatKey=\"&lt;VALUE&gt;\">\n");
+                    sb.append("        <FormData FormOID=\"").append(formOID(e)).append("\">\n");
+                    sb.append("          <ItemGroupData ItemGroupOID=\"").append(itemGroupOID(e));
+                    sb.append("\" ItemGroupRepeatKey=\"1\" TransactionType=\"Insert\">\n");
+                    for (int i = 0; i < items; ++i) {
+                        sb.append("            <ItemData ItemOID=\"").append(itemOID(e, i));
+                        sb.append("\" Mirth:DataType=\"").append(DATA_TYPES[i % DATA_TYPES.length]);
+                        sb.append("\" Value=\"").append(i % 4 == 3 ? "&lt;VALUE&gt;" : value(i, j)).append("\"/>\n");
+                    }
+                    sb.append("          </ItemGroupData>\n        </FormData>\n      </StudyEventData>\n");
+                }
+                sb.append("    </SubjectData>\n  </ClinicalData>\n");
+            }
+        }
+        sb.append("</ODM>\n");
+        return sb.toString();
+    }
+
+    /**
+     * Split clinical ODM into documents of a single ClinicalData each, as
+     * Mirth would deliver them.
+     *
+     * @param odm clinical ODM as String, e.g. from clinicalData()
+     * @return the documents, in order
+     */
+    public static List<String> perClinicalData(String odm) {
+        int start = odm.indexOf("<ClinicalData");
+        int end = odm.lastIndexOf("</ODM>");
+        String header = odm.substring(0, start);
+        List<String> documents = new ArrayList<String>();
+        for (String clinicalData : odm.substring(start, end).split("(?=<ClinicalData)")) {
+            documents.add(header + clinicalData + "</ODM>\n");
+        }
+        return documents;
+    }
+
+    /**
+     * Study metadata (cdisc namespace, as returned by getMetadata()).
+     *
+     * @param study study index
+     * @return metadata ODM as String
+     */
+    public String metadata(int study) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<ODM xmlns=\"http://www.cdisc.org/ns/odm/v1.3\"");
+        sb.append(" xmlns:OpenClinica=\"http://www.openclinica.org/ns/odm_ext_v130/v3.1\"");
+        sb.append(" ODMVersion=\"1.3\" FileOID=\"SYNTHETIC_META\" FileType=\"Snapshot\">\n");
+        sb.append("  <Study OID=\"").append(studyOID(study)).append("\">\n");
+        sb.append("    <GlobalVariables><StudyName>").append(studyIdentifier(study));
+        sb.append("</StudyName><StudyDescription/><ProtocolName>").append(studyIdentifier(study));
+        sb.append("</ProtocolName></GlobalVariables>\n");
+        sb.append("    <MetaDataVersion OID=\"v1.0.0\" Name=\"MetaDataVersion_v1.0.0\">\n      <Protocol>\n");
+        for (int e = 0; e < events; ++e) {
+            sb.append("        <StudyEventRef StudyEventOID=\"").append(eventOID(e));
+            sb.append("\" OrderNumber=\"").append(e + 1).append("\" Mandatory=\"Yes\"/>\n");
+        }
+        sb.append("      </Protocol>\n");
+        for (int e = 0; e < events; ++e) {
+            sb.append("      <StudyEventDef OID=\"").append(eventOID(e)).append("\" Name=\"Event ").append(e);
+            sb.append("\" Repeating=\"No\" Type=\"Scheduled\">\n        <FormRef FormOID=\"").append(formOID(e));
+            sb.append("\" Mandatory=\"Yes\"/>\n      </StudyEventDef>\n");
+        }
+        for (int e = 0; e < events; ++e) {
+            sb.append("      <FormDef OID=\"").append(formOID(e)).append("\" Name=\"Form ").append(e);
+            sb.append("\" Repeating=\"No\">\n        <ItemGroupRef ItemGroupOID=\"").append(itemGroupOID(e));
+            sb.append("\" Mandatory=\"Yes\"/>\n      </FormDef>\n");
+        }
+        for (int e = 0; e < events; ++e) {
+            sb.append("      <ItemGroupDef OID=\"").append(itemGroupOID(e)).append("\" Name=\"Group ").append(e);
+            sb.append("\" Repeating=\"No\">\n");
+            for (int i = 0; i < items; ++i) {
+                sb.append("        <ItemRef ItemOID=\"").append(itemOID(e, i)).append("\" Mandatory=\"No\"/>\n");
+            }
+            sb.append("      </ItemGroupDef>\n");
+        }
+        for (int e = 0; e < events; ++e) {
+            for (int i = 0; i < items; ++i) {
+                sb.append("      <ItemDef OID=\"").append(itemOID(e, i)).append("\" Name=\"ITEM").append(i);
+                sb.append("\" DataType=\"").append(DATA_TYPES[i % DATA_TYPES.length]);
+                sb.append("\" Comment=\"Item ").append(i).append("\"/>\n");
+            }
+        }
+        sb.append("    </MetaDataVersion>\n  </Study>\n</ODM>\n");
+        return sb.toString();
+    }
+
+    /**
+     * Register the generated studies, their event definitions and metadata
+     * with a simulated OpenClinica.
+     *
+     * @param model the simulated OpenClinica
+     */
+    public void populate(SimulatedOpenClinica model) {
+        for (int s = 0; s < studies; ++s) {
+            model.addStudy(studyIdentifier(s), studyOID(s), "Synthetic study " + s);
+            for (int e = 0; e < events; ++e) {
+                model.addEventDefinition(studyIdentifier(s), eventOID(e), "Event " + e);
+            }
+            model.setMetadata(studyIdentifier(s), metadata(s));
+        }
+    }
+
+    public int getStudies() {
+        return studies;
+    }
+
+    public int getSubjects() {
+        return subjects;
+    }
+
+    public int getEvents() {
+        return events;
+    }
+
+    public int getItems() {
+        return items;
+    }
+
+    /**
+     * A value matching the data type of item i
+     */
+    private static String value(int i, int subject) {
+        switch (i % DATA_TYPES.length) {
+            case 1:
+                return String.valueOf(subject % 100);
+            case 2:
+                return (subject % 100) + ".5";
+            case 3:
+                return "2013-03-01";
+            default:
+                return "value " + subject;
+        }
+    }
+}